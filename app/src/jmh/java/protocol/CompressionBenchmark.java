@@ -0,0 +1,135 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Стоимость сжатия ответов сервера {@link FrameDeflater} и объём, который уходит в сокет.
+ * <p>
+ * {@code historyPage} — страница истории из 50 строк одной переписки, как при {@code /history}
+ * или выдаче оффлайн-сообщений; {@code chatMessage} — одно живое сообщение, которое меньше порога
+ * и при {@code minBytes=512} не сжимается. Уровень 0 означает соединение без сжатия.
+ * Счётчики {@code rawBytes} и {@code wireBytes} показывают байты до и после сжатия за операцию,
+ * время операции — цену сжатия на CPU; распаковка на клиенте измеряется отдельно в {@code inflate}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompressionBenchmark {
+
+    private static final int PAGE = 50;
+    private static final int PAGES = 64;
+
+    @Param({"0", "1", "6"})
+    public int level;
+
+    @Param({"512"})
+    public int minBytes;
+
+    /** Байты на операцию, которые JMH выводит рядом со временем. */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Wire {
+        public long rawBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    private byte[][] pages;
+    private byte[][] chat;
+    private FrameDeflater deflater;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+    private int next;
+
+    private byte[] compressedPage;
+
+    @Setup
+    public void setup() throws IOException {
+        pages = new byte[PAGES][];
+        chat = new byte[PAGES][];
+        for (int p = 0; p < PAGES; p++) {
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            for (int i = 0; i < PAGE; i++) {
+                String sender = i % 3 == 0 ? "user" + p : "user" + (p + 1);
+                String recipient = i % 3 == 0 ? "user" + (p + 1) : "user" + p;
+                page.write(FrameCodec.encodeText("[2024-05-" + (10 + i % 20) + " 12:" + (10 + i % 50) + ":00] from " + sender
+                        + " to " + recipient + ": message " + (p * PAGE + i) + ", see you at " + (i % 12 + 1) + " o'clock"));
+            }
+            pages[p] = page.toByteArray();
+            chat[p] = FrameCodec.encodeText("From user" + p + ": are you coming today? " + p);
+        }
+        deflater = level > 0 ? new FrameDeflater(level, minBytes) : null;
+
+        FrameDeflater fresh = new FrameDeflater(Math.max(level, 1), 0);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        fresh.write(pages[0], 0, pages[0].length, compressed);
+        fresh.end();
+        compressedPage = compressed.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    @Benchmark
+    public int historyPage(Wire wire) throws IOException {
+        return send(pages[next++ & (PAGES - 1)], wire);
+    }
+
+    @Benchmark
+    public int chatMessage(Wire wire) throws IOException {
+        return send(chat[next++ & (PAGES - 1)], wire);
+    }
+
+    /** Распаковка первой страницы, сжатой новым потоком: цена на стороне клиента. */
+    @Benchmark
+    public int inflate() throws IOException {
+        FrameInflater inflater = new FrameInflater();
+        ByteBuffer frame = ByteBuffer.wrap(compressedPage, 5, compressedPage.length - 5);
+        inflater.feed(frame);
+        int frames = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        ByteBuffer next;
+        while ((next = inflater.next(buffer)) != null) {
+            buffer = next;
+            frames++;
+        }
+        inflater.end();
+        return frames;
+    }
+
+    private int send(byte[] frames, Wire wire) throws IOException {
+        out.reset();
+        int written;
+        if (deflater == null) {
+            out.write(frames);
+            written = frames.length;
+        } else {
+            written = deflater.write(frames, 0, frames.length, out);
+        }
+        wire.rawBytes += frames.length;
+        wire.wireBytes += written;
+        return written;
+    }
+}
@@ -0,0 +1,67 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Первая страница истории из {@link HistoryCache} и стоимость write-through для отправителя.
+ * <p>
+ * В кэше тысяча переписок по 50 сообщений. Сравнивать {@code firstPage} стоит с
+ * {@code MessageStoreBenchmark.historyPage}, которая читает ту же страницу из хранилища и ещё не форматирует строки.
+ * Четыре потока, потому что чтения истории и отправка сообщений идут из многих соединений сразу.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class HistoryCacheBenchmark {
+
+    private static final int CONVERSATIONS = 1000;
+    private static final int PAGE = 50;
+
+    private final AtomicLong nextId = new AtomicLong();
+    private HistoryCache cache;
+    private String[] keys;
+
+    @Setup
+    public void setup() {
+        cache = new HistoryCache(PAGE, 256L << 20, message -> "[" + message.time() + "] from " + message.sender()
+                + " to " + message.recipient() + ": " + message.message());
+        keys = new String[CONVERSATIONS];
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            keys[c] = "user" + c + " user" + (c + 1);
+            List<HistoryCache.Line> lines = new ArrayList<>(PAGE);
+            for (int i = 0; i < PAGE; i++) {
+                lines.add(new HistoryCache.Line(nextId.incrementAndGet(), "[2024-01-01 00:00:00] from user" + c + " to user" + (c + 1) + ": message " + i));
+            }
+            cache.fill(keys[c], cache.startLoad(keys[c]), lines, PAGE);
+        }
+    }
+
+    @Benchmark
+    public void firstPage(Blackhole blackhole) {
+        List<HistoryCache.Line> page = cache.firstPage(keys[ThreadLocalRandom.current().nextInt(CONVERSATIONS)], PAGE);
+        for (HistoryCache.Line line : page) {
+            blackhole.consume(line.text());
+        }
+    }
+
+    @Benchmark
+    public void writeThrough() {
+        long id = nextId.incrementAndGet();
+        int c = (int) (id % CONVERSATIONS);
+        cache.add(keys[c], new MessageStore.StoredMessage(id, "user" + c, "user" + (c + 1), "benchmark message", "2024-01-01 00:00:00"));
+    }
+}
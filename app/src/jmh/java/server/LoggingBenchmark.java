@@ -0,0 +1,112 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.async.AsyncLoggerContext;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.core.config.builder.api.AppenderComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ComponentBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Стоимость логирования одного сообщения в {@link ClientHandler#message}.
+ * <p>
+ * {@code sync*} — прежняя схема: синхронный логгер, файл сбрасывается на диск после каждой записи.
+ * {@code async*} — текущая: асинхронные логгеры и {@code RollingRandomAccessFile}, как в {@code log4j2.xml}.
+ * Когда кольцевой буфер заполнен, события info отбрасываются (см. {@code log4j2.component.properties}),
+ * поэтому {@code asyncParameterized} показывает стоимость для потока, отправляющего сообщение, а не скорость диска.
+ * Восемь потоков, потому что сообщения обрабатываются многими потоками одновременно.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(8)
+public class LoggingBenchmark {
+
+    private static final String SYNC = "-Dlog4j2.contextSelector=org.apache.logging.log4j.core.selector.ClassLoaderContextSelector";
+    private static final String ASYNC = "-Dlog4j2.contextSelector=org.apache.logging.log4j.core.async.AsyncLoggerContextSelector";
+    private static final String PATTERN = "%d{yyyy-MM-dd HH:mm:ss} [%t] %-5level %c - %msg%n";
+
+    private final String login = "alice";
+    private final String target = "bob";
+    private Path dir;
+    private Logger logger;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("logging-benchmark");
+        boolean async = LogManager.getContext(false) instanceof AsyncLoggerContext;
+        ConfigurationBuilder<BuiltConfiguration> builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        // Ротация только ограничивает размер файла за время замера.
+        ComponentBuilder<?> policies = builder.newComponent("Policies")
+                .addComponent(builder.newComponent("SizeBasedTriggeringPolicy").addAttribute("size", "100 MB"));
+        AppenderComponentBuilder file = builder.newAppender("file", async ? "RollingRandomAccessFile" : "RollingFile")
+                .addAttribute("fileName", dir.resolve("bench.log").toString())
+                .addAttribute("filePattern", dir.resolve("bench-%i.log").toString())
+                .addAttribute("immediateFlush", !async)
+                .add(builder.newLayout("PatternLayout").addAttribute("pattern", PATTERN))
+                .addComponent(policies)
+                .addComponent(builder.newComponent("DefaultRolloverStrategy").addAttribute("max", 1));
+        builder.add(file);
+        builder.add(builder.newRootLogger(Level.INFO).add(builder.newAppenderRef("file")));
+        Configurator.reconfigure(builder.build());
+        logger = LogManager.getLogger(LoggingBenchmark.class);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        LogManager.shutdown();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : files.toList()) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /** Как было: синхронная запись и склейка строки. */
+    @Benchmark
+    @Fork(jvmArgsAppend = SYNC)
+    public void syncConcatenated() {
+        logger.info("Message sent from " + login + " to " + target);
+    }
+
+    /** Синхронная запись с параметрами: отдельно показывает вклад склейки строки. */
+    @Benchmark
+    @Fork(jvmArgsAppend = SYNC)
+    public void syncParameterized() {
+        logger.info("Message sent from {} to {}", login, target);
+    }
+
+    /** Асинхронная запись с параметрами, если для {@code server.ClientHandler} включён уровень debug. */
+    @Benchmark
+    @Fork(jvmArgsAppend = ASYNC)
+    public void asyncParameterized() {
+        logger.info("Message sent from {} to {}", login, target);
+    }
+
+    /** Как сейчас по умолчанию: сообщение логируется на уровне debug, который выключен. */
+    @Benchmark
+    @Fork(jvmArgsAppend = ASYNC)
+    public void asyncDebugDisabled() {
+        logger.debug("Message sent from {} to {}", login, target);
+    }
+}
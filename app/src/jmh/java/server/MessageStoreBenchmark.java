@@ -0,0 +1,136 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Запись, история и оффлайн-сообщения в хранилищах {@code sqlite} и {@code log} при разном числе строк.
+ * <p>
+ * Перед измерением хранилище заполняется {@code rows} сообщениями между сотней пользователей:
+ * каждое сотое — переписка alice и bob, ещё каждое сотое — недоставленное сообщение для alice.
+ * {@code saveAcknowledged} — запись сообщения клиенту с подтверждением доставки: сообщение с ID клиента
+ * сохраняется недоставленным, а затем подтверждается; сравнивать стоит с {@code save}.
+ * <p>
+ * Десять миллионов строк показывают, растёт ли задержка с размером таблицы и индексов, когда они
+ * уже не помещаются в кэш страниц SQLite. Заполнение занимает минуты и около 2 ГБ на диске
+ * на каждую пробу, поэтому для быстрой проверки размер можно ограничить: {@code -p rows=10000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageStoreBenchmark {
+
+    private static final int SAVE_BATCH = 100;
+
+    @Param({"sqlite", "log"})
+    public String store;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int rows;
+
+    private Path directory;
+    private ConnectionPool writer;
+    private ConnectionPool readers;
+    private MessageWriter messageWriter;
+    private MessageStore messageStore;
+    private long nextClientId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("messenger-bench");
+        if (store.equals("sqlite")) {
+            String url = "jdbc:sqlite:" + directory.resolve("bench.db");
+            writer = new ConnectionPool("writer", url, 1, 5000, "PRAGMA journal_mode=WAL", "PRAGMA busy_timeout=5000");
+            try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+                SchemaMigrations.migrate(connection.getConnection());
+            }
+            readers = new ConnectionPool("readers", url, 4, 5000, "PRAGMA busy_timeout=5000", "PRAGMA query_only=1");
+            messageWriter = new MessageWriter(writer, 10000, 500, 5);
+            messageWriter.start();
+            messageStore = new SqliteMessageStore(writer, readers, messageWriter);
+        } else {
+            messageStore = new LogMessageStore(directory.resolve("log"), 64 << 20, 1000, 60000);
+        }
+        for (int i = 0; i < rows; i++) {
+            switch (i % 100) {
+                case 0 -> messageStore.save(i % 200 == 0 ? "alice" : "bob", i % 200 == 0 ? "bob" : "alice", "conversation message " + i, true);
+                case 1 -> messageStore.save("user" + i % 97, "alice", "offline message " + i, false);
+                default -> messageStore.save("user" + i % 97, "user" + (i * 31 + 7) % 100, "message " + i, true);
+            }
+        }
+        flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        messageStore.close();
+        if (messageWriter != null) {
+            messageWriter.shutdown();
+            readers.close();
+            writer.close();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Ждёт, пока записанные сообщения станут видны чтению.
+     */
+    private void flush() {
+        if (messageWriter != null) {
+            messageWriter.awaitFlushed();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAVE_BATCH)
+    public void save() {
+        for (int i = 0; i < SAVE_BATCH; i++) {
+            messageStore.save("carol", "dave", "benchmark message", true);
+        }
+        flush();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAVE_BATCH)
+    public void saveAcknowledged() {
+        for (int i = 0; i < SAVE_BATCH; i++) {
+            MessageStore.StoredMessage stored = messageStore.save("carol", "dave", "benchmark message", false, ++nextClientId);
+            messageStore.acknowledge("dave", stored.id());
+        }
+        flush();
+    }
+
+    @Benchmark
+    public long historyPage(Blackhole blackhole) {
+        return messageStore.history("alice", "bob", 50, Long.MAX_VALUE, message -> {
+            blackhole.consume(message);
+            return true;
+        });
+    }
+
+    @Benchmark
+    public int offlineChunk(Blackhole blackhole) {
+        return messageStore.fetchOffline("alice", 0, 200, message -> {
+            blackhole.consume(message);
+            return true;
+        });
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Стоимость хэширования пароля и пропускная способность входа через {@link AuthExecutor}.
+ * Параметр {@code scheme} — алгоритм и число итераций через двоеточие.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PasswordHasherBenchmark {
+
+    @Param({"SHA-256:100000", "PBKDF2WithHmacSHA256:310000"})
+    public String scheme;
+
+    private String algorithm;
+    private int iterations;
+    private String salt;
+
+    @Setup
+    public void setup() {
+        algorithm = scheme.substring(0, scheme.indexOf(':'));
+        iterations = Integer.parseInt(scheme.substring(scheme.indexOf(':') + 1));
+        salt = PasswordHasher.generateSalt();
+    }
+
+    @Benchmark
+    public String hash() {
+        return PasswordHasher.hash(algorithm, iterations, "correct horse battery staple", salt);
+    }
+
+    /**
+     * Вход шестнадцати клиентов одновременно: хэширование ограничено потоками {@code messenger.auth.threads}.
+     */
+    @Benchmark
+    @Threads(16)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public boolean login() {
+        return AuthExecutor.run(() -> PasswordHasher.hash(algorithm, iterations, "correct horse battery staple", salt) != null);
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import protocol.FrameCodec;
+
+/**
+ * Разбор команд текстовым и двоичным протоколом.
+ * Обработчик ничего не делает, поэтому измеряется только разбор и вызов метода.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProtocolBenchmark {
+
+    private static final String TEXT_MESSAGE = "/msg bob Hello Bob, are we still meeting at seven?";
+    private static final String TEXT_HISTORY = "/history bob 50 123456";
+    private static final byte[] BINARY_MESSAGE = FrameCodec.encode(FrameCodec.MESSAGE, 1L, "bob", "Hello Bob, are we still meeting at seven?");
+    private static final byte[] BINARY_HISTORY = FrameCodec.encode(FrameCodec.HISTORY, "bob", 50, 123456L);
+
+    private CommandHandler handler;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        handler = new NoopHandler(blackhole);
+    }
+
+    @Benchmark
+    public boolean textMessage() {
+        return TextProtocol.dispatch(TEXT_MESSAGE, handler);
+    }
+
+    @Benchmark
+    public boolean binaryMessage() {
+        return BinaryProtocol.dispatch(ByteBuffer.wrap(BINARY_MESSAGE, 4, BINARY_MESSAGE.length - 4), handler);
+    }
+
+    @Benchmark
+    public boolean textHistory() {
+        return TextProtocol.dispatch(TEXT_HISTORY, handler);
+    }
+
+    @Benchmark
+    public boolean binaryHistory() {
+        return BinaryProtocol.dispatch(ByteBuffer.wrap(BINARY_HISTORY, 4, BINARY_HISTORY.length - 4), handler);
+    }
+
+    /**
+     * Обработчик, передающий аргументы команд в {@link Blackhole}.
+     */
+    private static final class NoopHandler implements CommandHandler {
+
+        private final Blackhole blackhole;
+
+        NoopHandler(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public boolean isAuthenticated() {
+            return true;
+        }
+
+        @Override
+        public boolean reply(String text) {
+            blackhole.consume(text);
+            return true;
+        }
+
+        @Override
+        public void binary(Set<String> options) {
+        }
+
+        @Override
+        public void ack(long messageId) {
+            blackhole.consume(messageId);
+        }
+
+        @Override
+        public void pong() {
+        }
+
+        @Override
+        public void search(List<String> terms, String user, int page) {
+            blackhole.consume(terms);
+        }
+
+        @Override
+        public void register(String login, String password) {
+            blackhole.consume(login);
+            blackhole.consume(password);
+        }
+
+        @Override
+        public void login(String login, String password) {
+            blackhole.consume(login);
+            blackhole.consume(password);
+        }
+
+        @Override
+        public void message(long clientMessageId, String target, String message) {
+            blackhole.consume(clientMessageId);
+            blackhole.consume(target);
+            blackhole.consume(message);
+        }
+
+        @Override
+        public void history(String user, int limit, long beforeId) {
+            blackhole.consume(user);
+            blackhole.consume(limit);
+            blackhole.consume(beforeId);
+        }
+
+        @Override
+        public void join(String channel) {
+            blackhole.consume(channel);
+        }
+
+        @Override
+        public void leave(String channel) {
+            blackhole.consume(channel);
+        }
+
+        @Override
+        public void groupMessage(String channel, String message) {
+            blackhole.consume(channel);
+            blackhole.consume(message);
+        }
+    }
+}
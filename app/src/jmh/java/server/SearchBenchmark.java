@@ -0,0 +1,168 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Задержка {@code /search} по полнотекстовому индексу FTS5 при разном числе сообщений.
+ * <p>
+ * База заполняется {@code rows} сообщениями между тысячей пользователей; каждое сотое сообщение — alice и bob.
+ * Слова берутся из словаря с частотой по закону Ципфа, поэтому {@code hello} встречается часто,
+ * а {@code zebra} — в одном сообщении из ста тысяч. Вставка идёт через триггеры, как на сервере,
+ * поэтому время заполнения показывает и стоимость обновления индекса.
+ * <p>
+ * Заполнение десятков миллионов строк занимает минуты. Чтобы не повторять его, каталог базы можно задать
+ * свойством {@code -Dmessenger.bench.dir=...}: файл {@code search-<rows>.db} в нём сохраняется между запусками.
+ * Число строк меняется параметром JMH, например {@code -p rows=30000000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchBenchmark {
+
+    private static final int USERS = 1000;
+    private static final int VOCABULARY = 5000;
+    private static final int INSERT_BATCH = 50_000;
+
+    @Param({"1000000", "10000000"})
+    public int rows;
+
+    private Path directory;
+    private boolean temporary;
+    private ConnectionPool writer;
+    private ConnectionPool readers;
+    private MessageWriter messageWriter;
+    private MessageStore messageStore;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String dir = System.getProperty("messenger.bench.dir");
+        temporary = dir == null;
+        directory = temporary ? Files.createTempDirectory("messenger-search") : Files.createDirectories(Path.of(dir));
+        Path file = directory.resolve("search-" + rows + ".db");
+        boolean populated = Files.exists(file);
+        String url = "jdbc:sqlite:" + file;
+        writer = new ConnectionPool("writer", url, 1, 5000, "PRAGMA journal_mode=WAL", "PRAGMA busy_timeout=5000");
+        try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+            SchemaMigrations.migrate(connection.getConnection());
+            if (!populated) {
+                populate(connection.getConnection());
+            }
+        }
+        readers = new ConnectionPool("readers", url, 4, 5000, "PRAGMA busy_timeout=5000", "PRAGMA query_only=1");
+        messageWriter = new MessageWriter(writer, 10000, 500, 5);
+        messageWriter.start();
+        messageStore = new SqliteMessageStore(writer, readers, messageWriter);
+    }
+
+    private void populate(Connection connection) throws SQLException {
+        String[] words = new String[VOCABULARY];
+        words[0] = "hello";
+        words[1] = "world";
+        for (int i = 2; i < VOCABULARY; i++) {
+            words[i] = "word" + i;
+        }
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO Messages(sender, recipient, message, delivered) VALUES (?, ?, ?, 1)")) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < rows; i++) {
+                text.setLength(0);
+                int length = 4 + random.nextInt(12);
+                for (int w = 0; w < length; w++) {
+                    // Ципф: индекс слова примерно обратно пропорционален его частоте.
+                    int index = (int) Math.pow(VOCABULARY, random.nextDouble()) - 1;
+                    text.append(words[index]).append(' ');
+                }
+                if (i % 100_000 == 0) {
+                    text.append("zebra");
+                }
+                boolean pair = i % 100 == 0;
+                insert.setString(1, pair ? (i % 200 == 0 ? "alice" : "bob") : "user" + random.nextInt(USERS));
+                insert.setString(2, pair ? (i % 200 == 0 ? "bob" : "alice") : (i % 10 == 0 ? "alice" : "user" + random.nextInt(USERS)));
+                insert.setString(3, text.toString());
+                insert.addBatch();
+                if ((i + 1) % INSERT_BATCH == 0) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        System.out.printf("%nInserted %d messages with full-text indexing in %.1f s%n", rows, (System.nanoTime() - start) / 1e9);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        messageStore.close();
+        messageWriter.shutdown();
+        readers.close();
+        writer.close();
+        if (temporary) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private int search(List<String> terms, String user, int page, Blackhole blackhole) {
+        return messageStore.search("alice", terms, user, 20, (page - 1) * 20, message -> {
+            blackhole.consume(message);
+            return true;
+        });
+    }
+
+    @Benchmark
+    public int commonWord(Blackhole blackhole) {
+        return search(List.of("hello"), null, 1, blackhole);
+    }
+
+    @Benchmark
+    public int rareWord(Blackhole blackhole) {
+        return search(List.of("zebra"), null, 1, blackhole);
+    }
+
+    @Benchmark
+    public int twoWords(Blackhole blackhole) {
+        return search(List.of("hello", "world"), null, 1, blackhole);
+    }
+
+    @Benchmark
+    public int prefix(Blackhole blackhole) {
+        return search(List.of("word1*"), null, 1, blackhole);
+    }
+
+    @Benchmark
+    public int conversation(Blackhole blackhole) {
+        return search(List.of("hello"), "bob", 1, blackhole);
+    }
+
+    @Benchmark
+    public int tenthPage(Blackhole blackhole) {
+        return search(List.of("hello"), null, 10, blackhole);
+    }
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Поиск активных пользователей и проверка логинов при конкурентном доступе.
+ * В группе {@code presence} семь потоков ищут получателей, пока один поток подключает и отключает пользователей.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UsersBenchmark {
+
+    private static final int USERS = 10000;
+
+    private String[] logins;
+    private ClientHandler[] handlers;
+
+    @Setup
+    public void setup() {
+        logins = new String[USERS];
+        handlers = new ClientHandler[USERS];
+        for (int i = 0; i < USERS; i++) {
+            logins[i] = "user" + i;
+            handlers[i] = new ClientHandler(null, Writer.nullWriter());
+            Users.setActiveUser(logins[i], handlers[i]);
+            UserDirectory.add(logins[i]);
+        }
+    }
+
+    @Benchmark
+    @Group("presence")
+    @GroupThreads(7)
+    public ClientHandler lookup() {
+        return Users.getActiveUser(logins[ThreadLocalRandom.current().nextInt(USERS)]);
+    }
+
+    @Benchmark
+    @Group("presence")
+    @GroupThreads(1)
+    public void churn() {
+        int i = ThreadLocalRandom.current().nextInt(USERS);
+        Users.removeUser(logins[i], handlers[i]);
+        Users.setActiveUser(logins[i], handlers[i]);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean directoryLookup() {
+        return UserDirectory.exists(logins[ThreadLocalRandom.current().nextInt(USERS)]);
+    }
+}
@@ -2,6 +2,8 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
+import protocol.FrameCodec;
 
 /**
  * Главный класс клиента мессенджера.
@@ -12,9 +14,14 @@ public class ClientMain {
     /**
      * Точка входа клиента.
      * Инициализирует соединение, запускает потоки MessageSend и MessageRead.
-     * @param args аргументы командной строки (не используются)
+     * С аргументом {@code --binary} клиент переходит на двоичный протокол {@link FrameCodec}
+     * и подтверждает получение личных сообщений,
+     * с {@code --deflate} — на двоичный протокол и просит сервер сжимать крупные ответы.
+     * @param args аргументы командной строки: {@code --binary} или {@code --deflate} (необязательно)
      */
     public static void main(String[] args) {
+        boolean deflate = Arrays.asList(args).contains("--deflate");
+        boolean binary = deflate || Arrays.asList(args).contains("--binary");
         try {
             BufferedReader inputReader = new BufferedReader(new InputStreamReader(System.in));
             Socket soc = new Socket("127.0.0.1", 9806);
@@ -26,13 +33,34 @@ public class ClientMain {
             System.out.println("Registration: /register login password");
             System.out.println("Entrance: /login login password");
             System.out.println("Sending a message: /msg target your_message");
-            System.out.println("Message history: /history user");
+            System.out.println("Message history: /history user [limit] [before-id]");
+            System.out.println("Search: /search word[+word] [user|*] [page]");
+            System.out.println("Channels: /join channel, /leave channel");
+            System.out.println("Channel message: /gmsg channel your_message");
             System.out.println("Ending: /exit");
             System.out.println("Be careful to enter commands correctly.");
             System.out.println("-------------------");
 
+            if (binary) {
+                out.println(FrameCodec.HANDSHAKE + " " + FrameCodec.OPTION_ACK + (deflate ? " " + FrameCodec.OPTION_DEFLATE : ""));
+                String answer = in.readLine();
+                if (answer == null || !(answer + " ").startsWith(FrameCodec.HANDSHAKE_OK + " ")) {
+                    System.err.println("Server does not support the binary protocol");
+                    soc.close();
+                    return;
+                }
+                if (deflate && !Arrays.asList(answer.split(" ")).contains(FrameCodec.OPTION_DEFLATE)) {
+                    System.err.println("Server does not compress, continuing without compression");
+                }
+                DataOutputStream frameOut = new DataOutputStream(new BufferedOutputStream(soc.getOutputStream()));
+                DataInputStream frameIn = new DataInputStream(new BufferedInputStream(soc.getInputStream()));
+                new MessageSend(frameOut, inputReader, soc).start();
+                new MessageRead(frameIn, frameOut).start();
+                return;
+            }
+
             new MessageSend(out, inputReader, soc).start();
-            new MessageRead(in).start();
+            new MessageRead(in, out).start();
 
         } catch (IOException e){System.err.println("Connection error");}
 
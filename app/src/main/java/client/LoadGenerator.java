@@ -0,0 +1,433 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import protocol.FrameCodec;
+
+/**
+ * Нагрузочный клиент без консоли.
+ * <p>
+ * Открывает {@code sessions} соединений (каждое в своём виртуальном потоке), регистрирует или
+ * входит под логинами {@code prefix0..prefixN}, затем в течение {@code duration} секунд
+ * отправляет сообщения с суммарной частотой {@code rate} в секунду. В каждое сообщение
+ * записывается время отправки, поэтому при получении измеряется задержка доставки от отправителя
+ * до получателя. Каждые 5 секунд печатается прогресс, в конце — процентили задержки,
+ * достигнутая пропускная способность и ошибки.
+ * <p>
+ * Режимы ({@code mode}):
+ * <ul>
+ *     <li>{@code direct} — каждая сессия отправляет {@code /msg} случайной другой сессии;</li>
+ *     <li>{@code channel} — все сессии вступают в канал, а первые {@code senders} сессий отправляют в него {@code /gmsg};</li>
+ *     <li>{@code idle} — сессии входят и {@code duration} секунд только отвечают на ping. До подключения и в конце
+ *     читаются метрики сервера ({@code metrics}), и печатается, сколько кучи и резидентной памяти сервера
+ *     приходится на одно соединение.</li>
+ * </ul>
+ * Параметры передаются как {@code --name=value}, например:
+ * {@code --hosts=127.0.0.1:9806,127.0.0.1:9807 --sessions=2000 --rate=5000 --duration=60}.
+ * Если адресов несколько, сессии распределяются по ним по очереди.
+ */
+public class LoadGenerator {
+
+    private static final String STAMP = "t=";
+
+    private final List<String> hosts;
+    private final int sessionCount;
+    private final int rate;
+    private final int durationSeconds;
+    private final String mode;
+    private final String channel;
+    private final int senders;
+    private final String prefix;
+    private final String password;
+    private final String padding;
+    private final String metrics;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Map<String, LongAdder> errorLines = new ConcurrentHashMap<>();
+    private final List<Session> sessions = new ArrayList<>();
+    private final long createdAt = System.nanoTime();
+    private volatile boolean sending;
+
+    private LoadGenerator(Map<String, String> options) {
+        hosts = List.of(options.getOrDefault("hosts", "127.0.0.1:9806").split(","));
+        sessionCount = Integer.parseInt(options.getOrDefault("sessions", "100"));
+        rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        mode = options.getOrDefault("mode", "direct");
+        channel = options.getOrDefault("channel", "load");
+        senders = Integer.parseInt(options.getOrDefault("senders", "1"));
+        prefix = options.getOrDefault("prefix", "load");
+        password = options.getOrDefault("password", "load-password");
+        padding = "x".repeat(Integer.parseInt(options.getOrDefault("size", "64")));
+        String firstHost = hosts.get(0);
+        metrics = options.getOrDefault("metrics", "http://" + firstHost.substring(0, firstHost.lastIndexOf(':')) + ":9100/metrics");
+        if (!mode.equals("direct") && !mode.equals("channel") && !mode.equals("idle")) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+    }
+
+    /**
+     * Точка входа нагрузочного клиента.
+     * @param args параметры {@code --hosts}, {@code --sessions}, {@code --rate}, {@code --duration},
+     *             {@code --mode}, {@code --channel}, {@code --senders}, {@code --prefix},
+     *             {@code --password}, {@code --size}, {@code --metrics}
+     * @throws InterruptedException если поток прерван
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Unexpected argument " + arg + ", expected --name=value");
+                return;
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private void run() throws InterruptedException {
+        ServerStats before = mode.equals("idle") ? ServerStats.fetch(metrics) : null;
+        System.out.println("Connecting " + sessionCount + " sessions to " + hosts + ", mode " + mode);
+        long connectStart = System.nanoTime();
+        CountDownLatch ready = new CountDownLatch(sessionCount);
+        for (int i = 0; i < sessionCount; i++) {
+            Session session = new Session(prefix + i, hosts.get(i % hosts.size()), ready);
+            sessions.add(session);
+            Thread.ofVirtual().name("load-" + i).start(session::open);
+        }
+        while (!ready.await(5, TimeUnit.SECONDS)) {
+            System.out.println("  logged in " + (sessionCount - ready.getCount()) + "/" + sessionCount);
+        }
+        List<Session> online = sessions.stream().filter(session -> session.online).toList();
+        System.out.printf("%d of %d sessions online in %.1f s%n", online.size(), sessionCount,
+                (System.nanoTime() - connectStart) / 1e9);
+        if (mode.equals("idle")) {
+            idle(before);
+            for (Session session : sessions) {
+                session.close();
+            }
+            return;
+        }
+        if (online.size() < 2) {
+            System.out.println("Not enough sessions to send messages");
+            return;
+        }
+
+        List<Session> active = mode.equals("channel") ? online.subList(0, Math.min(senders, online.size())) : online;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * active.size() / Math.max(1, rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        sending = true;
+        for (Session session : active) {
+            Thread.ofVirtual().start(() -> session.sendLoop(online, start, intervalNanos, end));
+        }
+        long lastReceived = 0;
+        long lastReport = start;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.max(1, Math.min(5000, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            long now = System.nanoTime();
+            long receivedNow = received.sum();
+            System.out.printf("  %4.0f s: sent %d, received %d (%.0f msg/s), p99 %d us, errors %d%n",
+                    (now - start) / 1e9, sent.sum(), receivedNow,
+                    (receivedNow - lastReceived) * 1e9 / (now - lastReport), latency.percentile(99), errors.sum());
+            lastReceived = receivedNow;
+            lastReport = now;
+        }
+        sending = false;
+        // Даём доставить сообщения, отправленные в последние секунды.
+        Thread.sleep(2000);
+        report(durationSeconds);
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Держит сессии открытыми {@code duration} секунд и сравнивает память сервера с замером до подключения.
+     * Куча считается по {@code jvm_heap_after_gc_bytes}, если после подключения сессий была сборка мусора,
+     * иначе по занятой куче, в которой есть и мусор, — тогда число на соединение завышено.
+     */
+    private void idle(ServerStats before) throws InterruptedException {
+        ServerStats connected = ServerStats.fetch(metrics);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.max(1, Math.min(5000, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            ServerStats now = ServerStats.fetch(metrics);
+            System.out.printf("  online %d, server heap after GC %s, RSS %s%n", countOnline(),
+                    megabytes(now == null ? 0 : now.heapAfterGc()), megabytes(now == null ? 0 : now.resident()));
+        }
+        ServerStats after = ServerStats.fetch(metrics);
+        long online = countOnline();
+        System.out.println("-------------------");
+        System.out.printf("Idle sessions:  %d of %d online for %d s%n", online, sessionCount, durationSeconds);
+        printErrors();
+        if (before == null || connected == null || after == null || online == 0) {
+            System.out.println("Server memory:  metrics unavailable at " + metrics);
+            return;
+        }
+        boolean collected = before.heapAfterGc() > 0 && after.collections() > connected.collections();
+        long heapBefore = collected ? before.heapAfterGc() : before.heapUsed();
+        long heapAfter = collected ? after.heapAfterGc() : after.heapUsed();
+        System.out.printf("Server heap:    %s -> %s, %.1f KB per session%s%n", megabytes(heapBefore), megabytes(heapAfter),
+                (heapAfter - heapBefore) / 1024.0 / online,
+                collected ? " (after GC)" : " (used heap, no GC after the sessions connected: upper bound)");
+        if (after.resident() > 0) {
+            System.out.printf("Server RSS:     %s -> %s, %.1f KB per session%n", megabytes(before.resident()),
+                    megabytes(after.resident()), (after.resident() - before.resident()) / 1024.0 / online);
+        }
+        System.out.printf("Server threads: %d -> %d%n", before.threads(), after.threads());
+    }
+
+    private long countOnline() {
+        return sessions.stream().filter(session -> session.online).count();
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / 1048576.0);
+    }
+
+    /**
+     * Память и потоки сервера по его эндпоинту метрик.
+     */
+    private record ServerStats(long heapUsed, long heapAfterGc, long resident, long threads, long collections) {
+
+        private static final HttpClient HTTP = HttpClient.newHttpClient();
+
+        /**
+         * @return значения метрик или {@code null}, если эндпоинт недоступен
+         */
+        static ServerStats fetch(String url) {
+            try {
+                String body = HTTP.send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofString()).body();
+                List<String> lines = body.lines().filter(line -> !line.startsWith("#")).toList();
+                return new ServerStats(value(lines, "jvm_heap_used_bytes "::equals), value(lines, "jvm_heap_after_gc_bytes "::equals),
+                        value(lines, "process_resident_memory_bytes "::equals), value(lines, "jvm_threads "::equals),
+                        value(lines, name -> name.startsWith("jvm_gc_collections_total{")));
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Metrics error: " + e.getMessage());
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        /**
+         * Сумма значений строк, имя которых (вместе с метками и пробелом) подходит под {@code name}.
+         */
+        private static long value(List<String> lines, Predicate<String> name) {
+            long sum = 0;
+            for (String line : lines) {
+                int space = line.lastIndexOf(' ');
+                if (space > 0 && name.test(line.substring(0, space + 1))) {
+                    sum += (long) Double.parseDouble(line.substring(space + 1));
+                }
+            }
+            return sum;
+        }
+    }
+
+    private void report(double seconds) {
+        System.out.println("-------------------");
+        System.out.printf("Sent:         %d (%.0f msg/s)%n", sent.sum(), sent.sum() / seconds);
+        System.out.printf("Acknowledged: %d%n", acknowledged.sum());
+        System.out.printf("Received:     %d (%.0f msg/s)%n", received.sum(), received.sum() / seconds);
+        System.out.printf("Latency us:   p50 %d, p99 %d, p999 %d, max %d%n",
+                latency.percentile(50), latency.percentile(99), latency.percentile(99.9), latency.max());
+        printErrors();
+    }
+
+    private void printErrors() {
+        System.out.println("Errors:       " + errors.sum());
+        errorLines.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                .limit(10)
+                .forEach(entry -> System.out.println("  " + entry.getValue().sum() + " x " + entry.getKey()));
+    }
+
+    private void error(String line) {
+        errors.increment();
+        if (errorLines.size() < 100 || errorLines.containsKey(line)) {
+            errorLines.computeIfAbsent(line, key -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Одно соединение с сервером: вход, чтение доставок и отправка по расписанию.
+     */
+    private final class Session {
+
+        private final String login;
+        private final String host;
+        private final CountDownLatch ready;
+        private Socket socket;
+        private PrintWriter out;
+        private volatile boolean online;
+
+        Session(String login, String host, CountDownLatch ready) {
+            this.login = login;
+            this.host = host;
+            this.ready = ready;
+        }
+
+        /**
+         * Подключается, регистрируется или входит, затем читает строки сервера до закрытия соединения.
+         */
+        void open() {
+            try {
+                int colon = host.lastIndexOf(':');
+                socket = new Socket(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1)));
+                socket.setTcpNoDelay(true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                if (!authenticate(in)) {
+                    ready.countDown();
+                    close();
+                    return;
+                }
+                if (mode.equals("channel")) {
+                    out.println("/join " + channel);
+                }
+                online = true;
+                ready.countDown();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    handle(line);
+                }
+                if (sending) {
+                    error("Connection closed by server");
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!online) {
+                    ready.countDown();
+                }
+                if (sending || !online) {
+                    error("Connection error: " + e.getMessage());
+                }
+            } finally {
+                online = false;
+            }
+        }
+
+        private boolean authenticate(BufferedReader in) throws IOException {
+            String command = "/register ";
+            for (int attempt = 0; attempt < 20; attempt++) {
+                out.println(command + login + " " + password);
+                String reply = in.readLine();
+                if (reply == null) {
+                    error("Connection closed during login");
+                    return false;
+                }
+                switch (reply) {
+                    case "Registration successful", "Welcome!" -> {
+                        return true;
+                    }
+                    case "Login already taken" -> command = "/login ";
+                    case "Server is busy, please try again later" ->
+                            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100 + ThreadLocalRandom.current().nextInt(400)));
+                    default -> {
+                        error("Login failed: " + reply);
+                        return false;
+                    }
+                }
+            }
+            error("Login failed: server stayed busy");
+            return false;
+        }
+
+        private void handle(String line) {
+            if (line.equals(FrameCodec.PING_TEXT)) {
+                out.println(FrameCodec.PONG_TEXT);
+                return;
+            }
+            int stamp = line.indexOf(": " + STAMP);
+            if (stamp >= 0) {
+                int from = stamp + 2 + STAMP.length();
+                int to = line.indexOf(' ', from);
+                try {
+                    long sentAt = Long.parseLong(line, from, to < 0 ? line.length() : to, 10);
+                    if (sentAt < createdAt) {
+                        // Оффлайн-сообщение, оставшееся от предыдущего запуска.
+                        return;
+                    }
+                    latency.record((System.nanoTime() - sentAt) / 1000);
+                    received.increment();
+                    return;
+                } catch (NumberFormatException e) {
+                    // Не наше сообщение, например старое оффлайн-сообщение в другом формате.
+                }
+            }
+            if (line.equals("Successful")) {
+                acknowledged.increment();
+            } else if (sending && !line.startsWith("Joined channel") && !line.startsWith("You are already a member")) {
+                error(line);
+            }
+        }
+
+        /**
+         * Отправляет сообщения через равные промежутки со случайным сдвигом начала,
+         * чтобы сессии не отправляли одновременно.
+         */
+        void sendLoop(List<Session> targets, long start, long intervalNanos, long end) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long next = start + (intervalNanos > 0 ? random.nextLong(intervalNanos) : 0);
+            while (sending && online) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    return;
+                }
+                if (next > now) {
+                    LockSupport.parkNanos(next - now);
+                }
+                String command;
+                if (mode.equals("channel")) {
+                    command = "/gmsg " + channel + " ";
+                } else {
+                    Session target = targets.get(random.nextInt(targets.size()));
+                    if (target == this) {
+                        continue;
+                    }
+                    command = "/msg " + target.login + " ";
+                }
+                out.println(command + STAMP + System.nanoTime() + " " + padding);
+                sent.increment();
+                next += intervalNanos;
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    out.println("/exit");
+                    socket.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -1,26 +1,65 @@
 package client;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import protocol.FrameCodec;
+import protocol.FrameInflater;
 
 /**
  * Класс для чтения сообщений от сервера.
- * Работает в отдельном потоке.
+ * Работает в отдельном потоке и сам отвечает на ping сервера, не показывая его пользователю.
+ * Сжатые кадры сервера ({@link FrameCodec#DEFLATE}) распаковываются {@link FrameInflater}.
+ * Получение личных сообщений ({@link FrameCodec#DELIVER}) подтверждается кадрами {@link FrameCodec#ACK},
+ * которые отправляются одной записью, когда прочитано всё, что уже пришло. Сообщение, отправленное
+ * сервером повторно (подтверждение не дошло до него), второй раз не показывается.
  */
 public class MessageRead extends Thread{
 
     private static final Logger logger = LogManager.getLogger(MessageRead.class);
+    /** Сколько последних ID показанных сообщений помнить, чтобы не показать повторную доставку. */
+    private static final int SHOWN_IDS = 4096;
 
     private BufferedReader in;
+    private PrintWriter out;
+    private DataInputStream frameIn;
+    private DataOutputStream frameOut;
+    private final ByteArrayOutputStream acks = new ByteArrayOutputStream();
+    private final Set<Long> shown = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > SHOWN_IDS;
+        }
+    });
 
     /**
      * Создаёт поток для чтения сообщений.
      * @param in BufferedReader для чтения от сервера
+     * @param out PrintWriter для ответа на ping
      */
-    public MessageRead(BufferedReader in) {
+    public MessageRead(BufferedReader in, PrintWriter out) {
         this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Создаёт поток для чтения кадров двоичного протокола.
+     * @param frameIn поток кадров от сервера
+     * @param frameOut поток кадров на сервер для ответа на ping; запись синхронизируется по нему
+     */
+    public MessageRead(DataInputStream frameIn, DataOutputStream frameOut) {
+        this.frameIn = frameIn;
+        this.frameOut = frameOut;
     }
 
     /**
@@ -29,13 +68,87 @@ public class MessageRead extends Thread{
      */
     public void run() {
         try {
+            if (frameIn != null) {
+                readFrames();
+                return;
+            }
             String message;
             while ((message = in.readLine()) != null){
+                if (message.equals(FrameCodec.PING_TEXT)) {
+                    out.println(FrameCodec.PONG_TEXT);
+                    continue;
+                }
                 System.out.println(message);
             }
         }catch (IOException e){
             if (!"Socket closed".equals(e.getMessage())) {
-                logger.error("Message reading error: " + e.getMessage());
+                logger.error("Message reading error: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Читает кадры от сервера и выводит строки ответов на консоль.
+     * @throws IOException при ошибке чтения
+     */
+    private void readFrames() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(4096);
+        ByteBuffer inner = ByteBuffer.allocate(4096);
+        FrameInflater inflater = null;
+        try {
+            while ((frame = FrameCodec.readFrame(frameIn, frame)) != null) {
+                if (frame.get(0) != FrameCodec.DEFLATE) {
+                    handleFrame(frame);
+                } else {
+                    if (inflater == null) {
+                        inflater = new FrameInflater();
+                    }
+                    frame.get();
+                    inflater.feed(frame);
+                    ByteBuffer next;
+                    while ((next = inflater.next(inner)) != null) {
+                        inner = next;
+                        handleFrame(inner);
+                    }
+                }
+                if (acks.size() > 0 && frameIn.available() == 0) {
+                    synchronized (frameOut) {
+                        acks.writeTo(frameOut);
+                        frameOut.flush();
+                    }
+                    acks.reset();
+                }
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Обрабатывает один кадр сервера.
+     * @param frame буфер кадра, позиция которого указывает на код операции
+     * @throws IOException при ошибке ответа на ping
+     */
+    private void handleFrame(ByteBuffer frame) throws IOException {
+        byte opcode = frame.get();
+        if (opcode == FrameCodec.TEXT) {
+            System.out.println(FrameCodec.getString(frame));
+        } else if (opcode == FrameCodec.DELIVER) {
+            long id = frame.getLong();
+            String sender = FrameCodec.getString(frame);
+            String message = FrameCodec.getString(frame);
+            if (shown.add(id)) {
+                System.out.println("From " + sender + ": " + message);
+            }
+            acks.write(FrameCodec.encode(FrameCodec.ACK, id));
+        } else if (opcode == FrameCodec.ACCEPTED) {
+            System.out.println("Successful");
+        } else if (opcode == FrameCodec.PING) {
+            synchronized (frameOut) {
+                frameOut.write(FrameCodec.encode(FrameCodec.PONG));
+                frameOut.flush();
             }
         }
     }
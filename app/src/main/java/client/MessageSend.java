@@ -1,11 +1,13 @@
 package client;
 
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import protocol.FrameCodec;
 
 /**
  * Класс для отправки сообщений на сервер.
@@ -17,7 +19,10 @@ public class MessageSend extends Thread{
 
     private BufferedReader inputReader;
     private PrintWriter out;
+    private DataOutputStream frameOut;
     private Socket soc;
+    /** ID сообщений растут и между запусками клиента: по ним сервер отсеивает повторные отправки. */
+    private long nextMessageId = System.currentTimeMillis() * 1000;
 
     /**
      * Создаёт поток для отправки сообщений.
@@ -31,6 +36,18 @@ public class MessageSend extends Thread{
         this.soc = soc;
     }
 
+    /**
+     * Создаёт поток для отправки команд кадрами двоичного протокола.
+     * @param frameOut поток кадров на сервер
+     * @param inputReader BufferedReader для чтения сообщений с консоли
+     * @param soc сокет соединения
+     */
+    public MessageSend(DataOutputStream frameOut, BufferedReader inputReader, Socket soc){
+        this.frameOut = frameOut;
+        this.inputReader = inputReader;
+        this.soc = soc;
+    }
+
     /**
      * Основной метод потока.
      * Читает сообщения с консоли и отправляет на сервер.
@@ -39,6 +56,17 @@ public class MessageSend extends Thread{
         try {
             String message;
             while ((message = inputReader.readLine()) != null) {
+                if (frameOut != null) {
+                    synchronized (frameOut) {
+                        frameOut.write(toFrame(message));
+                        frameOut.flush();
+                    }
+                    if (message.equals("/exit")) {
+                        soc.close();
+                        break;
+                    }
+                    continue;
+                }
                 if (message.equals("/exit")){
                     out.println(message);
                     soc.close();
@@ -47,7 +75,53 @@ public class MessageSend extends Thread{
                 out.println(message);
             }
         } catch (IOException e){
-            logger.error("Message sending error: " + e.getMessage());
+            logger.error("Message sending error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Превращает введённую команду в кадр двоичного протокола.
+     * Команды, для которых нет отдельного кода операции, передаются кадром {@link FrameCodec#COMMAND}.
+     * @param message строка, введённая пользователем
+     * @return кадр
+     */
+    private byte[] toFrame(String message) {
+        String[] parts = message.split(" ", 3);
+        try {
+            switch (parts[0]) {
+                case "/exit":
+                    return FrameCodec.encode(FrameCodec.EXIT);
+                case "/register":
+                case "/login":
+                    if (parts.length == 3) {
+                        byte opcode = parts[0].equals("/login") ? FrameCodec.LOGIN : FrameCodec.REGISTER;
+                        return FrameCodec.encode(opcode, parts[1], parts[2]);
+                    }
+                    break;
+                case "/msg":
+                    if (parts.length == 3) {
+                        return FrameCodec.encode(FrameCodec.MESSAGE, nextMessageId++, parts[1], parts[2]);
+                    }
+                    break;
+                case "/gmsg":
+                    if (parts.length == 3) {
+                        return FrameCodec.encode(FrameCodec.GROUP_MESSAGE, parts[1], parts[2]);
+                    }
+                    break;
+                case "/history":
+                    String[] history = message.split(" ", 4);
+                    if (history.length >= 2) {
+                        int limit = history.length > 2 ? Integer.parseInt(history[2]) : 0;
+                        long beforeId = history.length > 3 ? Long.parseLong(history[3]) : 0;
+                        return FrameCodec.encode(FrameCodec.HISTORY, history[1], limit, beforeId);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException e) {
+            // Сервер сам ответит на неверную команду.
         }
+        return FrameCodec.encode(FrameCodec.COMMAND, message);
     }
 }
@@ -0,0 +1,181 @@
+package protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Кодирование кадров двоичного протокола, общего для клиента и сервера.
+ * <p>
+ * Кадр: длина (int, big-endian, без учёта самого поля длины), код операции (byte) и поля.
+ * Строка кодируется как длина в байтах (int) и байты UTF-8, поэтому может содержать переводы строк.
+ * Чтение идёт в переиспользуемый {@link ByteBuffer}: строки создаются прямо из его массива,
+ * без промежуточного разбиения текста.
+ */
+public final class FrameCodec {
+
+    /** Регистрация: логин, пароль. */
+    public static final byte REGISTER = 1;
+    /** Вход: логин, пароль. */
+    public static final byte LOGIN = 2;
+    /** Сообщение: ID сообщения клиента (long), получатель, текст. */
+    public static final byte MESSAGE = 3;
+    /** История: пользователь, размер страницы (int, 0 — по умолчанию), курсор ID (long, 0 — с последних). */
+    public static final byte HISTORY = 4;
+    /** Завершение соединения, без полей. */
+    public static final byte EXIT = 5;
+    /** Произвольная текстовая команда в том же виде, что и в текстовом протоколе. */
+    public static final byte COMMAND = 6;
+    /** Сообщение канала: канал, текст. */
+    public static final byte GROUP_MESSAGE = 7;
+    /** Проверка соединения, без полей. Получатель отвечает кадром {@link #PONG}. */
+    public static final byte PING = 8;
+    /** Ответ на {@link #PING}, без полей. */
+    public static final byte PONG = 9;
+    /** Подтверждение получения сообщения {@link #DELIVER}: ID сообщения (long). */
+    public static final byte ACK = 10;
+    /** Строка ответа сервера. */
+    public static final byte TEXT = 16;
+    /**
+     * Часть сжатого потока кадров сервера, см. {@link FrameDeflater}. Поле одно — байты deflate до конца кадра.
+     * Отправляется только клиенту, который запросил параметр {@link #OPTION_DEFLATE}.
+     */
+    public static final byte DEFLATE = 17;
+    /**
+     * Личное сообщение для клиента с параметром {@link #OPTION_ACK}: ID сообщения на сервере (long), отправитель, текст.
+     * Клиент отвечает кадром {@link #ACK}; неподтверждённое сообщение отправляется снова при следующем входе.
+     */
+    public static final byte DELIVER = 18;
+    /** Сообщение принято сервером: ID сообщения клиента (long), ID сообщения на сервере (long). */
+    public static final byte ACCEPTED = 19;
+
+    /**
+     * Строка, которой клиент просит сервер перейти на двоичный протокол.
+     * Через пробел можно перечислить параметры соединения, например {@code /binary ack deflate}.
+     */
+    public static final String HANDSHAKE = "/binary";
+    /**
+     * Ответ сервера, после которого обе стороны общаются кадрами.
+     * Через пробел за ним следуют параметры, которые сервер принял.
+     */
+    public static final String HANDSHAKE_OK = "OK binary";
+    /** Параметр соединения: сервер сжимает крупные пачки кадров, см. {@link #DEFLATE}. */
+    public static final String OPTION_DEFLATE = "deflate";
+    /**
+     * Параметр соединения: клиент подтверждает получение личных сообщений ({@link #DELIVER}, {@link #ACK}),
+     * а его ID сообщений уникальны и между запусками, поэтому повторная отправка с тем же ID не дублирует сообщение.
+     */
+    public static final String OPTION_ACK = "ack";
+    /** Проверка соединения в текстовом протоколе. Получатель отвечает строкой {@link #PONG_TEXT}. */
+    public static final String PING_TEXT = "/ping";
+    /** Ответ на {@link #PING_TEXT}. */
+    public static final String PONG_TEXT = "/pong";
+
+    /** Максимальная длина кадра в байтах. */
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Кодирует кадр с полями типов {@link String}, {@link Integer} и {@link Long}.
+     *
+     * @param opcode код операции
+     * @param fields поля кадра по порядку
+     * @return кадр вместе с полем длины
+     */
+    public static byte[] encode(byte opcode, Object... fields) {
+        byte[][] strings = new byte[fields.length][];
+        int length = 1;
+        for (int i = 0; i < fields.length; i++) {
+            Object field = fields[i];
+            if (field instanceof String string) {
+                strings[i] = string.getBytes(StandardCharsets.UTF_8);
+                length += 4 + strings[i].length;
+            } else if (field instanceof Integer) {
+                length += 4;
+            } else if (field instanceof Long) {
+                length += 8;
+            } else {
+                throw new IllegalArgumentException("Unsupported frame field: " + field);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length);
+        buffer.put(opcode);
+        for (int i = 0; i < fields.length; i++) {
+            Object field = fields[i];
+            if (strings[i] != null) {
+                buffer.putInt(strings[i].length);
+                buffer.put(strings[i]);
+            } else if (field instanceof Integer value) {
+                buffer.putInt(value);
+            } else {
+                buffer.putLong((Long) field);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Кодирует строку ответа сервера.
+     *
+     * @param line строка
+     * @return кадр {@link #TEXT}
+     */
+    public static byte[] encodeText(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 4 + bytes.length);
+        buffer.putInt(1 + 4 + bytes.length);
+        buffer.put(TEXT);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+        return buffer.array();
+    }
+
+    /**
+     * Читает следующий кадр из потока.
+     * Буфер переиспользуется и заменяется большим, только если кадр в него не помещается.
+     *
+     * @param in поток
+     * @param buffer буфер с массивом, в который читается кадр
+     * @return буфер, позиция которого указывает на код операции, или {@code null}, если поток закончился
+     * @throws IOException при ошибке чтения или недопустимой длине кадра
+     */
+    public static ByteBuffer readFrame(DataInputStream in, ByteBuffer buffer) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        in.readFully(buffer.array(), 0, length);
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /**
+     * Читает строковое поле кадра.
+     *
+     * @param buffer буфер кадра
+     * @return строка
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
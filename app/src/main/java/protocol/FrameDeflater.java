@@ -0,0 +1,89 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Сжатие исходящих кадров одного соединения.
+ * <p>
+ * Все кадры соединения сжимаются одним потоком deflate, поэтому словарь общий: повторяющиеся
+ * имена, даты и префиксы строк истории кодируются ссылками на уже отправленные данные.
+ * После каждой пачки выполняется {@link Deflater#SYNC_FLUSH}: получатель может сразу развернуть
+ * всё отправленное, не дожидаясь следующих данных. Сжатые байты уходят кадрами {@link FrameCodec#DEFLATE},
+ * а пачки меньше порога отправляются обычными кадрами — для одного короткого сообщения
+ * заголовок deflate и сброс длиннее, чем сэкономленное.
+ * <p>
+ * Класс не потокобезопасен: вызывающий синхронизирует запись в поток соединения.
+ */
+public final class FrameDeflater {
+
+    /** Заголовок кадра: длина и код операции. */
+    private static final int HEADER = 5;
+
+    private final Deflater deflater;
+    private final int minBytes;
+    private final byte[] buffer = new byte[16 * 1024];
+
+    /**
+     * @param level уровень сжатия от 1 (быстрее) до 9 (плотнее)
+     * @param minBytes пачки короче этого числа байт не сжимаются
+     */
+    public FrameDeflater(int level, int minBytes) {
+        this.deflater = new Deflater(level);
+        this.minBytes = minBytes;
+    }
+
+    /**
+     * @param length размер пачки кадров в байтах
+     * @return true, если пачка такого размера будет сжата
+     */
+    public boolean compresses(int length) {
+        return length >= minBytes;
+    }
+
+    /**
+     * Записывает пачку готовых кадров: сжатой, если она не меньше порога, иначе как есть.
+     * Поток не сбрасывается.
+     *
+     * @param frames кадры вместе с полями длины
+     * @param offset начало пачки в массиве
+     * @param length размер пачки в байтах
+     * @param out поток соединения
+     * @return сколько байт записано в поток
+     * @throws IOException при ошибке записи
+     */
+    public int write(byte[] frames, int offset, int length, OutputStream out) throws IOException {
+        if (!compresses(length)) {
+            out.write(frames, offset, length);
+            return length;
+        }
+        deflater.setInput(frames, offset, length);
+        int written = 0;
+        int space = buffer.length - HEADER;
+        while (true) {
+            int count = deflater.deflate(buffer, HEADER, space, Deflater.SYNC_FLUSH);
+            if (count > 0) {
+                int frameLength = 1 + count;
+                buffer[0] = (byte) (frameLength >>> 24);
+                buffer[1] = (byte) (frameLength >>> 16);
+                buffer[2] = (byte) (frameLength >>> 8);
+                buffer[3] = (byte) frameLength;
+                buffer[4] = FrameCodec.DEFLATE;
+                out.write(buffer, 0, HEADER + count);
+                written += HEADER + count;
+            }
+            // Буфер заполнен не до конца — всё сжато и сброшено.
+            if (count < space) {
+                return written;
+            }
+        }
+    }
+
+    /**
+     * Освобождает память deflate. После вызова сжимать нельзя.
+     */
+    public void end() {
+        deflater.end();
+    }
+}
@@ -0,0 +1,105 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Распаковка кадров {@link FrameCodec#DEFLATE}, которые отправляет {@link FrameDeflater}.
+ * <p>
+ * Кадры DEFLATE одного соединения — это части одного потока deflate, поэтому распаковываются
+ * одним {@link Inflater} по порядку. Развёрнутые байты — обычные кадры; кадр, который
+ * не уместился в одну часть, дожидается следующей.
+ * <p>
+ * Класс не потокобезопасен: им пользуется один поток чтения.
+ */
+public final class FrameInflater {
+
+    private final Inflater inflater = new Inflater();
+    private byte[] data = new byte[16 * 1024];
+    private int start;
+    private int end;
+
+    /**
+     * Распаковывает содержимое кадра {@link FrameCodec#DEFLATE}.
+     *
+     * @param frame буфер кадра, позиция которого стоит сразу после кода операции
+     * @throws IOException если данные не являются потоком deflate
+     */
+    public void feed(ByteBuffer frame) throws IOException {
+        inflater.setInput(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        frame.position(frame.limit());
+        try {
+            while (true) {
+                if (end == data.length) {
+                    makeRoom();
+                }
+                int count = inflater.inflate(data, end, data.length - end);
+                end += count;
+                if (count == 0 && (inflater.needsInput() || inflater.finished())) {
+                    return;
+                }
+                if (count == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Unexpected deflate dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflate data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Возвращает следующий полностью распакованный кадр.
+     * Буфер переиспользуется так же, как в {@link FrameCodec#readFrame}.
+     *
+     * @param buffer буфер, в который копируется кадр
+     * @return буфер, позиция которого указывает на код операции, или {@code null}, если полного кадра ещё нет
+     * @throws IOException при недопустимой длине кадра
+     */
+    public ByteBuffer next(ByteBuffer buffer) throws IOException {
+        if (end - start < 4) {
+            return null;
+        }
+        int length = ((data[start] & 0xff) << 24) | ((data[start + 1] & 0xff) << 16)
+                | ((data[start + 2] & 0xff) << 8) | (data[start + 3] & 0xff);
+        if (length < 1 || length > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if (end - start - 4 < length) {
+            return null;
+        }
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        buffer.put(data, start + 4, length);
+        buffer.flip();
+        start += 4 + length;
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+        return buffer;
+    }
+
+    /**
+     * Освобождает память inflate.
+     */
+    public void end() {
+        inflater.end();
+    }
+
+    /** Сдвигает неразобранные байты в начало массива, а если он занят целиком — увеличивает его. */
+    private void makeRoom() {
+        if (start > 0) {
+            System.arraycopy(data, start, data, 0, end - start);
+            end -= start;
+            start = 0;
+        } else {
+            byte[] larger = new byte[data.length * 2];
+            System.arraycopy(data, 0, larger, 0, end);
+            data = larger;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Отдельный ограниченный пул потоков для регистрации и входа.
+ * <p>
+ * Хэширование пароля занимает десятки миллисекунд процессора, поэтому
+ * при массовом входе после перезапуска оно выполняется не более чем в
+ * {@code messenger.auth.threads} потоках, а остальные ядра продолжают доставлять сообщения.
+ * Если очередь заявок переполнена, новая заявка сразу отклоняется.
+ */
+public final class AuthExecutor {
+
+    private static final Logger logger = LogManager.getLogger(AuthExecutor.class);
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            ServerConfig.AUTH_THREADS, ServerConfig.AUTH_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(ServerConfig.AUTH_QUEUE),
+            Thread.ofPlatform().name("auth-", 0).daemon(true).factory(),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    private static final LongAdder submittedCount = new LongAdder();
+    private static final LongAdder rejectedCount = new LongAdder();
+    private static final LongAdder queueWaitNanos = new LongAdder();
+    private static final LatencyTimer latency = Metrics.timer("messenger_auth_seconds", "",
+            "Registration and login time including the queue");
+
+    private AuthExecutor() {
+    }
+
+    /**
+     * Выполняет проверку в пуле аутентификации и ждёт результат.
+     *
+     * @param task проверка, например регистрация или вход
+     * @return результат проверки, или false, если проверка завершилась ошибкой
+     * @throws RejectedExecutionException если очередь заявок переполнена
+     */
+    public static boolean run(BooleanSupplier task) {
+        long queuedAt = System.nanoTime();
+        Future<Boolean> future;
+        try {
+            future = executor.submit(() -> {
+                queueWaitNanos.add(System.nanoTime() - queuedAt);
+                return task.getAsBoolean();
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            throw e;
+        }
+        submittedCount.increment();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return false;
+        } catch (ExecutionException e) {
+            logger.error("Authentication error: {}", e.getCause());
+            return false;
+        } finally {
+            latency.record(queuedAt);
+        }
+    }
+
+    /**
+     * Останавливает пул, дожидаясь начатых проверок.
+     */
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    /** @return сколько заявок принято в пул */
+    public static long getSubmittedCount() {
+        return submittedCount.sum();
+    }
+
+    /** @return сколько заявок отклонено из-за переполненной очереди */
+    public static long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /** @return суммарное время ожидания заявок в очереди в наносекундах */
+    public static long getQueueWaitNanos() {
+        return queueWaitNanos.sum();
+    }
+
+    /** @return количество заявок в очереди в данный момент */
+    public static int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /** @return количество потоков, занятых проверкой в данный момент */
+    public static int getActiveCount() {
+        return executor.getActiveCount();
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.nio.ByteBuffer;
+import protocol.FrameCodec;
+
+/**
+ * Разбор кадров двоичного протокола, см. {@link FrameCodec}.
+ * Поля читаются прямо из буфера кадра, без разбиения строк.
+ */
+final class BinaryProtocol {
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Разбирает кадр и вызывает соответствующий метод обработчика.
+     *
+     * @param frame буфер кадра, позиция указывает на код операции
+     * @param handler обработчик команд
+     * @return {@code false}, если соединение нужно закрыть
+     */
+    static boolean dispatch(ByteBuffer frame, CommandHandler handler) {
+        byte opcode = frame.get();
+        switch (opcode) {
+            case FrameCodec.REGISTER -> handler.register(FrameCodec.getString(frame), FrameCodec.getString(frame));
+            case FrameCodec.LOGIN -> handler.login(FrameCodec.getString(frame), FrameCodec.getString(frame));
+            case FrameCodec.MESSAGE -> {
+                long clientMessageId = frame.getLong();
+                handler.message(clientMessageId, FrameCodec.getString(frame), FrameCodec.getString(frame));
+            }
+            case FrameCodec.HISTORY -> {
+                String user = FrameCodec.getString(frame);
+                int limit = frame.getInt();
+                handler.history(user, limit, frame.getLong());
+            }
+            case FrameCodec.GROUP_MESSAGE -> handler.groupMessage(FrameCodec.getString(frame), FrameCodec.getString(frame));
+            case FrameCodec.COMMAND -> {
+                return TextProtocol.dispatch(FrameCodec.getString(frame), handler);
+            }
+            case FrameCodec.ACK -> handler.ack(frame.getLong());
+            case FrameCodec.PING -> handler.pong();
+            case FrameCodec.PONG -> {
+                // Активность уже отмечена, ответ на ping ничего не делает.
+            }
+            case FrameCodec.EXIT -> {
+                return false;
+            }
+            default -> handler.reply("Enter the correct command");
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Индекс участников каналов в памяти.
+ * <p>
+ * Состав каналов хранится в таблице ChannelMembers и загружается при старте сервера,
+ * после чего рассылка сообщения канала не обращается к базе за списком участников.
+ */
+public class Channels {
+
+    private static final Map<String, Set<String>> members = new ConcurrentHashMap<>();
+
+    /**
+     * Загружает состав всех каналов из базы данных.
+     */
+    public static void load(){
+        DataBase.loadChannelMembers(Channels::addMember);
+    }
+
+    /**
+     * Добавляет пользователя в канал.
+     * @param channel канал
+     * @param login логин пользователя
+     */
+    public static void addMember(String channel, String login){
+        members.computeIfAbsent(channel, key -> ConcurrentHashMap.newKeySet()).add(login);
+    }
+
+    /**
+     * Удаляет пользователя из канала.
+     * @param channel канал
+     * @param login логин пользователя
+     */
+    public static void removeMember(String channel, String login){
+        Set<String> channelMembers = members.get(channel);
+        if (channelMembers != null) {
+            channelMembers.remove(login);
+        }
+    }
+
+    /**
+     * Проверяет, состоит ли пользователь в канале.
+     * @param channel канал
+     * @param login логин пользователя
+     * @return true, если пользователь — участник канала
+     */
+    public static boolean isMember(String channel, String login){
+        Set<String> channelMembers = members.get(channel);
+        return channelMembers != null && channelMembers.contains(login);
+    }
+
+    /**
+     * Возвращает участников канала.
+     * @param channel канал
+     * @return множество логинов, пустое, если канала нет
+     */
+    public static Set<String> getMembers(String channel){
+        return members.getOrDefault(channel, Set.of());
+    }
+}
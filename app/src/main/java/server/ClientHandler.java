@@ -2,10 +2,29 @@ package server;
 
 import java.net.Socket;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import protocol.FrameCodec;
+import protocol.FrameDeflater;
 
 /**
  * Класс ClientHandler обрабатывает соединение с одним клиентом.
@@ -13,16 +32,86 @@ import org.apache.logging.log4j.Logger;
  * Отвечает за регистрацию, вход в систему, отправку и получение сообщений,
  * а также управление историей сообщений и активными пользователями.
  * Логирование действий происходит через Log4j2.
+ * <p>
+ * Для блокирующих движков обработчик запускается в своём потоке и сам читает строки из сокета,
+ * для движка {@link NioConnectionEngine} строки передаются в {@link #handleCommand(String)} из event loop.
+ * Команды разбираются {@link TextProtocol} или, после команды {@code /binary}, {@link BinaryProtocol}.
+ * <p>
+ * Сообщения от других пользователей не пишутся в сокет потоком отправителя: они попадают
+ * в ограниченную исходящую очередь соединения, которую разбирает отдельная задача,
+ * отправляя несколько сообщений за одну запись в сокет.
+ * <p>
+ * Простой соединения отслеживает {@link IdleTracker}: каждая входящая команда отмечает активность,
+ * молчащему клиенту отправляется ping, а не ответившее соединение закрывается.
+ * <p>
+ * Частоту входа, сообщений и запросов истории ограничивает {@link RateLimiter} по логину и адресу клиента.
+ * Соединение, которое продолжает слать команды сверх ограничения, закрывается.
+ * <p>
+ * Длинные ответы (оффлайн-сообщения при входе, история, поиск) копятся и отправляются пачками.
+ * Клиент двоичного протокола может запросить сжатие ({@code /binary deflate}): тогда пачки
+ * от {@code messenger.compression.minBytes} байт уходят сжатыми {@link FrameDeflater}.
+ * <p>
+ * Клиент двоичного протокола с параметром {@code ack} подтверждает получение личных сообщений.
+ * Сообщение для него сначала сохраняется недоставленным и только потом отправляется кадром
+ * {@link FrameCodec#DELIVER} с ID; доставленным его отмечает подтверждение клиента, а неподтверждённые
+ * сообщения отправляются снова при следующем входе. Повторная отправка с уже известным ID клиента
+ * не создаёт второе сообщение: отправитель получает ID, сохранённый в первый раз.
  */
-public class ClientHandler extends Thread{
+public class ClientHandler implements Runnable, CommandHandler {
 
     private static final Logger logger = LogManager.getLogger(ClientHandler.class);
 
+    private static final ExecutorService drainExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private static final LongAdder droppedCount = new LongAdder();
+    private static final LongAdder spilledCount = new LongAdder();
+    private static final LongAdder disconnectedCount = new LongAdder();
+    private static final LongAdder messageCount = new LongAdder();
+    private static final LongAdder groupMessageCount = new LongAdder();
+    private static final LongAdder floodClosedCount = new LongAdder();
+    private static final LongAdder compressedConnectionCount = new LongAdder();
+    private static final LongAdder compressionInputBytes = new LongAdder();
+    private static final LongAdder compressionOutputBytes = new LongAdder();
+    private static final LongAdder duplicateCount = new LongAdder();
+    /** Объём накопленных ответов, после которого пачка отправляется, не дожидаясь конца команды. */
+    private static final int BULK_BYTES = 64 * 1024;
+    /**
+     * Запись сообщения канала вместе с прямой доставкой (чтение) не пересекается со входом пользователя (запись),
+     * см. {@link DataBase#deliverChannelBacklog}.
+     */
+    private static final ReentrantReadWriteLock channelDelivery = new ReentrantReadWriteLock();
+    private static final Payload PING = new Payload(FrameCodec.PING_TEXT, FrameCodec.encode(FrameCodec.PING));
+
     Socket soc;
+    SocketChannel channel;
     String login = null;
     PrintWriter out = null;
     BufferedReader in = null;
-    private boolean authenticated = false;
+    private DataOutputStream binaryOut = null;
+    /** Сжатие кадров, если клиент его запросил; используется под блокировкой {@code binaryOut}. */
+    private FrameDeflater deflater;
+    /** Пачка кадров ответа в двоичном протоколе; меняется только потоком команд соединения. */
+    private Bulk bulk;
+    /** Пачка строк ответа в текстовом протоколе; меняется только потоком команд соединения. */
+    private StringBuilder bulkText;
+    private boolean bulkFailed;
+    private volatile boolean binary = false;
+    /** Клиент подтверждает получение личных сообщений; читается потоками отправителей. */
+    private volatile boolean acks = false;
+    /** Последние ID клиента и ID сохранённых по ним сообщений; меняется только потоком команд соединения. */
+    private Map<Long, Long> sentIds;
+    private volatile boolean authenticated = false;
+    private final BlockingQueue<Payload> outbound = new ArrayBlockingQueue<>(ServerConfig.OUTBOUND_QUEUE);
+    private final AtomicBoolean draining = new AtomicBoolean();
+    /** Готов ли канал принять следующую пачку; для блокирующего сокета всегда true. */
+    private final BooleanSupplier writable;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeAfterDrain = false;
+    /** Канал — будущий ID первого сообщения, которое не приняла исходящая очередь, см. {@link #stopChannelCursor}. */
+    private final Map<String, CompletableFuture<Long>> channelStops = new ConcurrentHashMap<>();
+    private IdleTracker.Entry idle;
+    private final String address;
+    /** Сколько команд подряд отклонено ограничением частоты; меняется только потоком команд соединения. */
+    private int rejectedInRow;
 
     /**
      * Создаёт новый обработчик клиента с заданным сокетом.
@@ -31,6 +120,36 @@ public class ClientHandler extends Thread{
      */
     public ClientHandler(Socket soc){
         this.soc = soc;
+        this.writable = () -> true;
+        this.address = soc.getInetAddress() != null ? soc.getInetAddress().getHostAddress() : null;
+    }
+
+    /**
+     * Создаёт обработчик для неблокирующего канала.
+     * Ответы клиенту пишутся в {@code writer}, входящие строки передаются через {@link #handleCommand(String)}.
+     *
+     * @param channel канал клиента
+     * @param writer писатель, ставящий ответы в очередь записи канала
+     */
+    ClientHandler(SocketChannel channel, Writer writer){
+        this(channel, writer, () -> true);
+    }
+
+    /**
+     * Создаёт обработчик для неблокирующего канала с ограниченной очередью записи.
+     * Пока {@code writable} возвращает false, исходящие сообщения остаются в очереди обработчика;
+     * канал продолжает разбор вызовом {@link #resumeOutbound()}.
+     *
+     * @param channel канал клиента
+     * @param writer писатель, ставящий ответы в очередь записи канала
+     * @param writable готов ли канал принять следующую пачку
+     */
+    ClientHandler(SocketChannel channel, Writer writer, BooleanSupplier writable){
+        this.channel = channel;
+        this.writable = writable;
+        this.out = new PrintWriter(writer, true);
+        this.address = channel != null && channel.socket().getInetAddress() != null
+                ? channel.socket().getInetAddress().getHostAddress() : null;
     }
 
     /**
@@ -39,184 +158,930 @@ public class ClientHandler extends Thread{
      * @return {@code true}, если сокет закрыт или null, иначе {@code false}
      */
     public boolean isClosed() {
+        if (channel != null) {
+            return !channel.isOpen();
+        }
         return soc == null || soc.isClosed();
     }
 
     /**
-     * Основной метод потока, который запускается при старте ClientHandler.
-     * <p>
-     * Обрабатывает команды клиента:
-     * <ul>
-     *     <li>/register login password — регистрация нового пользователя</li>
-     *     <li>/login login password — вход в систему</li>
-     *     <li>/msg target message — отправка сообщения другому пользователю</li>
-     *     <li>/history user — вывод истории переписки с другим пользователем</li>
-     *     <li>/exit — завершение соединения</li>
-     * </ul>
-     * <p>
-     * Логирование событий:
-     * <ul>
-     *     <li>Подключение клиента</li>
-     *     <li>Регистрация и вход пользователя</li>
-     *     <li>Отправка сообщений</li>
-     *     <li>Ошибки при обработке сообщений</li>
-     * </ul>
+     * Основной метод потока для блокирующих движков.
+     * Читает строки из сокета и передаёт их в {@link #handleCommand(String)}, пока клиент не отключится.
+     * Если клиент перешёл на двоичный протокол, дальше читаются кадры {@link FrameCodec}.
      */
     public void run() {
 
         try {
 
-            logger.info("Connection established");
+            open();
             in = new BufferedReader(new InputStreamReader(soc.getInputStream()));
             out = new PrintWriter(soc.getOutputStream(), true);
 
-            while (true) {
+            while (!binary && handleCommand(in.readLine())) {
+            }
+
+            if (binary) {
+                DataInputStream frameIn = new DataInputStream(new BufferedInputStream(soc.getInputStream()));
+                ByteBuffer frame = ByteBuffer.allocate(4096);
+                while ((frame = FrameCodec.readFrame(frameIn, frame)) != null) {
+                    idle.touch();
+                    if (!BinaryProtocol.dispatch(frame, this)) {
+                        break;
+                    }
+                }
+            }
+
+        }catch (IOException e){
+            // Если сокет закрыли вытеснение или IdleTracker, ошибка чтения ожидаема.
+            if (!closed.get()) {
+                logger.error("Client Handler error: {}", e.getMessage());
+            }
+        }catch (BufferUnderflowException | IllegalArgumentException e){
+            logger.error("Malformed frame from client: {}", e.getMessage());
+        } finally {
+            close();
+        }
+    }
 
-                String string = in.readLine();
+    /**
+     * Отмечает в логе установку соединения и ставит его на отслеживание простоя.
+     */
+    void open() {
+        idle = IdleTracker.track(this);
+        logger.info("Connection established");
+    }
 
-                if (string == null || string.equals("/exit")){
-                    break;
+    /**
+     * Выполняет одну текстовую команду клиента, см. {@link TextProtocol#dispatch(String, CommandHandler)}.
+     *
+     * @param string строка от клиента или {@code null}, если клиент отключился
+     * @return {@code false}, если соединение нужно закрыть
+     */
+    boolean handleCommand(String string) {
+        idle.touch();
+        return TextProtocol.dispatch(string, this);
+    }
+
+    @Override
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * Отправляет клиенту строку ответа: текстом или кадром {@link FrameCodec#TEXT}.
+     *
+     * @param text строка
+     * @return false, если соединение оборвалось
+     */
+    @Override
+    public boolean reply(String text) {
+        if (binary) {
+            return replyFrame(FrameCodec.encodeText(text));
+        }
+        if (bulkText != null) {
+            bulkText.append(text).append(System.lineSeparator());
+            if (bulkText.length() >= BULK_BYTES) {
+                flushBulk();
+            }
+            return !bulkFailed;
+        }
+        out.println(text);
+        return !out.checkError();
+    }
+
+    /**
+     * Отправляет клиенту двоичного протокола кадр ответа, в пачке ответов — вместе с ней.
+     *
+     * @param frame кадр вместе с полем длины
+     * @return false, если соединение оборвалось
+     */
+    private boolean replyFrame(byte[] frame) {
+        if (bulk != null) {
+            bulk.write(frame, 0, frame.length);
+            if (bulk.size() >= BULK_BYTES) {
+                flushBulk();
+            }
+            return !bulkFailed;
+        }
+        return writeFrames(frame, frame.length);
+    }
+
+    /**
+     * Записывает готовые кадры в сокет одной записью, сжимая их, если клиент запросил сжатие
+     * и пачка не меньше порога.
+     *
+     * @param frames кадры вместе с полями длины
+     * @param length сколько байт массива записать
+     * @return false, если соединение оборвалось
+     */
+    private boolean writeFrames(byte[] frames, int length) {
+        synchronized (binaryOut) {
+            try {
+                if (deflater != null && deflater.compresses(length)) {
+                    int written = deflater.write(frames, 0, length, binaryOut);
+                    compressionInputBytes.add(length);
+                    compressionOutputBytes.add(written);
+                } else {
+                    binaryOut.write(frames, 0, length);
                 }
+                binaryOut.flush();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
 
-                if (!authenticated){
+    /**
+     * Начинает пачку ответов: до {@link #endBulk()} строки копятся в памяти и уходят в сокет
+     * одной записью на каждые {@link #BULK_BYTES} байт, а не сбросом на каждую строку.
+     */
+    private void beginBulk() {
+        bulkFailed = false;
+        if (binary) {
+            bulk = new Bulk();
+        } else {
+            bulkText = new StringBuilder();
+        }
+    }
 
-                    if (string.startsWith("/register")) {
-                        String[] comands = string.split(" ", 3);
-                        if (comands.length < 3){
-                            out.println("Please enter your login and password correctly.");
-                            continue;
-                        }
-                        this.login = comands[1];
-                        if (DataBase.registerUser(login, comands[2])){
-                            authenticated = true;
-                            out.println("Registration successful");
-                            Users.setActiveUser(login, this);
-                            logger.info("User registered: " + login);
-                        }
-                        else {
-                            out.println("Login already taken");
-                        }
-                    }
+    /**
+     * Отправляет остаток пачки и возвращает ответы к построчной отправке.
+     */
+    private void endBulk() {
+        flushBulk();
+        bulk = null;
+        bulkText = null;
+    }
 
-                    else if (string.startsWith("/login")) {
-                        String[] comands = string.split(" ", 3);
-                        if (comands.length < 3) {
-                            out.println("Please enter your login and password correctly.");
-                            continue;
-                        }
-                        this.login = comands[1];
-                        if (DataBase.loginUser(login, comands[2])) {
-                            authenticated = true;
-                            out.println("Welcome!");
-                            Users.setActiveUser(login, this);
-                            List<String> offlineMessages = DataBase.getOfflineMessages(login);
-                            for (String item : offlineMessages){out.println(item);}
-                            DataBase.markDeliveredMessages(login);
-                            logger.info("User logged in: " + login);
-                        } else {
-                            out.println("Uncorrected login or password");
-                        }
-                    }
+    private void flushBulk() {
+        if (bulk != null && bulk.size() > 0) {
+            if (!bulkFailed && !writeFrames(bulk.array(), bulk.size())) {
+                bulkFailed = true;
+            }
+            bulk.reset();
+        } else if (bulkText != null && !bulkText.isEmpty()) {
+            if (!bulkFailed) {
+                out.write(bulkText.toString());
+                out.flush();
+                bulkFailed = out.checkError();
+            }
+            bulkText.setLength(0);
+        }
+    }
 
-                    else if(string.startsWith("/msg")) {
-                        out.println("Please register or log in first.");
-                    }
+    /**
+     * Переводит соединение на двоичный протокол.
+     * Ответ {@link FrameCodec#HANDSHAKE_OK} с принятыми параметрами отправляется ещё текстом,
+     * после него клиент шлёт только кадры. Сжатие принимается, если оно разрешено
+     * ({@code messenger.compression.enabled}), подтверждение доставки — всегда.
+     * Движок {@link NioConnectionEngine} поддерживает только текстовый протокол.
+     *
+     * @param options параметры, которые запросил клиент
+     */
+    @Override
+    public void binary(Set<String> options) {
+        if (binary) {
+            return;
+        }
+        if (soc == null) {
+            reply("Binary protocol is not supported by this server");
+            return;
+        }
+        try {
+            binaryOut = new DataOutputStream(new BufferedOutputStream(soc.getOutputStream()));
+        } catch (IOException e) {
+            logger.error("Binary protocol error: {}", e.getMessage());
+            return;
+        }
+        StringBuilder answer = new StringBuilder(FrameCodec.HANDSHAKE_OK);
+        if (options.contains(FrameCodec.OPTION_ACK) && !authenticated) {
+            acks = true;
+            answer.append(' ').append(FrameCodec.OPTION_ACK);
+        }
+        if (options.contains(FrameCodec.OPTION_DEFLATE) && ServerConfig.COMPRESSION_ENABLED) {
+            deflater = new FrameDeflater(ServerConfig.COMPRESSION_LEVEL, ServerConfig.COMPRESSION_MIN_BYTES);
+            compressedConnectionCount.increment();
+            answer.append(' ').append(FrameCodec.OPTION_DEFLATE);
+        }
+        // Под той же блокировкой, что и текстовые пачки исходящей очереди: сообщение или ping,
+        // поставленные в очередь во время перехода, уходят целиком либо до ответа текстом, либо после него кадрами.
+        synchronized (out) {
+            reply(answer.toString());
+            binary = true;
+        }
+    }
 
-                    else if(string.startsWith("/history")) {
-                        out.println("Please register or log in first.");
-                    }
+    /**
+     * Отмечает доставленным сообщение, получение которого подтвердил клиент.
+     * Запись в базу откладывается и объединяется с другими, см. {@link MessageStore#acknowledge}.
+     */
+    @Override
+    public void ack(long messageId) {
+        if (authenticated && acks && messageId > 0) {
+            DataBase.acknowledge(login, messageId);
+        }
+    }
 
-                    else {
-                        out.println("Enter the correct command");
-                    }
+    /**
+     * Отвечает на ping клиента: строкой {@code /pong} или кадром {@link FrameCodec#PONG}.
+     */
+    @Override
+    public void pong() {
+        if (!binary) {
+            reply(FrameCodec.PONG_TEXT);
+            return;
+        }
+        byte[] frame = FrameCodec.encode(FrameCodec.PONG);
+        if (!writeFrames(frame, frame.length)) {
+            logger.error("Pong error: connection lost");
+        }
+    }
+
+    /**
+     * Проверяет ограничения частоты группы команд по логину и по адресу клиента.
+     * Если команда отклонена, клиенту отправляется {@code notice}; после
+     * {@code messenger.rate.floodDisconnect} отклонений подряд соединение закрывается.
+     *
+     * @param byLogin ограничитель по логину
+     * @param byAddress ограничитель по адресу
+     * @param key логин, по которому считается ограничение
+     * @param notice ответ на отклонённую команду
+     * @return true, если команду можно выполнять
+     */
+    private boolean allowed(RateLimiter byLogin, RateLimiter byAddress, String key, String notice) {
+        if (byLogin.tryAcquire(key) && byAddress.tryAcquire(address)) {
+            rejectedInRow = 0;
+            return true;
+        }
+        reply(notice);
+        if (ServerConfig.RATE_FLOOD_DISCONNECT > 0 && ++rejectedInRow == ServerConfig.RATE_FLOOD_DISCONNECT) {
+            floodClosedCount.increment();
+            logger.warn("Flood from {} ({}), closing connection", address, login);
+            reclaim("Flood");
+        }
+        return false;
+    }
+
+    @Override
+    public void register(String newLogin, String password) {
+        if (authenticated) {
+            reply("You are already logged in");
+            return;
+        }
+        if (!DataBase.isValidLogin(newLogin)) {
+            reply("Login must be 1-" + DataBase.MAX_LOGIN_LENGTH + " characters without spaces or control characters");
+            return;
+        }
+        if (!allowed(RateLimiter.AUTH_LOGIN, RateLimiter.AUTH_IP, newLogin, "Too many login attempts, please try again later")) {
+            return;
+        }
+        boolean registered;
+        try {
+            registered = AuthExecutor.run(() -> DataBase.registerUser(newLogin, password));
+        } catch (RejectedExecutionException e) {
+            reply("Server is busy, please try again later");
+            return;
+        }
+        if (registered){
+            reply("Registration successful");
+            if (activate(newLogin) == null) {
+                return;
+            }
+            logger.info("User registered: {}", login);
+        }
+        else {
+            reply("Login already taken");
+        }
+    }
+
+    @Override
+    public void login(String newLogin, String password) {
+        if (authenticated) {
+            reply("You are already logged in");
+            return;
+        }
+        if (!allowed(RateLimiter.AUTH_LOGIN, RateLimiter.AUTH_IP, newLogin, "Too many login attempts, please try again later")) {
+            return;
+        }
+        boolean loggedIn;
+        try {
+            loggedIn = AuthExecutor.run(() -> DataBase.loginUser(newLogin, password));
+        } catch (RejectedExecutionException e) {
+            reply("Server is busy, please try again later");
+            return;
+        }
+        if (loggedIn) {
+            reply("Welcome!");
+            CompletableFuture<Long> channelBarrier = activate(newLogin);
+            if (channelBarrier == null) {
+                return;
+            }
+            beginBulk();
+            try {
+                if (acks) {
+                    DataBase.redeliverOfflineMessages(login, message -> replyFrame(deliverFrame(message)));
+                } else {
+                    DataBase.deliverOfflineMessages(login, this::reply);
                 }
+                DataBase.deliverChannelBacklog(login, channelBarrier, this::reply);
+            } finally {
+                endBulk();
+            }
+            logger.info("User logged in: {}", login);
+        } else {
+            reply("Uncorrected login or password");
+        }
+    }
 
-                else {
-
-                    if (string.startsWith("/msg")) {
-                        String[] commands = string.split(" ", 3);
-                        if (commands.length < 3){
-                            out.println("Please enter the recipient and message correctly.");
-                            continue;
-                        }
-
-                        String target = commands[1];
-                        String message = commands[2];
-
-                        if (!DataBase.userCheck(target)){
-                            out.println("User " + target + " is not found");
-                            continue;
-                        }
-                        ClientHandler recipient = Users.getActiveUser(target);
-                        boolean delivered = false;
-                        if (recipient != null && !recipient.isClosed()) {
-                            try {
-                                recipient.sendMessage("From " + login + ": " + message);
-                                delivered = true;
-                                out.println("Successful");
-                                logger.info("Message sent from " + login + " to " + target);
-                            } catch (Exception e) {
-                                delivered = false;
-                                out.println("User is currently unavailable, message saved offline.");
-                            }
-                        } else {
-                            out.println("Successful");
-                        }
-                        DataBase.saveMessages(login, target, message, delivered);
-                    }
-                    else if (string.startsWith("/register") || string.startsWith("/login")) {
-                        out.println("You are already logged in");
-                    }
+    /**
+     * Отмечает соединение как вошедшее и добавляет пользователя в список активных.
+     * Клиенту, подтверждающему доставку, загружаются последние ID его сообщений для отсева повторных отправок.
+     * Если соединение успели закрыть, пока проверялся пароль (например, по таймауту входа),
+     * пользователь сразу убирается из списка.
+     * <p>
+     * Отметка в очереди записи и появление в списке активных происходят под блокировкой записи
+     * {@code channelDelivery}: сообщение канала либо записано до отметки и придёт из истории канала,
+     * либо отправлено после входа и доставлено напрямую, но не дважды.
+     *
+     * @param newLogin логин пользователя
+     * @return отметка для {@link DataBase#deliverChannelBacklog} или null, если соединение уже закрыто
+     */
+    private CompletableFuture<Long> activate(String newLogin) {
+        if (acks) {
+            sentIds = recentIds(DataBase.recentClientIds(newLogin, ServerConfig.ACK_DEDUP_WINDOW));
+        }
+        CompletableFuture<Long> channelBarrier;
+        channelDelivery.writeLock().lock();
+        try {
+            channelBarrier = DataBase.channelBarrier();
+            login = newLogin;
+            authenticated = true;
+            Users.setActiveUser(login, this);
+        } finally {
+            channelDelivery.writeLock().unlock();
+        }
+        if (closed.get()) {
+            authenticated = false;
+            Users.removeUser(login, this);
+            return null;
+        }
+        return channelBarrier;
+    }
+
+    @Override
+    public void message(long clientMessageId, String target, String message) {
+        if (!authenticated) {
+            reply("Please register or log in first.");
+            return;
+        }
+        if (!allowed(RateLimiter.MESSAGE_LOGIN, RateLimiter.MESSAGE_IP, login, "Too many messages, please slow down")) {
+            return;
+        }
+        if (!UserDirectory.exists(target)){
+            reply("User " + target + " is not found");
+            return;
+        }
+        // ID клиента уникальны только у клиентов с подтверждением доставки; другие клиенты начинают их с 1 при каждом запуске.
+        boolean dedup = acks && clientMessageId > 0;
+        long clientId = dedup ? clientMessageId : 0;
+        Long knownId = dedup ? sentIds.get(clientMessageId) : null;
+        if (knownId != null) {
+            // Повторная отправка: сообщение уже сохранено и доставляется, клиенту нужен только его ID.
+            duplicateCount.increment();
+            replyFrame(FrameCodec.encode(FrameCodec.ACCEPTED, clientMessageId, knownId));
+            return;
+        }
+        messageCount.increment();
+        ClientHandler recipient = Users.getActiveUser(target);
+        boolean local = recipient != null && !recipient.isClosed();
+        boolean delivered;
+        MessageStore.StoredMessage stored;
+        if (local && recipient.acks) {
+            // Сначала сохранить, потом отправить: подтверждение получателя отмечает уже поставленную в очередь строку.
+            stored = DataBase.saveMessages(login, target, message, false, clientId);
+            delivered = stored.id() > 0 && recipient.sendPayload(new Payload("From " + login + ": " + message, deliverFrame(stored)));
+        } else if (local) {
+            delivered = recipient.sendMessage("From " + login + ": " + message);
+            stored = DataBase.saveMessages(login, target, message, delivered, clientId);
+        } else {
+            // Получатель на другом узле или оффлайн: строка сохраняется недоставленной,
+            // а узел получателя отметит её доставленной, когда поставит в очередь клиента.
+            stored = DataBase.saveMessages(login, target, message, false, clientId);
+            delivered = stored.id() > 0 && ClusterNode.forward(stored);
+            if (delivered) {
+                logger.debug("Message forwarded from {} to {}", login, target);
+            }
+        }
+        if (stored.id() == 0) {
+            // Пачка с сообщением не записалась: отправитель не должен считать его сохранённым.
+            // Сообщение, уже поставленное в очередь получателя, не стоит отправлять повторно.
+            reply(local && delivered ? "Message delivered, but could not be saved to history" : "Message could not be saved, please try again");
+            return;
+        }
+        if (local && delivered) {
+            logger.debug("Message sent from {} to {}", login, target);
+        } else if (local) {
+            reply("User is currently unavailable, message saved offline.");
+        }
+        if (dedup) {
+            sentIds.put(clientMessageId, stored.id());
+            replyFrame(FrameCodec.encode(FrameCodec.ACCEPTED, clientMessageId, stored.id()));
+        } else if (!local || delivered) {
+            reply("Successful");
+        }
+    }
+
+    /**
+     * Доставляет личное сообщение, которое узел отправителя сохранил недоставленным и переслал через кластер.
+     * Клиент с подтверждениями отметит его доставленным сам, как локальное; для остальных отметка
+     * ставится сразу после постановки в исходящую очередь.
+     *
+     * @param message сохранённое сообщение
+     * @return true, если сообщение поставлено в очередь клиента; false, если оно остаётся оффлайн
+     */
+    boolean deliverForwarded(MessageStore.StoredMessage message) {
+        String text = "From " + message.sender() + ": " + message.message();
+        if (acks) {
+            return sendPayload(new Payload(text, deliverFrame(message)));
+        }
+        if (!sendMessage(text)) {
+            return false;
+        }
+        DataBase.acknowledge(message.recipient(), message.id());
+        return true;
+    }
+
+    /**
+     * Кодирует личное сообщение для клиента, подтверждающего получение.
+     *
+     * @param message сохранённое сообщение
+     * @return кадр {@link FrameCodec#DELIVER}
+     */
+    private static byte[] deliverFrame(MessageStore.StoredMessage message) {
+        return FrameCodec.encode(FrameCodec.DELIVER, message.id(), message.sender(), message.message());
+    }
+
+    /**
+     * Создаёт окно последних ID клиента: при переполнении забываются самые старые.
+     *
+     * @param loaded ID, уже сохранённые в хранилище
+     * @return изменяемое окно размером до {@code messenger.ack.dedupWindow}
+     */
+    private static Map<Long, Long> recentIds(Map<Long, Long> loaded) {
+        Map<Long, Long> window = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > ServerConfig.ACK_DEDUP_WINDOW;
+            }
+        };
+        loaded.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> window.put(entry.getKey(), entry.getValue()));
+        return window;
+    }
+
+    @Override
+    public void history(String secondUser, int limit, long beforeId) {
+        if (!authenticated) {
+            reply("Please register or log in first.");
+            return;
+        }
+        if (!allowed(RateLimiter.HISTORY_LOGIN, RateLimiter.HISTORY_IP, login, "Too many requests, please try again later")) {
+            return;
+        }
+        int pageSize = limit > 0 ? Math.min(limit, ServerConfig.HISTORY_MAX_PAGE_SIZE) : ServerConfig.HISTORY_PAGE_SIZE;
+        if (!UserDirectory.exists(secondUser)){
+            reply("User " + secondUser + " is not found");
+            return;
+        }
+        int[] count = {0};
+        beginBulk();
+        try {
+            long oldestId = DataBase.streamMessageHistory(login, secondUser, pageSize, beforeId > 0 ? beforeId : Long.MAX_VALUE, line -> {
+                count[0]++;
+                return reply(line);
+            });
+            if (count[0] == 0){reply("There are no messages with " + secondUser + ".");}
+            else if (count[0] == pageSize) {
+                reply("Earlier messages: /history " + secondUser + " " + pageSize + " " + oldestId);
+            }
+        } finally {
+            endBulk();
+        }
+    }
+
+    @Override
+    public void search(List<String> terms, String user, int page) {
+        if (!authenticated) {
+            reply("Please register or log in first.");
+            return;
+        }
+        if (!allowed(RateLimiter.HISTORY_LOGIN, RateLimiter.HISTORY_IP, login, "Too many requests, please try again later")) {
+            return;
+        }
+        if (user != null && !UserDirectory.exists(user)){
+            reply("User " + user + " is not found");
+            return;
+        }
+        int pageSize = ServerConfig.SEARCH_PAGE_SIZE;
+        String query = String.join("+", terms);
+        beginBulk();
+        try {
+            int count = DataBase.searchMessages(login, terms, user, pageSize, page, this::reply);
+            if (count == 0) {
+                reply(page == 1 ? "No messages found for " + query + "." : "No more messages found for " + query + ".");
+            } else if (count == pageSize) {
+                reply("More results: /search " + query + " " + (user == null ? "*" : user) + " " + (page + 1));
+            }
+        } finally {
+            endBulk();
+        }
+    }
+
+    @Override
+    public void join(String channel) {
+        if (!authenticated) {
+            reply("Please register or log in first.");
+            return;
+        }
+        if (DataBase.joinChannel(channel, login)) {
+            Channels.addMember(channel, login);
+            ClusterNode.channelJoined(channel, login);
+            reply("Joined channel " + channel);
+        } else {
+            reply("You are already a member of channel " + channel);
+        }
+    }
 
-                    else if (string.startsWith("/history")){
-                        String[] commands = string.split(" ", 2);
-                        if (commands.length < 2){
-                            out.println("Please enter the command correctly to see message history");
-                            continue;
-                        }
-                        String secondUser = commands[1];
-                        if (!DataBase.userCheck(secondUser)){
-                            out.println("User " + secondUser + " is not found");
-                            continue;
-                        }
-                        List<String> messageHistory = DataBase.getMessageHistory(login, secondUser);
-                        if (messageHistory.isEmpty()){out.println("There are no messages with " + secondUser + ".");}
-                        else {
-                            for (String item : messageHistory) {
-                                out.println(item);
-                            }
-                        }
+    @Override
+    public void leave(String channel) {
+        if (!authenticated) {
+            reply("Please register or log in first.");
+            return;
+        }
+        if (DataBase.leaveChannel(channel, login)) {
+            Channels.removeMember(channel, login);
+            ClusterNode.channelLeft(channel, login);
+            reply("Left channel " + channel);
+        } else {
+            reply("You are not a member of channel " + channel);
+        }
+    }
+
+    @Override
+    public void groupMessage(String channel, String message) {
+        if (!authenticated) {
+            reply("Please register or log in first.");
+            return;
+        }
+        if (!allowed(RateLimiter.MESSAGE_LOGIN, RateLimiter.MESSAGE_IP, login, "Too many messages, please slow down")) {
+            return;
+        }
+        if (!Channels.isMember(channel, login)) {
+            reply("You are not a member of channel " + channel);
+            return;
+        }
+        groupMessageCount.increment();
+        boolean clustered = !ServerConfig.CLUSTER_PEERS.isBlank();
+        CompletableFuture<Long> id;
+        channelDelivery.readLock().lock();
+        try {
+            // Сначала доставка: ID сообщения нужен, только если его не приняла очередь участника
+            // (или для узлов кластера), а запрашивать его у очереди записи дороже, чем вставить пачкой.
+            List<ClientHandler> refused = deliverChannelMessage(channel, login, message);
+            id = DataBase.saveChannelMessage(login, channel, message, clustered || !refused.isEmpty());
+            for (ClientHandler member : refused) {
+                member.stopChannelCursor(channel, id);
+            }
+        } finally {
+            channelDelivery.readLock().unlock();
+        }
+        if (clustered) {
+            ClusterNode.channelMessage(channel, login, message, DataBase.awaitChannelMessageId(id));
+        }
+        reply("Successful");
+    }
+
+    /**
+     * Ставит сообщение канала в очереди участников, подключённых к этому серверу.
+     * Все получатели разделяют один {@link Payload}.
+     *
+     * @param channel канал
+     * @param sender отправитель; ему сообщение не отправляется
+     * @param message текст сообщения
+     * @return подключённые участники, очередь которых не приняла сообщение (см. {@link #stopChannelCursor})
+     */
+    static List<ClientHandler> deliverChannelMessage(String channel, String sender, String message) {
+        Payload payload = new Payload("[" + channel + "] From " + sender + ": " + message);
+        List<ClientHandler> refused = List.of();
+        for (String member : Channels.getMembers(channel)) {
+            if (member.equals(sender)) {
+                continue;
+            }
+            ClientHandler recipient = Users.getActiveUser(member);
+            if (recipient != null && !recipient.sendPayload(payload)) {
+                if (refused.isEmpty()) {
+                    refused = new ArrayList<>();
+                }
+                refused.add(recipient);
+            }
+        }
+        return refused;
+    }
+
+    /**
+     * Запоминает сообщение канала, которое не приняла очередь клиента: при выходе курсор канала
+     * останется перед первым таким сообщением, и оно придёт из истории канала при следующем входе.
+     *
+     * @param channel канал
+     * @param id будущий ID сообщения; 0 — сообщение не записано
+     */
+    void stopChannelCursor(String channel, CompletableFuture<Long> id) {
+        channelStops.merge(channel, id, (first, next) -> first.thenCombine(next, ClientHandler::earliest));
+    }
+
+    private static long earliest(long first, long next) {
+        return first == 0 ? next : next == 0 ? first : Math.min(first, next);
+    }
+
+    /**
+     * Закрывает соединение и убирает пользователя из списка активных.
+     * Курсоры каналов пользователя сдвигаются на последние сообщения, доставленные ему в этой сессии.
+     * Как и при входе, выход отмечается в очереди записи под блокировкой записи {@code channelDelivery}:
+     * сообщение канала до отметки либо поставлено в очередь клиента, либо остановило курсор,
+     * а сообщение после отметки придёт из истории канала.
+     * Повторные вызовы ничего не делают. Сокет закрывается первым, чтобы поток,
+     * заблокированный в чтении, сразу получил ошибку и освободил поток ввода.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (authenticated) {
+                authenticated = false;
+                CompletableFuture<Long> channelBarrier;
+                channelDelivery.writeLock().lock();
+                try {
+                    Users.removeUser(login, this);
+                    channelBarrier = DataBase.channelBarrier();
+                } finally {
+                    channelDelivery.writeLock().unlock();
+                }
+                DataBase.markChannelsRead(login, channelBarrier, channelStops);
+            }
+            if (soc != null && !soc.isClosed()) soc.close();
+            if (in != null) in.close();
+            if (out != null) out.close();
+            if (binaryOut != null) {
+                synchronized (binaryOut) {
+                    if (deflater != null) {
+                        deflater.end();
+                        deflater = null;
                     }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Resources closing error: " + e.getMessage());
+        }
+    }
 
-                    else {
-                        out.println("Enter the correct command");
+    /**
+     * Ставит ping в исходящую очередь. Вызывается потоком {@link IdleTracker} и не блокируется:
+     * если очередь заполнена, ping пропускается, а соединение закроется по таймауту.
+     */
+    void ping() {
+        if (!isClosed() && outbound.offer(PING) && draining.compareAndSet(false, true)) {
+            drainExecutor.execute(this::drainOutbound);
+        }
+    }
+
+    /**
+     * Закрывает простаивающее соединение в отдельном виртуальном потоке,
+     * чтобы поток {@link IdleTracker} не ждал базу данных и сокет.
+     *
+     * @param reason причина для лога
+     */
+    void reclaim(String reason) {
+        logger.debug("{}, closing connection of {}", reason, login);
+        drainExecutor.execute(this::close);
+    }
+
+    /**
+     * Закрывает сессию, вытесненную новым входом того же пользователя.
+     * Уведомление отправляется через исходящую очередь, соединение закрывается после её разбора.
+     * Если клиент не читает, соединение позже закроет {@link IdleTracker}.
+     *
+     * @param notice уведомление для клиента
+     */
+    void evict(String notice) {
+        closeAfterDrain = true;
+        if (!sendMessage(notice)) {
+            drainExecutor.execute(this::close);
+        }
+    }
+
+    /**
+     * Ставит сообщение в исходящую очередь клиента и сразу возвращает управление.
+     * Если очередь заполнена, применяется политика {@code messenger.outbound.policy}.
+     *
+     * @param message текст сообщения
+     * @return true, если сообщение принято к доставке; false, если его нужно сохранить как оффлайн
+     */
+    public boolean sendMessage(String message){
+        return sendPayload(new Payload(message));
+    }
+
+    /**
+     * Ставит готовое исходящее сообщение в очередь клиента, см. {@link #sendMessage(String)}.
+     * Один {@link Payload} можно поставить в очереди многих получателей.
+     *
+     * @param payload исходящее сообщение
+     * @return true, если сообщение принято к доставке; false, если его нужно сохранить как оффлайн
+     */
+    boolean sendPayload(Payload payload){
+        if (isClosed()) {
+            return false;
+        }
+        if (!outbound.offer(payload)) {
+            switch (ServerConfig.SLOW_CONSUMER_POLICY) {
+                case "drop" -> {
+                    droppedCount.increment();
+                    return true;
+                }
+                case "disconnect" -> {
+                    // Закрытие пишет в базу, поэтому оно не выполняется в потоке отправителя:
+                    // в движке nio это event loop другого соединения.
+                    if (!closeAfterDrain) {
+                        closeAfterDrain = true;
+                        disconnectedCount.increment();
+                        logger.info("Disconnecting slow consumer {}", login);
+                        drainExecutor.execute(this::close);
                     }
+                    return false;
+                }
+                default -> {
+                    spilledCount.increment();
+                    return false;
                 }
             }
+        }
+        if (draining.compareAndSet(false, true)) {
+            drainExecutor.execute(this::drainOutbound);
+        }
+        return true;
+    }
 
+    /**
+     * Продолжает разбор исходящей очереди, остановленный заполненной очередью записи канала.
+     * Вызывается каналом, когда {@code OP_WRITE} дописал накопленное.
+     */
+    void resumeOutbound() {
+        if ((closeAfterDrain || !outbound.isEmpty()) && draining.compareAndSet(false, true)) {
+            drainExecutor.execute(this::drainOutbound);
+        }
+    }
 
-        }catch (IOException e){
-            logger.error("Client Handler error" + e.getMessage());
-        } finally {
+    /**
+     * Разбирает исходящую очередь, пока она не опустеет или канал не перестанет принимать данные.
+     * Накопившиеся сообщения отправляются пачкой до {@code messenger.outbound.batch} штук
+     * с одним сбросом буфера в сокет.
+     */
+    private void drainOutbound() {
+        List<Payload> batch = new ArrayList<>(ServerConfig.OUTBOUND_BATCH);
+        while (true) {
+            if (!writable.getAsBoolean()) {
+                // Повторная проверка после сброса флага: канал мог освободиться и вызвать
+                // resumeOutbound, пока флаг ещё был поднят.
+                draining.set(false);
+                if (!writable.getAsBoolean() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            outbound.drainTo(batch, ServerConfig.OUTBOUND_BATCH);
+            if (batch.isEmpty()) {
+                if (closeAfterDrain) {
+                    close();
+                    return;
+                }
+                draining.set(false);
+                if (outbound.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Payload> batch) {
+        synchronized (out) {
+            if (!binary) {
+                StringBuilder text = new StringBuilder();
+                for (Payload payload : batch) {
+                    text.append(payload.text).append(System.lineSeparator());
+                }
+                out.write(text.toString());
+                out.flush();
+                return;
+            }
+        }
+        int length = 0;
+        for (Payload payload : batch) {
+            length += payload.frame().length;
+        }
+        synchronized (binaryOut) {
+            if (deflater != null && deflater.compresses(length)) {
+                // Пачка сжимается целиком: так словарь работает и между сообщениями пачки.
+                byte[] frames = new byte[length];
+                int offset = 0;
+                for (Payload payload : batch) {
+                    byte[] frame = payload.frame();
+                    System.arraycopy(frame, 0, frames, offset, frame.length);
+                    offset += frame.length;
+                }
+                if (!writeFrames(frames, length)) {
+                    logger.error("Message delivery error: connection lost");
+                }
+                return;
+            }
             try {
-                if (this.login != null) {
-                    Users.removeUser(login);
+                for (Payload payload : batch) {
+                    binaryOut.write(payload.frame());
                 }
-                if (in != null) in.close();
-                if (out != null) out.close();
-                if (soc != null && !soc.isClosed()) soc.close();
+                binaryOut.flush();
             } catch (IOException e) {
-                System.err.println("Resources closing error: " + e.getMessage());
+                logger.error("Message delivery error: {}", e.getMessage());
             }
         }
     }
 
     /**
-     * Отправляет текстовое сообщение клиенту через сокет.
-     *
-     * @param message текст сообщения
+     * @return количество сообщений в исходящей очереди
      */
-    public void sendMessage(String message){
-        out.println(message);
+    public int getOutboundDepth() {
+        return outbound.size();
+    }
+
+    /** @return сколько сообщений не доставлено сразу по политике {@code drop} */
+    public static long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /** @return сколько сообщений сохранено как оффлайн из-за заполненной очереди */
+    public static long getSpilledCount() {
+        return spilledCount.sum();
+    }
+
+    /** @return сколько медленных получателей отключено */
+    public static long getDisconnectedCount() {
+        return disconnectedCount.sum();
+    }
+
+    /** @return количество отправленных личных сообщений */
+    public static long getMessageCount() {
+        return messageCount.sum();
+    }
+
+    /** @return количество отправленных сообщений каналов */
+    public static long getGroupMessageCount() {
+        return groupMessageCount.sum();
+    }
+
+    /** @return сколько соединений перешли на двоичный протокол со сжатием */
+    public static long getCompressedConnectionCount() {
+        return compressedConnectionCount.sum();
+    }
+
+    /** @return сколько байт кадров было до сжатия */
+    public static long getCompressionInputBytes() {
+        return compressionInputBytes.sum();
+    }
+
+    /** @return сколько байт ушло в сокет после сжатия, вместе с заголовками кадров */
+    public static long getCompressionOutputBytes() {
+        return compressionOutputBytes.sum();
+    }
+
+    /** @return сколько повторных отправок отсеяно по ID клиента */
+    public static long getDuplicateCount() {
+        return duplicateCount.sum();
+    }
+
+    /** @return сколько соединений закрыто за превышение ограничения частоты */
+    public static long getFloodClosedCount() {
+        return floodClosedCount.sum();
+    }
+
+    /** Буфер пачки кадров с доступом к массиву без копирования. */
+    private static final class Bulk extends ByteArrayOutputStream {
+        private Bulk() {
+            super(4096);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
     }
 }
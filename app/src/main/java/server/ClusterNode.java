@@ -0,0 +1,364 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Связь между экземплярами сервера в кластере.
+ * <p>
+ * Узлы работают с общей базой данных, а в памяти каждого узла хранятся только его клиенты.
+ * Чтобы {@code /msg} доходил до получателя, подключённого к другому узлу, узлы обмениваются
+ * строками по отдельному TCP-порту ({@code messenger.cluster.port}):
+ * <ul>
+ *     <li>{@code HELLO <node>} — первая строка соединения, имя узла-отправителя;</li>
+ *     <li>{@code ONLINE <login>} / {@code OFFLINE <login>} — пользователь подключился к узлу или отключился;</li>
+ *     <li>{@code DELIVER <id> <sender> <recipient> <message>} — доставить личное сообщение, уже сохранённое
+ *     недоставленным под этим ID;</li>
+ *     <li>{@code JOIN <channel> <login>} / {@code LEAVE <channel> <login>} — изменился состав канала;</li>
+ *     <li>{@code CHANNEL <id> <channel> <sender> <message>} — доставить сообщение канала локальным участникам;
+ *     участник, очередь которого его не приняла, получит его из истории канала (ID 0 — сообщение не записано).</li>
+ * </ul>
+ * Каждый узел держит исходящее соединение к каждому соседу из {@code messenger.cluster.peers}
+ * и после подключения отправляет ему список своих пользователей. Если соединение с соседом
+ * оборвалось, его пользователи считаются оффлайн, и сообщения для них сохраняются в базе.
+ * <p>
+ * Личное сообщение для пользователя другого узла сохраняется недоставленным до пересылки.
+ * Доставленным его отмечает узел получателя — так же, как локальную доставку: после подтверждения
+ * клиента или после постановки в очередь клиента без подтверждений. Если строка потерялась по дороге
+ * или получатель уже отключился, сообщение остаётся оффлайн и будет доставлено при следующем входе.
+ * После обрыва соединения неотправленные строки пересылаются повторно, поэтому доставка — не менее одного раза.
+ */
+public final class ClusterNode {
+
+    private static final Logger logger = LogManager.getLogger(ClusterNode.class);
+
+    /** Пользователи других узлов: логин — имя узла. */
+    private static final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    /** Исходящие соединения: имя узла — соединение. */
+    private static final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+
+    private static final LongAdder forwardedCount = new LongAdder();
+    private static final LongAdder receivedCount = new LongAdder();
+    private static final LongAdder forwardFailedCount = new LongAdder();
+
+    private ClusterNode() {
+    }
+
+    /**
+     * Запускает приём соединений от соседей и подключение к ним.
+     * Ничего не делает, если список соседей {@code messenger.cluster.peers} пуст.
+     *
+     * @throws IOException если не удалось открыть порт кластера
+     */
+    public static void start() throws IOException {
+        if (ServerConfig.CLUSTER_PEERS.isBlank()) {
+            return;
+        }
+        for (String peer : ServerConfig.CLUSTER_PEERS.split(",")) {
+            peer = peer.trim();
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon <= at) {
+                throw new IllegalArgumentException("Invalid cluster peer, expected node@host:port: " + peer);
+            }
+            PeerLink link = new PeerLink(peer.substring(0, at), peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1)));
+            links.put(link.nodeId, link);
+            Thread.ofVirtual().name("cluster-link-" + link.nodeId).start(link);
+        }
+        ServerSocket serverSocket = new ServerSocket(ServerConfig.CLUSTER_PORT);
+        Thread.ofVirtual().name("cluster-accept").start(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread.ofVirtual().start(() -> receive(socket));
+                } catch (IOException e) {
+                    logger.error("Cluster accept error: {}", e.getMessage());
+                }
+            }
+        });
+        logger.info("Cluster node {} listening on port {}, peers: {}",
+                ServerConfig.CLUSTER_NODE_ID, ServerConfig.CLUSTER_PORT, links.keySet());
+    }
+
+    /**
+     * Сообщает соседям, что пользователь подключился к этому узлу.
+     * @param login логин пользователя
+     */
+    public static void userOnline(String login) {
+        broadcast("ONLINE " + login);
+    }
+
+    /**
+     * Сообщает соседям, что пользователь отключился от этого узла.
+     * @param login логин пользователя
+     */
+    public static void userOffline(String login) {
+        broadcast("OFFLINE " + login);
+    }
+
+    /**
+     * Сообщает соседям, что пользователь вступил в канал.
+     * @param channel канал
+     * @param login логин пользователя
+     */
+    public static void channelJoined(String channel, String login) {
+        broadcast("JOIN " + channel + " " + login);
+    }
+
+    /**
+     * Сообщает соседям, что пользователь покинул канал.
+     * @param channel канал
+     * @param login логин пользователя
+     */
+    public static void channelLeft(String channel, String login) {
+        broadcast("LEAVE " + channel + " " + login);
+    }
+
+    /**
+     * Передаёт сообщение канала соседям для доставки их участникам канала.
+     * @param channel канал
+     * @param sender отправитель
+     * @param message текст сообщения
+     * @param id ID сообщения в базе или 0, если его не удалось записать
+     */
+    public static void channelMessage(String channel, String sender, String message, long id) {
+        broadcast("CHANNEL " + id + " " + channel + " " + sender + " " + escape(message));
+    }
+
+    /**
+     * Передаёт личное сообщение узлу, к которому подключён получатель.
+     * Сообщение должно быть сохранено недоставленным: доставленным его отметит узел получателя.
+     *
+     * @param message сохранённое сообщение
+     * @return true, если получатель подключён к другому узлу и сообщение поставлено в очередь к нему;
+     *         false, если сообщение остаётся оффлайн
+     */
+    public static boolean forward(MessageStore.StoredMessage message) {
+        String nodeId = remoteUsers.get(message.recipient());
+        if (nodeId == null) {
+            return false;
+        }
+        PeerLink link = links.get(nodeId);
+        if (link != null && link.send("DELIVER " + message.id() + " " + message.sender() + " " + message.recipient()
+                + " " + escape(message.message()))) {
+            forwardedCount.increment();
+            return true;
+        }
+        forwardFailedCount.increment();
+        return false;
+    }
+
+    private static void broadcast(String line) {
+        for (PeerLink link : links.values()) {
+            link.send(line);
+        }
+    }
+
+    /**
+     * Читает строки от соседа, пока соединение не закроется.
+     * После закрытия все пользователи соседа считаются оффлайн.
+     */
+    private static void receive(Socket socket) {
+        String nodeId = null;
+        try (socket; BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String hello = reader.readLine();
+            if (hello == null || !hello.startsWith("HELLO ")) {
+                logger.error("Unexpected cluster handshake from {}", socket.getRemoteSocketAddress());
+                return;
+            }
+            nodeId = hello.substring(6);
+            logger.info("Cluster node {} connected from {}", nodeId, socket.getRemoteSocketAddress());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                handle(nodeId, line);
+            }
+        } catch (IOException e) {
+            logger.error("Cluster link from {} closed: {}", nodeId, e.getMessage());
+        } finally {
+            if (nodeId != null) {
+                String node = nodeId;
+                remoteUsers.values().removeIf(node::equals);
+                logger.info("Cluster node {} disconnected", node);
+            }
+        }
+    }
+
+    private static void handle(String nodeId, String line) {
+        String[] parts = line.split(" ", 4);
+        switch (parts[0]) {
+            case "ONLINE" -> remoteUsers.put(parts[1], nodeId);
+            case "OFFLINE" -> remoteUsers.remove(parts[1], nodeId);
+            case "JOIN" -> Channels.addMember(parts[1], parts[2]);
+            case "LEAVE" -> Channels.removeMember(parts[1], parts[2]);
+            case "DELIVER" -> {
+                receivedCount.increment();
+                String[] deliver = line.split(" ", 5);
+                MessageStore.StoredMessage message = new MessageStore.StoredMessage(Long.parseLong(deliver[1]),
+                        deliver[2], deliver[3], unescape(deliver[4]), null);
+                ClientHandler recipient = Users.getActiveUser(message.recipient());
+                if (recipient == null || !recipient.deliverForwarded(message)) {
+                    // Строка сообщения уже сохранена недоставленной: её доставит вход получателя.
+                    logger.debug("Forwarded message {} for {} stays offline", message.id(), message.recipient());
+                }
+            }
+            case "CHANNEL" -> {
+                receivedCount.increment();
+                String[] channelMessage = line.split(" ", 5);
+                long id = Long.parseLong(channelMessage[1]);
+                for (ClientHandler member : ClientHandler.deliverChannelMessage(channelMessage[2], channelMessage[3], unescape(channelMessage[4]))) {
+                    if (id > 0) {
+                        member.stopChannelCursor(channelMessage[2], CompletableFuture.completedFuture(id));
+                    }
+                }
+            }
+            default -> logger.error("Unknown cluster command from {}: {}", nodeId, parts[0]);
+        }
+    }
+
+    /**
+     * Экранирует перевод строки и обратную косую черту, чтобы сообщение занимало одну строку протокола.
+     */
+    private static String escape(String message) {
+        if (message.indexOf('\\') < 0 && message.indexOf('\n') < 0 && message.indexOf('\r') < 0) {
+            return message;
+        }
+        return message.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String message) {
+        if (message.indexOf('\\') < 0) {
+            return message;
+        }
+        StringBuilder builder = new StringBuilder(message.length());
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\\' && i + 1 < message.length()) {
+                char next = message.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /** @return количество сообщений, переданных другим узлам */
+    public static long getForwardedCount() {
+        return forwardedCount.sum();
+    }
+
+    /** @return количество сообщений, полученных от других узлов */
+    public static long getReceivedCount() {
+        return receivedCount.sum();
+    }
+
+    /** @return сколько сообщений не удалось передать другому узлу */
+    public static long getForwardFailedCount() {
+        return forwardFailedCount.sum();
+    }
+
+    /** @return количество пользователей, подключённых к другим узлам */
+    public static int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    /**
+     * Исходящее соединение к соседу.
+     * Строки ставятся в ограниченную очередь и пишутся в сокет отдельным потоком,
+     * который сбрасывает буфер, когда очередь опустела. При обрыве соединение восстанавливается;
+     * строки, не записанные до обрыва, отправляются после нового подключения. Только строки
+     * присутствия выбрасываются: их заменяет снимок пользователей, который узел отправляет при подключении.
+     */
+    private static final class PeerLink implements Runnable {
+
+        private final String nodeId;
+        private final String host;
+        private final int port;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(ServerConfig.CLUSTER_QUEUE);
+        private volatile boolean connected;
+
+        PeerLink(String nodeId, String host, int port) {
+            this.nodeId = nodeId;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Ставит строку в очередь отправки.
+         * @return false, если соединения нет или очередь заполнена
+         */
+        boolean send(String line) {
+            return connected && queue.offer(line);
+        }
+
+        @Override
+        public void run() {
+            // Строки, взятые из очереди, но не записанные в сокет до обрыва.
+            List<String> unsent = new ArrayList<>();
+            while (true) {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                    unsent.removeIf(PeerLink::isPresence);
+                    queue.removeIf(PeerLink::isPresence);
+                    connected = true;
+                    logger.info("Connected to cluster node {} at {}:{}, resending {} lines", nodeId, host, port, unsent.size() + queue.size());
+                    writer.write("HELLO " + ServerConfig.CLUSTER_NODE_ID + "\n");
+                    // Снимок присутствия; подключения, случившиеся во время снимка, придут следом через очередь.
+                    for (String login : Users.getActiveLogins()) {
+                        writer.write("ONLINE " + login + "\n");
+                    }
+                    for (String line : unsent) {
+                        writer.write(line);
+                        writer.write('\n');
+                    }
+                    writer.flush();
+                    unsent.clear();
+                    while (true) {
+                        String line = queue.take();
+                        do {
+                            unsent.add(line);
+                            writer.write(line);
+                            writer.write('\n');
+                        } while ((line = queue.poll()) != null);
+                        writer.flush();
+                        unsent.clear();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        logger.error("Cluster link to {} lost: {}", nodeId, e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private static boolean isPresence(String line) {
+            return line.startsWith("ONLINE ") || line.startsWith("OFFLINE ");
+        }
+    }
+}
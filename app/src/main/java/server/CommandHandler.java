@@ -0,0 +1,90 @@
+package server;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Получатель разобранных команд клиента.
+ * <p>
+ * Текстовый ({@link TextProtocol}) и двоичный ({@link BinaryProtocol}) протоколы
+ * разбирают команды каждый по-своему и вызывают одни и те же методы.
+ */
+interface CommandHandler {
+
+    /** @return true, если клиент уже вошёл в систему */
+    boolean isAuthenticated();
+
+    /**
+     * Отправляет клиенту строку ответа.
+     *
+     * @param text строка
+     * @return false, если соединение оборвалось
+     */
+    boolean reply(String text);
+
+    /**
+     * Переводит соединение на двоичный протокол.
+     *
+     * @param options параметры соединения, которые запросил клиент, например {@link protocol.FrameCodec#OPTION_ACK}
+     */
+    void binary(Set<String> options);
+
+    /**
+     * Отмечает доставленным личное сообщение, получение которого подтвердил клиент.
+     *
+     * @param messageId ID сообщения на сервере
+     */
+    void ack(long messageId);
+
+    /** Отвечает на ping клиента. */
+    void pong();
+
+    /**
+     * @param login логин
+     * @param password пароль
+     */
+    void register(String login, String password);
+
+    /**
+     * @param login логин
+     * @param password пароль
+     */
+    void login(String login, String password);
+
+    /**
+     * @param clientMessageId ID сообщения, присвоенный клиентом, или 0
+     * @param target получатель
+     * @param message текст сообщения
+     */
+    void message(long clientMessageId, String target, String message);
+
+    /**
+     * @param user второй участник переписки
+     * @param limit размер страницы, 0 — по умолчанию
+     * @param beforeId курсор ID, 0 — с последних сообщений
+     */
+    void history(String user, int limit, long beforeId);
+
+    /**
+     * @param terms слова запроса, непустые и содержащие хотя бы одну букву или цифру
+     * @param user второй участник переписки или {@code null} — все переписки
+     * @param page номер страницы, начиная с 1
+     */
+    void search(List<String> terms, String user, int page);
+
+    /**
+     * @param channel канал
+     */
+    void join(String channel);
+
+    /**
+     * @param channel канал
+     */
+    void leave(String channel);
+
+    /**
+     * @param channel канал
+     * @param message текст сообщения
+     */
+    void groupMessage(String channel, String message);
+}
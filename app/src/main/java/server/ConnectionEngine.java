@@ -0,0 +1,39 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Движок, который принимает подключения клиентов и передаёт их строки
+ * обработчику команд {@link ClientHandler}.
+ */
+public interface ConnectionEngine {
+
+    /**
+     * Начинает принимать клиентов на заданном порту.
+     * Метод блокируется, пока движок не остановлен методом {@link #stop}.
+     *
+     * @param port порт сервера
+     * @throws IOException если не удалось открыть серверный сокет
+     */
+    void serve(int port) throws IOException;
+
+    /**
+     * Перестаёт принимать новых клиентов: {@link #serve} возвращается, уже открытые соединения продолжают работать.
+     */
+    void stop();
+
+    /**
+     * Создаёт движок по имени из настроек.
+     *
+     * @param name {@code virtual}, {@code platform} или {@code nio}
+     * @return движок соединений
+     */
+    static ConnectionEngine create(String name) {
+        return switch (name) {
+            case "platform" -> new ThreadConnectionEngine(false);
+            case "nio" -> new NioConnectionEngine(ServerConfig.EVENT_LOOPS);
+            case "virtual" -> new ThreadConnectionEngine(true);
+            default -> throw new IllegalArgumentException("Unknown connection engine: " + name);
+        };
+    }
+}
@@ -0,0 +1,240 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Ограниченный пул JDBC-соединений с кэшем подготовленных запросов.
+ * <p>
+ * Соединение выдаётся одному потоку за раз, поэтому кэш {@link PreparedStatement}
+ * внутри соединения не требует синхронизации: каждый SQL разбирается один раз на соединение.
+ * Пул считает, сколько времени потоки ждали свободное соединение.
+ */
+public class ConnectionPool {
+
+    private static final Logger logger = LogManager.getLogger(ConnectionPool.class);
+
+    private final String name;
+    private final long timeoutMs;
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeoutCount = new LongAdder();
+
+    /**
+     * Открывает {@code size} соединений и выполняет на каждом начальные команды.
+     *
+     * @param name имя пула для логов
+     * @param url JDBC URL базы данных
+     * @param size количество соединений
+     * @param timeoutMs сколько ждать свободное соединение, прежде чем выдать ошибку
+     * @param initSql команды, выполняемые на каждом новом соединении (например, PRAGMA)
+     * @throws SQLException если соединение не удалось открыть
+     */
+    public ConnectionPool(String name, String url, int size, long timeoutMs, String... initSql) throws SQLException {
+        this.name = name;
+        this.timeoutMs = timeoutMs;
+        this.idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection connection = DriverManager.getConnection(url);
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : initSql) {
+                    statement.execute(sql);
+                }
+            }
+            PooledConnection pooled = new PooledConnection(connection);
+            all.add(pooled);
+            idle.add(pooled);
+        }
+    }
+
+    /**
+     * Берёт соединение из пула, ожидая не дольше настроенного таймаута.
+     * Соединение возвращается в пул методом {@link PooledConnection#close()}.
+     *
+     * @return соединение
+     * @throws SQLException если свободное соединение не появилось вовремя
+     */
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection connection = idle.poll();
+        if (connection == null) {
+            try {
+                connection = idle.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for " + name + " connection");
+            }
+        }
+        long waited = System.nanoTime() - start;
+        acquireCount.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (connection == null) {
+            timeoutCount.increment();
+            throw new SQLException("Timed out waiting for " + name + " connection");
+        }
+        connection.checkedOut.set(true);
+        return connection;
+    }
+
+    /**
+     * Заранее готовит запросы на каждом соединении пула, чтобы первые клиенты после запуска
+     * не ждали разбора SQL и построения плана. Соединения по очереди берутся из пула,
+     * поэтому метод можно вызывать и на работающем сервере.
+     *
+     * @param sql тексты запросов — те же строки, что передаются в {@link PooledConnection#prepare}
+     * @throws SQLException если запрос не удалось подготовить или соединение не освободилось вовремя
+     */
+    public void warmUp(String... sql) throws SQLException {
+        List<PooledConnection> taken = new ArrayList<>(all.size());
+        try {
+            for (int i = 0; i < all.size(); i++) {
+                taken.add(acquire());
+            }
+            for (PooledConnection connection : taken) {
+                for (String statement : sql) {
+                    connection.prepare(statement);
+                }
+            }
+        } finally {
+            for (PooledConnection connection : taken) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Закрывает все подготовленные запросы и соединения пула.
+     * Соединения, ещё выданные потокам, пул ждёт не дольше таймаута получения соединения,
+     * чтобы не прервать запрос на середине.
+     */
+    public void close() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (idle.size() < all.size() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (idle.size() < all.size()) {
+            logger.warn("Pool {} closing with {} connections in use", name, all.size() - idle.size());
+        }
+        for (PooledConnection connection : all) {
+            try {
+                for (PreparedStatement statement : connection.statements.values()) {
+                    statement.close();
+                }
+                connection.connection.close();
+            } catch (SQLException e) {
+                logger.error("Pool {} closing error: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    /** @return сколько раз соединение выдавалось из пула */
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    /** @return суммарное время ожидания соединения в наносекундах */
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /** @return наибольшее время ожидания соединения в наносекундах */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /** @return сколько раз соединение не удалось получить за отведённое время */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /** @return количество свободных соединений в данный момент */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /** @return размер пула */
+    public int getSize() {
+        return all.size();
+    }
+
+    /** @return имя пула */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Соединение, выданное из пула.
+     * Используется в try-with-resources: {@code close()} возвращает соединение в пул, а не закрывает его.
+     */
+    public class PooledConnection implements AutoCloseable {
+
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        /** Соединение выдано потоку и ещё не вернулось в пул. */
+        private final AtomicBoolean checkedOut = new AtomicBoolean();
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Возвращает подготовленный запрос из кэша соединения, создавая его при первом обращении.
+         * Запрос нельзя закрывать — он живёт, пока живёт соединение.
+         *
+         * @param sql текст запроса
+         * @return подготовленный запрос
+         * @throws SQLException если запрос не удалось подготовить
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * @return исходное JDBC-соединение
+         */
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Возвращает соединение в пул. Повторный вызов ничего не делает: иначе соединение
+         * оказалось бы в очереди дважды и досталось бы двум потокам сразу.
+         */
+        @Override
+        public void close() {
+            if (checkedOut.compareAndSet(true, false)) {
+                idle.add(this);
+            }
+        }
+    }
+}
@@ -1,12 +1,19 @@
 package server;
 
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.security.MessageDigest;
-import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -18,167 +25,676 @@ public class DataBase {
 
     private static final Logger logger = LogManager.getLogger(DataBase.class);
 
-    private static Connection connection;
-    private static final int hash_iterations = 100000;
+    /** Наибольшая длина логина в символах Unicode. */
+    public static final int MAX_LOGIN_LENGTH = 32;
+
+    private static final String LOGIN_SQL = "SELECT salt, password, algorithm, iterations FROM Users WHERE login = ?";
+    private static final String USER_CHECK_SQL = "SELECT 1 FROM Users WHERE login = ?";
+    private static final String CHANNEL_CURSORS_SQL = "SELECT channel, last_read_id FROM ChannelMembers WHERE login = ?";
+    private static final String CHANNEL_BACKLOG_SQL = "SELECT ID, sender, message, time FROM ChannelMessages WHERE channel = ? AND ID > ? AND ID <= ? ORDER BY ID LIMIT ?";
+
+    private static ConnectionPool writer;
+    private static ConnectionPool readers;
+    private static MessageWriter messageWriter;
+    private static MessageStore messageStore;
+    private static MessageArchive messageArchive;
+    private static final LongAdder offlineDeliveredCount = new LongAdder();
+    private static final LongAdder offlineDrainNanos = new LongAdder();
+    /** Кэш видит только сообщения этого узла, поэтому в кластере он выключен: первая страница другого узла устарела бы. */
+    private static final HistoryCache historyCache = ServerConfig.HISTORY_CACHE_MB > 0 && ServerConfig.CLUSTER_PEERS.isBlank()
+            ? new HistoryCache(ServerConfig.HISTORY_CACHE_MESSAGES, (long) ServerConfig.HISTORY_CACHE_MB << 20, DataBase::historyLine)
+            : null;
+
+    private static final LatencyTimer registerUserTimer = timer("registerUser");
+    private static final LatencyTimer loginUserTimer = timer("loginUser");
+    private static final LatencyTimer saveMessagesTimer = timer("saveMessages");
+    private static final LatencyTimer deliverOfflineMessagesTimer = timer("deliverOfflineMessages");
+    private static final LatencyTimer streamMessageHistoryTimer = timer("streamMessageHistory");
+    private static final LatencyTimer searchMessagesTimer = timer("searchMessages");
+    private static final LatencyTimer joinChannelTimer = timer("joinChannel");
+    private static final LatencyTimer leaveChannelTimer = timer("leaveChannel");
+    private static final LatencyTimer saveChannelMessageTimer = timer("saveChannelMessage");
+    private static final LatencyTimer deliverChannelBacklogTimer = timer("deliverChannelBacklog");
+    private static final LatencyTimer markChannelsReadTimer = timer("markChannelsRead");
+    private static final LatencyTimer userCheckTimer = timer("userCheck");
+
+    private static LatencyTimer timer(String method) {
+        return Metrics.timer("messenger_db_seconds", "method=\"" + method + "\"", "DataBase call time by method");
+    }
 
     /**
-     * Устанавливает соединение с базой данных.
-     * Создаёт файл database.db, если его ещё нет.
+     * Открывает пулы соединений с базой данных.
+     * Создаёт файл базы, если его ещё нет, и включает режим WAL:
+     * все записи идут через одно соединение-писатель, а чтения — через пул читателей,
+     * которые не блокируются во время записи. Новая база создаётся с {@code auto_vacuum=INCREMENTAL},
+     * чтобы место, освобождённое архивом {@link MessageArchive}, возвращалось файловой системе.
      */
     public static void setConnection() {
+        String url = "jdbc:sqlite:" + ServerConfig.DB_PATH;
         try {
-            connection = DriverManager.getConnection("jdbc:sqlite:database.db");
-            logger.info("Connect to DB");
-        } catch (SQLException e) {
-            logger.error("DataBase connection error: " + e.getMessage());
+            writer = new ConnectionPool("writer", url, 1, ServerConfig.DB_ACQUIRE_TIMEOUT_MS,
+                    "PRAGMA auto_vacuum=INCREMENTAL", "PRAGMA journal_mode=WAL", "PRAGMA busy_timeout=5000");
+            readers = new ConnectionPool("readers", url, ServerConfig.DB_READERS, ServerConfig.DB_ACQUIRE_TIMEOUT_MS,
+                    "PRAGMA busy_timeout=5000", "PRAGMA query_only=1");
+            // Узлы кластера пишут в один файл базы, поэтому ID сообщений назначает база.
+            messageWriter = new MessageWriter(writer, ServerConfig.DB_WRITE_QUEUE,
+                    ServerConfig.DB_WRITE_BATCH, ServerConfig.DB_WRITE_LINGER_MS, ServerConfig.CLUSTER_PEERS.isBlank());
+            messageWriter.start();
+            messageStore = switch (ServerConfig.MESSAGE_STORE) {
+                case "log" -> new LogMessageStore(Path.of(ServerConfig.STORE_LOG_PATH), ServerConfig.STORE_LOG_SEGMENT_MB << 20,
+                        ServerConfig.STORE_LOG_FLUSH_MS, ServerConfig.STORE_LOG_COMPACT_INTERVAL_MS);
+                case "sqlite" -> {
+                    messageArchive = new MessageArchive(writer, Path.of(ServerConfig.ARCHIVE_PATH));
+                    yield new SqliteMessageStore(writer, readers, messageWriter, messageArchive);
+                }
+                default -> throw new IllegalArgumentException("Unknown message store: " + ServerConfig.MESSAGE_STORE);
+            };
+            logger.info("Connect to DB, message store: {}", ServerConfig.MESSAGE_STORE);
+        } catch (SQLException | IOException e) {
+            logger.error("DataBase connection error: {}", e.getMessage());
         }
     }
 
     /**
-     * Создаёт таблицы Users и Messages, если они ещё не существуют.
+     * Дописывает сообщения из очереди и закрывает все соединения с базой данных.
+     */
+    public static void close() {
+        if (messageArchive != null) messageArchive.close();
+        if (messageStore != null) messageStore.close();
+        if (messageWriter != null) messageWriter.shutdown();
+        if (readers != null) readers.close();
+        if (writer != null) writer.close();
+    }
+
+    /**
+     * @return пул соединения-писателя, для метрик ожидания
+     */
+    public static ConnectionPool getWriterPool() {
+        return writer;
+    }
+
+    /**
+     * @return пул соединений-читателей, для метрик ожидания
+     */
+    public static ConnectionPool getReaderPool() {
+        return readers;
+    }
+
+    /**
+     * @return хранилище личных сообщений
+     */
+    public static MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /**
+     * @return архив старых сообщений или {@code null}, если хранилище не SQLite
+     */
+    public static MessageArchive getMessageArchive() {
+        return messageArchive;
+    }
+
+    /**
+     * Запускает задачу переноса старых сообщений в архив, если она включена.
+     */
+    public static void startArchive() {
+        if (messageArchive != null) messageArchive.start();
+    }
+
+    /**
+     * @return очередь отложенной записи сообщений, для метрик
+     */
+    public static MessageWriter getMessageWriter() {
+        return messageWriter;
+    }
+
+    /**
+     * Создаёт и обновляет таблицы Users и Messages, применяя миграции схемы {@link SchemaMigrations}.
      */
     public static void createTables(){
-        try(Statement statement = connection.createStatement()) {
-            statement.execute("CREATE TABLE IF NOT EXISTS Users(ID INTEGER PRIMARY KEY AUTOINCREMENT, Login TEXT UNIQUE, salt TEXT, password TEXT)");
-            statement.execute("CREATE TABLE IF NOT EXISTS Messages(ID INTEGER PRIMARY KEY AUTOINCREMENT, sender TEXT, recipient TEXT, message TEXT, time DATETIME DEFAULT CURRENT_TIMESTAMP, delivered INTEGER DEFAULT 0)");
+        try(ConnectionPool.PooledConnection connection = writer.acquire()) {
+            SchemaMigrations.migrate(connection.getConnection());
             logger.info("Tables have been created");
         }catch (SQLException e){
-            logger.error("DataBase creation error: " + e.getMessage());
+            logger.error("DataBase creation error: {}", e.getMessage());
         }
     }
 
     /**
-     * Генерирует случайную соль для пароля.
-     * Используется для безопасного хэширования пароля пользователя.
-     *
-     * @return случайная строка в формате Base64, представляющая соль
+     * Готовит запросы входа, проверки пользователей, каналов и хранилища сообщений на всех соединениях,
+     * чтобы после перезапуска первые клиенты не платили за разбор SQL. Вызывается после миграций схемы,
+     * когда все таблицы уже существуют.
      */
-    private static String generateSalt() {
-        byte[] salt = new byte[16];
-        new SecureRandom().nextBytes(salt);
-        return Base64.getEncoder().encodeToString(salt);
+    public static void warmUp() {
+        try {
+            readers.warmUp(LOGIN_SQL, USER_CHECK_SQL, CHANNEL_CURSORS_SQL, CHANNEL_BACKLOG_SQL);
+            messageWriter.warmUp();
+        } catch (SQLException e) {
+            logger.error("DataBase warm-up error: {}", e.getMessage());
+        }
+        messageStore.warmUp();
     }
 
     /**
-     * Хэширует пароль с использованием соли и алгоритма SHA-256.
-     * Применяет многократное хэширование (hash_iterations) для повышения безопасности.
-     *
-     * @param password пароль пользователя
-     * @param salt строка соли
-     * @return хэш пароля в формате Base64, или null в случае ошибки
+     * Возвращает ключ переписки двух пользователей, одинаковый для обоих направлений.
+     * Совпадает со столбцом {@code conversation} таблицы Messages: логины сравниваются
+     * побайтно в UTF-8, как их сравнивает SQLite.
+     * @param user1 первый пользователь
+     * @param user2 второй пользователь
+     * @return ключ переписки
      */
-    private static String hashPassword(String password, String salt) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = (salt + password).getBytes();
-            for (int i = 0; i < hash_iterations; i++) {
-                messageDigest.reset();
-                hash = messageDigest.digest(hash);
-            }
-            return Base64.getEncoder().encodeToString(hash);
-        } catch (NoSuchAlgorithmException e) {
-            logger.error("Hash error: " + e.getMessage());
-            return null;
+    static String conversationKey(String user1, String user2) {
+        int order = Arrays.compareUnsigned(user1.getBytes(StandardCharsets.UTF_8), user2.getBytes(StandardCharsets.UTF_8));
+        return order < 0 ? user1 + " " + user2 : user2 + " " + user1;
+    }
+
+    /**
+     * Проверяет, можно ли зарегистрировать такой логин.
+     * Логин не должен содержать пробелов, управляющих и невидимых символов форматирования:
+     * на этом держится однозначность ключа {@link #conversationKey} и построчные ответы
+     * текстового протокола, в которые логины попадают без экранирования.
+     * @param login логин
+     * @return true, если логин допустим
+     */
+    public static boolean isValidLogin(String login) {
+        if (login == null || login.isEmpty() || login.codePointCount(0, login.length()) > MAX_LOGIN_LENGTH) {
+            return false;
         }
+        return login.codePoints().noneMatch(c -> Character.isWhitespace(c) || Character.isSpaceChar(c)
+                || Character.isISOControl(c) || Character.getType(c) == Character.FORMAT);
     }
 
     /**
      * Регистрирует нового пользователя с логином и паролем.
+     * Пароль хэшируется текущим алгоритмом {@link PasswordHasher}, параметры хэша сохраняются вместе с ним.
+     * Недопустимый логин (см. {@link #isValidLogin}) не регистрируется, какой бы протокол его ни прислал.
      * @param login логин пользователя
      * @param password пароль пользователя
-     * @return true, если регистрация успешна, false если логин занят
+     * @return true, если регистрация успешна, false если логин занят или недопустим
      */
     public static boolean registerUser(String login, String password){
-        String salt = generateSalt();
-        try(PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO Users (login, salt, password) VALUES(?, ?, ?)")) {
-            String hash = hashPassword(password, salt);
-            preparedStatement.setString(1, login);
-            preparedStatement.setString(2, salt);
-            preparedStatement.setString(3, hash);
-            preparedStatement.executeUpdate();
-            return true;
-        } catch (SQLException e) {
-            logger.error("Register user error: " + e.getMessage());
+        if (!isValidLogin(login)) {
             return false;
         }
+        long start = System.nanoTime();
+        try {
+            String salt = PasswordHasher.generateSalt();
+            String hash = PasswordHasher.hash(password, salt);
+            try(ConnectionPool.PooledConnection connection = writer.acquire()) {
+                PreparedStatement preparedStatement = connection.prepare("INSERT INTO Users (login, salt, password, algorithm, iterations) VALUES(?, ?, ?, ?, ?)");
+                preparedStatement.setString(1, login);
+                preparedStatement.setString(2, salt);
+                preparedStatement.setString(3, hash);
+                preparedStatement.setString(4, PasswordHasher.ALGORITHM);
+                preparedStatement.setInt(5, ServerConfig.AUTH_ITERATIONS);
+                preparedStatement.executeUpdate();
+                UserDirectory.add(login);
+                return true;
+            } catch (SQLException e) {
+                logger.error("Register user error: {}", e.getMessage());
+                return false;
+            }
+        } finally {
+            registerUserTimer.record(start);
+        }
     }
 
     /**
      * Проверяет логин и пароль пользователя при входе.
+     * Если хэш пароля построен устаревшим алгоритмом или с меньшим числом итераций,
+     * после успешной проверки он пересчитывается текущими параметрами.
      * @param login логин
      * @param password пароль
      * @return true, если логин и пароль верны
      */
     public static boolean loginUser(String login, String password) {
-        try (PreparedStatement preparedStatement = connection.prepareStatement(
-                "SELECT salt, password FROM Users WHERE login = ?")) {
-            preparedStatement.setString(1, login);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (!resultSet.next()) return false;
-            String salt = resultSet.getString("salt");
-            String storedHash = resultSet.getString("password");
-            String hashAttempt = hashPassword(password, salt);
-            return storedHash.equals(hashAttempt);
+        long start = System.nanoTime();
+        try {
+            String salt;
+            String storedHash;
+            String algorithm;
+            int iterations;
+            try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+                PreparedStatement preparedStatement = connection.prepare(LOGIN_SQL);
+                preparedStatement.setString(1, login);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    if (!resultSet.next()) return false;
+                    salt = resultSet.getString("salt");
+                    storedHash = resultSet.getString("password");
+                    algorithm = resultSet.getString("algorithm");
+                    iterations = resultSet.getInt("iterations");
+                }
+            } catch (SQLException e) {
+                logger.error("Login user error: {}", e.getMessage());
+                return false;
+            }
+            if (algorithm == null) {
+                algorithm = PasswordHasher.LEGACY_ALGORITHM;
+                iterations = PasswordHasher.LEGACY_ITERATIONS;
+            }
+            String hashAttempt = PasswordHasher.hash(algorithm, iterations, password, salt);
+            if (!PasswordHasher.matches(storedHash, hashAttempt)) {
+                return false;
+            }
+            if (PasswordHasher.needsRehash(algorithm, iterations)) {
+                rehashPassword(login, password);
+            }
+            return true;
+        } finally {
+            loginUserTimer.record(start);
+        }
+    }
+
+    /**
+     * Пересчитывает хэш пароля текущим алгоритмом с новой солью.
+     * @param login логин
+     * @param password пароль, уже прошедший проверку
+     */
+    private static void rehashPassword(String login, String password) {
+        String salt = PasswordHasher.generateSalt();
+        String hash = PasswordHasher.hash(password, salt);
+        try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare("UPDATE Users SET salt = ?, password = ?, algorithm = ?, iterations = ? WHERE login = ?");
+            preparedStatement.setString(1, salt);
+            preparedStatement.setString(2, hash);
+            preparedStatement.setString(3, PasswordHasher.ALGORITHM);
+            preparedStatement.setInt(4, ServerConfig.AUTH_ITERATIONS);
+            preparedStatement.setString(5, login);
+            preparedStatement.executeUpdate();
+            logger.info("Password hash upgraded for {}", login);
         } catch (SQLException e) {
-            logger.error("Login user error: " + e.getMessage());
-            return false;
+            logger.error("Rehash password error: {}", e.getMessage());
         }
     }
 
     /**
-     * Сохраняет сообщение между пользователями в базе.
+     * Сохраняет сообщение между пользователями в хранилище сообщений.
+     * Хранилище SQLite записывает его асинхронно пачками, см. {@link MessageWriter}.
+     * Если переписка есть в {@link HistoryCache}, сообщение сразу добавляется и туда.
      * @param sender отправитель
      * @param recipient получатель
      * @param message текст сообщения
      * @param delivered true, если сообщение доставлено, false если оффлайн
      */
     public static void saveMessages(String sender, String recipient, String message, boolean delivered){
-        try(PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO Messages (sender, recipient, message, delivered) VALUES (?, ?, ?, ?)")){
-            preparedStatement.setString(1, sender);
-            preparedStatement.setString(2, recipient);
-            preparedStatement.setString(3, message);
-            preparedStatement.setInt(4, delivered ? 1 : 0);
-            preparedStatement.executeUpdate();
-        }catch (SQLException e) {
-            logger.error("Save message Error: " + e.getMessage());
+        saveMessages(sender, recipient, message, delivered, 0);
+    }
+
+    /**
+     * Сохраняет сообщение вместе с ID, который ему присвоил клиент, см. {@link #saveMessages(String, String, String, boolean)}.
+     * @param sender отправитель
+     * @param recipient получатель
+     * @param message текст сообщения
+     * @param delivered true, если сообщение доставлено, false если оффлайн или ждёт подтверждения
+     * @param clientId ID сообщения, присвоенный клиентом, или 0
+     * @return сохранённое сообщение; ID равен 0, если хранилище не смогло его назначить
+     */
+    public static MessageStore.StoredMessage saveMessages(String sender, String recipient, String message, boolean delivered, long clientId){
+        long start = System.nanoTime();
+        try {
+            MessageStore.StoredMessage stored = messageStore.save(sender, recipient, message, delivered, clientId);
+            if (historyCache != null) {
+                historyCache.add(conversationKey(sender, recipient), stored);
+            }
+            return stored;
+        } finally {
+            saveMessagesTimer.record(start);
         }
     }
 
     /**
-     * Получает оффлайн-сообщения для пользователя.
+     * Отмечает доставленным сообщение, получение которого подтвердил получатель.
+     * Отметки записываются пачками, см. {@link MessageStore#acknowledge}.
+     * @param login получатель
+     * @param messageId ID сообщения
+     */
+    public static void acknowledge(String login, long messageId) {
+        messageStore.acknowledge(login, messageId);
+    }
+
+    /**
+     * Последние ID клиента, с которыми пользователь отправлял сообщения, для отсева повторных отправок.
+     * @param login отправитель
+     * @param limit максимальное количество
+     * @return ID клиента и ID сохранённого сообщения
+     */
+    public static Map<Long, Long> recentClientIds(String login, int limit) {
+        return messageStore.recentClientIds(login, limit);
+    }
+
+    /**
+     * Отправляет пользователю его оффлайн-сообщения частями и отмечает их доставленными.
+     * <p>
+     * За один шаг читается не больше {@code messenger.offline.chunkSize} сообщений по возрастанию ID.
+     * Только после того как все строки части переданы в {@code sink}, диапазон их ID
+     * отмечается доставленным одним вызовом {@link MessageStore#markDelivered}. Если {@code sink} вернул false, отмечаются только
+     * уже переданные строки, остальные будут отправлены при следующем входе.
+     * Сообщения, записанные во время доставки, получают больший ID и не попадают в уже отмеченный диапазон.
+     * @param login логин получателя
+     * @param sink получатель строк в формате [время] отправитель: сообщение; false — соединение оборвалось
+     * @return количество доставленных сообщений
+     */
+    public static int deliverOfflineMessages(String login, Predicate<String> sink) {
+        return drainOffline(login, message -> sink.test("[" + message.time() + "] " + message.sender() + ": " + message.message()), true);
+    }
+
+    /**
+     * Отправляет пользователю, который подтверждает получение, все неподтверждённые сообщения.
+     * В отличие от {@link #deliverOfflineMessages}, сообщения не отмечаются доставленными:
+     * это делают подтверждения клиента, а неподтверждённые будут отправлены снова при следующем входе.
      * @param login логин получателя
-     * @return список сообщений в формате [время] отправитель: сообщение
-     */
-    public static List<String> getOfflineMessages(String login) {
-        List<String> messages = new ArrayList<>();
-        String sql = "SELECT sender, message, time FROM Messages WHERE recipient = ? AND delivered = 0 ORDER BY time";
-        try (PreparedStatement prepareStatement = connection.prepareStatement(sql)) {
-            prepareStatement.setString(1, login);
-            try (ResultSet rs = prepareStatement.executeQuery()) {
-                while (rs.next()) {
-                    String from = rs.getString("sender");
-                    String message = rs.getString("message");
-                    String time = rs.getString("time");
-
-                    messages.add("[" + time + "] " + from + ": " + message);
+     * @param sink получатель сообщений; false — соединение оборвалось
+     * @return количество отправленных сообщений
+     */
+    public static int redeliverOfflineMessages(String login, Predicate<MessageStore.StoredMessage> sink) {
+        return drainOffline(login, sink, false);
+    }
+
+    private static int drainOffline(String login, Predicate<MessageStore.StoredMessage> sink, boolean markDelivered) {
+        long start = System.nanoTime();
+        long lastId = 0;
+        int total = 0;
+        boolean[] connected = {true};
+        long[] range = new long[2];
+        while (connected[0]) {
+            range[0] = 0;
+            int count = messageStore.fetchOffline(login, lastId, ServerConfig.OFFLINE_CHUNK_SIZE, message -> {
+                if (!sink.test(message)) {
+                    connected[0] = false;
+                    return false;
+                }
+                if (range[0] == 0) range[0] = message.id();
+                range[1] = message.id();
+                return true;
+            });
+            if (count == 0) {
+                break;
+            }
+            lastId = range[1];
+            if (markDelivered) {
+                messageStore.markDelivered(login, range[0], lastId);
+            }
+            total += count;
+            if (count < ServerConfig.OFFLINE_CHUNK_SIZE) {
+                break;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        offlineDeliveredCount.add(total);
+        offlineDrainNanos.add(elapsed);
+        deliverOfflineMessagesTimer.recordNanos(elapsed);
+        if (total > 0) {
+            logger.info("Delivered {} offline messages to {} in {} ms", total, login, elapsed / 1_000_000);
+        }
+        return total;
+    }
+
+    /**
+     * @return сколько оффлайн-сообщений доставлено с момента запуска
+     */
+    public static long getOfflineDeliveredCount() {
+        return offlineDeliveredCount.sum();
+    }
+
+    /**
+     * @return суммарное время доставки оффлайн-сообщений в наносекундах
+     */
+    public static long getOfflineDrainNanos() {
+        return offlineDrainNanos.sum();
+    }
+
+    /**
+     * Передаёт все пары (канал, участник) из базы данных.
+     * @param consumer получатель пар
+     */
+    public static void loadChannelMembers(BiConsumer<String, String> consumer) {
+        try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare("SELECT channel, login FROM ChannelMembers");
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getString("channel"), resultSet.getString("login"));
                 }
             }
         } catch (SQLException e) {
-            logger.error("Get offline messages error: " + e.getMessage());
+            logger.error("Load channel members error: {}", e.getMessage());
         }
-        return messages;
     }
 
     /**
-     * Помечает все недоставленные сообщения пользователя как доставленные.
-     * @param login логин получателя
+     * Добавляет пользователя в канал. Курсор нового участника ставится на последнее сообщение канала,
+     * поэтому старые сообщения канала ему не рассылаются.
+     * @param channel канал
+     * @param login логин пользователя
+     * @return true, если пользователь добавлен, false если он уже участник или произошла ошибка
+     */
+    public static boolean joinChannel(String channel, String login) {
+        long start = System.nanoTime();
+        try {
+            messageWriter.awaitFlushed();
+            try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+                PreparedStatement preparedStatement = connection.prepare("INSERT OR IGNORE INTO ChannelMembers (channel, login, last_read_id) "
+                        + "VALUES (?, ?, (SELECT COALESCE(MAX(ID), 0) FROM ChannelMessages WHERE channel = ?))");
+                preparedStatement.setString(1, channel);
+                preparedStatement.setString(2, login);
+                preparedStatement.setString(3, channel);
+                return preparedStatement.executeUpdate() > 0;
+            } catch (SQLException e) {
+                logger.error("Join channel error: {}", e.getMessage());
+                return false;
+            }
+        } finally {
+            joinChannelTimer.record(start);
+        }
+    }
+
+    /**
+     * Удаляет пользователя из канала.
+     * @param channel канал
+     * @param login логин пользователя
+     * @return true, если пользователь был участником
+     */
+    public static boolean leaveChannel(String channel, String login) {
+        long start = System.nanoTime();
+        try {
+            try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+                PreparedStatement preparedStatement = connection.prepare("DELETE FROM ChannelMembers WHERE channel = ? AND login = ?");
+                preparedStatement.setString(1, channel);
+                preparedStatement.setString(2, login);
+                return preparedStatement.executeUpdate() > 0;
+            } catch (SQLException e) {
+                logger.error("Leave channel error: {}", e.getMessage());
+                return false;
+            }
+        } finally {
+            leaveChannelTimer.record(start);
+        }
+    }
+
+    /**
+     * Ставит сообщение канала в очередь на запись. В базе хранится одна строка на сообщение,
+     * а не по строке на каждого участника.
+     * @param sender отправитель
+     * @param channel канал
+     * @param message текст сообщения
+     * @param returnId true, если нужен ID сообщения, см. {@link MessageWriter#saveChannel}
+     * @return будущий ID сообщения или null, если он не запрошен
+     */
+    public static CompletableFuture<Long> saveChannelMessage(String sender, String channel, String message, boolean returnId) {
+        long start = System.nanoTime();
+        try {
+            return messageWriter.saveChannel(sender, channel, message, returnId);
+        } finally {
+            saveChannelMessageTimer.record(start);
+        }
+    }
+
+    /**
+     * Ждёт записи сообщения канала, ID которого запрошен в {@link #saveChannelMessage}.
+     * @param id будущий ID
+     * @return ID сообщения или 0, если его не удалось записать
+     */
+    public static long awaitChannelMessageId(CompletableFuture<Long> id) {
+        return messageWriter.awaitId(id);
+    }
+
+    /**
+     * Отмечает в очереди записи момент входа пользователя, см. {@link MessageWriter#channelBarrier}.
+     * @return отметка для {@link #deliverChannelBacklog}
+     */
+    public static CompletableFuture<Long> channelBarrier() {
+        return messageWriter.channelBarrier();
+    }
+
+    /**
+     * Отправляет пользователю сообщения его каналов, пришедшие после его курсора и до входа, и сдвигает курсор.
+     * Сообщения после отметки {@code barrier} пользователь уже получил напрямую, поэтому они не повторяются.
+     * Как и {@link #deliverOfflineMessages}, читает частями и сдвигает курсор только после передачи части.
+     * @param login логин пользователя
+     * @param barrier отметка {@link #channelBarrier}, поставленная до того, как пользователь стал активным
+     * @param sink получатель строк в формате [время] [канал] отправитель: сообщение; false — соединение оборвалось
+     * @return количество доставленных сообщений
      */
-    public static void markDeliveredMessages(String login){
-        try(PreparedStatement preparedStatement = connection.prepareStatement("UPDATE Messages SET delivered = 1 WHERE recipient = ? AND delivered = 0")){
-            preparedStatement.setString(1, login);
+    public static int deliverChannelBacklog(String login, CompletableFuture<Long> barrier, Predicate<String> sink) {
+        long start = System.nanoTime();
+        try {
+            long upToId = messageWriter.awaitChannelBarrier(barrier);
+            Map<String, Long> cursors = new LinkedHashMap<>();
+            try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+                PreparedStatement preparedStatement = connection.prepare(CHANNEL_CURSORS_SQL);
+                preparedStatement.setString(1, login);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        cursors.put(resultSet.getString("channel"), resultSet.getLong("last_read_id"));
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Get channel cursors error: {}", e.getMessage());
+                return 0;
+            }
+            int total = 0;
+            for (Map.Entry<String, Long> cursor : cursors.entrySet()) {
+                String channel = cursor.getKey();
+                long lastId = cursor.getValue();
+                while (true) {
+                    long readId = lastId;
+                    int count = 0;
+                    boolean connected = true;
+                    try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+                        PreparedStatement preparedStatement = connection.prepare(CHANNEL_BACKLOG_SQL);
+                        preparedStatement.setString(1, channel);
+                        preparedStatement.setLong(2, lastId);
+                        preparedStatement.setLong(3, upToId);
+                        preparedStatement.setInt(4, ServerConfig.OFFLINE_CHUNK_SIZE);
+                        try (ResultSet rs = preparedStatement.executeQuery()) {
+                            while (rs.next()) {
+                                if (!sink.test("[" + rs.getString("time") + "] [" + channel + "] " + rs.getString("sender") + ": " + rs.getString("message"))) {
+                                    connected = false;
+                                    break;
+                                }
+                                readId = rs.getLong("ID");
+                                count++;
+                            }
+                        }
+                    } catch (SQLException e) {
+                        logger.error("Get channel messages error: {}", e.getMessage());
+                        return total;
+                    }
+                    if (count > 0) {
+                        setChannelCursor(channel, login, readId);
+                        total += count;
+                        lastId = readId;
+                    }
+                    if (!connected) {
+                        return total;
+                    }
+                    if (count < ServerConfig.OFFLINE_CHUNK_SIZE) {
+                        break;
+                    }
+                }
+            }
+            return total;
+        } finally {
+            deliverChannelBacklogTimer.record(start);
+        }
+    }
+
+    /**
+     * Сдвигает курсоры всех каналов пользователя на последнее сообщение канала перед отметкой выхода.
+     * Вызывается при отключении: пока пользователь был в сети, сообщения каналов доставлялись ему сразу,
+     * поэтому курсор обновляется один раз за сессию, а не на каждое сообщение.
+     * Курсор канала, сообщение которого не приняла очередь пользователя, остаётся перед этим сообщением:
+     * оно и следующие за ним придут из истории канала при следующем входе.
+     * @param login логин пользователя
+     * @param barrier отметка {@link #channelBarrier}, поставленная, когда пользователь перестал быть активным
+     * @param stops канал — будущий ID первого сообщения, которое пользователь не получил
+     */
+    public static void markChannelsRead(String login, CompletableFuture<Long> barrier, Map<String, CompletableFuture<Long>> stops) {
+        long start = System.nanoTime();
+        try {
+            long upToId = messageWriter.awaitChannelBarrier(barrier);
+            // ID ждут до захвата соединения-писателя: без него очередь записи не запишет их пачку.
+            Map<String, Long> stopIds = new LinkedHashMap<>();
+            stops.forEach((channel, id) -> stopIds.put(channel, messageWriter.awaitId(id)));
+            try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+                Connection transaction = connection.getConnection();
+                transaction.setAutoCommit(false);
+                try {
+                    PreparedStatement preparedStatement = connection.prepare("UPDATE ChannelMembers SET last_read_id = MAX(last_read_id, "
+                            + "COALESCE((SELECT MAX(ID) FROM ChannelMessages WHERE channel = ChannelMembers.channel AND ID <= ?), 0)) WHERE login = ?");
+                    preparedStatement.setLong(1, upToId);
+                    preparedStatement.setString(2, login);
+                    preparedStatement.executeUpdate();
+                    for (Map.Entry<String, Long> stop : stopIds.entrySet()) {
+                        long stopId = stop.getValue();
+                        if (stopId > 0) {
+                            PreparedStatement stopStatement = connection.prepare("UPDATE ChannelMembers SET last_read_id = MIN(last_read_id, ?) WHERE channel = ? AND login = ?");
+                            stopStatement.setLong(1, stopId - 1);
+                            stopStatement.setString(2, stop.getKey());
+                            stopStatement.setString(3, login);
+                            stopStatement.executeUpdate();
+                        }
+                    }
+                    transaction.commit();
+                } catch (SQLException e) {
+                    transaction.rollback();
+                    throw e;
+                } finally {
+                    transaction.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                logger.error("Mark channels read error: {}", e.getMessage());
+            }
+        } finally {
+            markChannelsReadTimer.record(start);
+        }
+    }
+
+    private static void setChannelCursor(String channel, String login, long lastReadId) {
+        try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare("UPDATE ChannelMembers SET last_read_id = ? WHERE channel = ? AND login = ?");
+            preparedStatement.setLong(1, lastReadId);
+            preparedStatement.setString(2, channel);
+            preparedStatement.setString(3, login);
             preparedStatement.executeUpdate();
-        }catch (SQLException e){
-            logger.error("Mark delivered messages error: " + e.getMessage());
+        } catch (SQLException e) {
+            logger.error("Set channel cursor error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Передаёт логины всех зарегистрированных пользователей.
+     * @param consumer получатель логинов
+     */
+    public static void loadLogins(Consumer<String> consumer) {
+        try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare("SELECT Login FROM Users");
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Load logins error: {}", e.getMessage());
         }
     }
 
@@ -188,40 +704,93 @@ public class DataBase {
      * @return true, если пользователь существует
      */
     public static boolean userCheck(String login){
-        try(PreparedStatement preparedStatement = connection.prepareStatement("SELECT 1 FROM Users WHERE login = ?")) {
-            preparedStatement.setString(1, login);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            return resultSet.next();
-        }catch (SQLException e){
-            logger.error("User check error: " + e.getMessage());
-            return false;
+        long start = System.nanoTime();
+        try {
+            try(ConnectionPool.PooledConnection connection = readers.acquire()) {
+                PreparedStatement preparedStatement = connection.prepare(USER_CHECK_SQL);
+                preparedStatement.setString(1, login);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    return resultSet.next();
+                }
+            }catch (SQLException e){
+                logger.error("User check error: {}", e.getMessage());
+                return false;
+            }
+        } finally {
+            userCheckTimer.record(start);
         }
     }
 
     /**
-     * Возвращает историю сообщений между двумя пользователями.
+     * Передаёт страницу истории сообщений между двумя пользователями в хронологическом порядке.
+     * <p>
+     * Страница — это {@code limit} последних сообщений с ID меньше {@code beforeId}
+     * (keyset-пагинация по ID), см. {@link MessageStore#history}.
+     * Первая страница размером до {@code messenger.history.cacheMessages} отдаётся из {@link HistoryCache}.
      * @param user1 первый пользователь
      * @param user2 второй пользователь
-     * @return список сообщений с временными отметками
-     */
-    public static List<String> getMessageHistory(String user1, String user2){
-        List<String> messageHistory = new ArrayList<>();
-        try(PreparedStatement preparedStatement = connection.prepareStatement("SELECT sender, recipient, message, time FROM Messages WHERE (sender = ? AND recipient = ?) OR (sender = ? AND recipient = ?) ORDER BY time")) {
-            preparedStatement.setString(1, user1);
-            preparedStatement.setString(2, user2);
-            preparedStatement.setString(3, user2);
-            preparedStatement.setString(4, user1);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()){
-                String sender = resultSet.getString("sender");
-                String recipient = resultSet.getString("recipient");
-                String message = resultSet.getString("message");
-                String time = resultSet.getString("time");
-                messageHistory.add("[" + time + "] " + "from " + sender + " to " + recipient + ": " + message);
+     * @param limit максимальное количество сообщений на странице
+     * @param beforeId показывать только сообщения с ID меньше этого значения
+     * @param sink получатель строк; если он вернул false, передача прекращается
+     * @return ID самого старого сообщения страницы — курсор для следующей страницы, или 0, если сообщений нет
+     */
+    public static long streamMessageHistory(String user1, String user2, int limit, long beforeId, Predicate<String> sink){
+        long start = System.nanoTime();
+        try {
+            if (historyCache != null && beforeId == Long.MAX_VALUE && limit <= historyCache.getCapacity()) {
+                String key = conversationKey(user1, user2);
+                List<HistoryCache.Line> page = historyCache.firstPage(key, limit);
+                if (page == null) {
+                    HistoryCache.Conversation loading = historyCache.startLoad(key);
+                    if (loading != null) {
+                        List<HistoryCache.Line> loaded = new ArrayList<>(historyCache.getCapacity());
+                        messageStore.history(user1, user2, historyCache.getCapacity(), Long.MAX_VALUE,
+                                message -> loaded.add(new HistoryCache.Line(message.id(), historyLine(message))));
+                        page = historyCache.fill(key, loading, loaded, limit);
+                    }
+                }
+                if (page != null) {
+                    for (HistoryCache.Line line : page) {
+                        if (!sink.test(line.text())) {
+                            break;
+                        }
+                    }
+                    return page.isEmpty() ? 0 : page.get(0).id();
+                }
             }
-        }catch (SQLException e){
-            logger.error("Message history error: " + e.getMessage());
+            return messageStore.history(user1, user2, limit, beforeId, message -> sink.test(historyLine(message)));
+        } finally {
+            streamMessageHistoryTimer.record(start);
+        }
+    }
+
+    private static String historyLine(MessageStore.StoredMessage message) {
+        return "[" + message.time() + "] " + "from " + message.sender() + " to " + message.recipient() + ": " + message.message();
+    }
+
+    /**
+     * @return кэш первых страниц истории или {@code null}, если он выключен
+     */
+    public static HistoryCache getHistoryCache() {
+        return historyCache;
+    }
+
+    /**
+     * Передаёт страницу результатов поиска по сообщениям пользователя, от самых подходящих, см. {@link MessageStore#search}.
+     * @param login пользователь, который ищет; ищутся только его отправленные и полученные сообщения
+     * @param terms слова, которые должны быть в сообщении; {@code *} в конце слова — поиск по префиксу
+     * @param user второй участник переписки или {@code null} — все переписки
+     * @param pageSize количество результатов на странице
+     * @param page номер страницы, начиная с 1
+     * @param sink получатель строк; если он вернул false, передача прекращается
+     * @return количество переданных строк
+     */
+    public static int searchMessages(String login, List<String> terms, String user, int pageSize, int page, Predicate<String> sink){
+        long start = System.nanoTime();
+        try {
+            return messageStore.search(login, terms, user, pageSize, (page - 1) * pageSize, message -> sink.test(historyLine(message)));
+        } finally {
+            searchMessagesTimer.record(start);
         }
-        return messageHistory;
     }
 }
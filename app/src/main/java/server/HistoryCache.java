@@ -0,0 +1,281 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Кэш последних сообщений популярных переписок для первой страницы {@code /history}.
+ * <p>
+ * Для каждой переписки хранится до {@code messenger.history.cacheMessages} последних сообщений
+ * уже в виде готовых строк ответа, поэтому первая страница не читает базу и не форматирует строки заново.
+ * Переписка попадает в кэш при первом чтении истории, а новые сообщения добавляются в неё при сохранении
+ * (write-through), так что кэш не устаревает и видит только что отправленные сообщения.
+ * <p>
+ * Размер ограничен приблизительным объёмом строк ({@code messenger.history.cacheMb});
+ * при превышении вытесняются переписки, которые дольше всех не читались и не пополнялись (LRU).
+ * Все операции короткие и выполняются под одной блокировкой.
+ */
+public class HistoryCache {
+
+    /** Приблизительные накладные расходы на одну строку: запись, объект String и ссылка в очереди. */
+    private static final long LINE_OVERHEAD = 64;
+
+    /**
+     * Строка истории.
+     *
+     * @param id ID сообщения
+     * @param text строка ответа клиенту
+     */
+    record Line(long id, String text) {
+    }
+
+    /**
+     * Последние сообщения одной переписки по возрастанию ID.
+     * Пока {@code loading}, история читается из хранилища, а новые сообщения уже добавляются в {@code lines}.
+     */
+    static final class Conversation {
+        private final ArrayDeque<Line> lines = new ArrayDeque<>();
+        private long bytes;
+        private boolean complete;
+        private boolean loading = true;
+    }
+
+    private final int capacity;
+    private final long maxBytes;
+    private final Function<MessageStore.StoredMessage, String> formatter;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile long bytes;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param capacity сколько последних сообщений хранить на переписку
+     * @param maxBytes приблизительный предел объёма кэша
+     * @param formatter строка ответа для сохранённого сообщения
+     */
+    public HistoryCache(int capacity, long maxBytes, Function<MessageStore.StoredMessage, String> formatter) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.formatter = formatter;
+    }
+
+    /** @return сколько последних сообщений хранится на переписку */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Возвращает последние {@code limit} строк переписки, если они все есть в кэше.
+     *
+     * @param key ключ переписки
+     * @param limit размер страницы, не больше {@link #getCapacity()}
+     * @return строки по возрастанию ID или {@code null}, если переписки нет в кэше
+     */
+    List<Line> firstPage(String key, int limit) {
+        lock.lock();
+        try {
+            Conversation conversation = conversations.get(key);
+            if (conversation == null || conversation.loading || (conversation.lines.size() < limit && !conversation.complete)) {
+                missCount.increment();
+                return null;
+            }
+            hitCount.increment();
+            return tail(conversation, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Отмечает, что переписка загружается. Сообщения, сохранённые до {@link #fill}, попадут в кэш.
+     *
+     * @param key ключ переписки
+     * @return метка загрузки для {@link #fill} или {@code null}, если переписку уже загружает другой поток
+     */
+    Conversation startLoad(String key) {
+        lock.lock();
+        try {
+            Conversation current = conversations.get(key);
+            if (current != null && current.loading) {
+                return null;
+            }
+            Conversation conversation = new Conversation();
+            Conversation previous = conversations.put(key, conversation);
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            return conversation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Заполняет переписку прочитанной из хранилища историей и возвращает первую страницу.
+     * Сообщения, сохранённые во время чтения, добавляются после прочитанных.
+     *
+     * @param key ключ переписки
+     * @param conversation метка из {@link #startLoad}
+     * @param loaded последние сообщения переписки по возрастанию ID, не больше {@link #getCapacity()}
+     * @param limit размер страницы
+     * @return строки страницы по возрастанию ID
+     */
+    List<Line> fill(String key, Conversation conversation, List<Line> loaded, int limit) {
+        lock.lock();
+        try {
+            if (conversations.get(key) != conversation) {
+                // Переписку успели вытеснить или перезагрузить: отдаём прочитанное без кэширования.
+                return loaded.subList(Math.max(0, loaded.size() - limit), loaded.size());
+            }
+            if (loaded.isEmpty() && conversation.lines.isEmpty()) {
+                // Пустые переписки не кэшируются: пустой ответ мог быть и ошибкой чтения.
+                conversations.remove(key);
+                return loaded;
+            }
+            long lastLoaded = loaded.isEmpty() ? 0 : loaded.get(loaded.size() - 1).id();
+            ArrayDeque<Line> saved = new ArrayDeque<>(conversation.lines);
+            conversation.lines.clear();
+            bytes -= conversation.bytes;
+            conversation.bytes = 0;
+            for (Line line : loaded) {
+                append(conversation, line);
+            }
+            for (Line line : saved) {
+                if (line.id() > lastLoaded) {
+                    append(conversation, line);
+                }
+            }
+            conversation.complete = loaded.size() < capacity;
+            conversation.loading = false;
+            trim(conversation);
+            List<Line> page = tail(conversation, limit);
+            evict();
+            return page;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Добавляет сохранённое сообщение в его переписку, если она есть в кэше.
+     *
+     * @param key ключ переписки
+     * @param message сохранённое сообщение; если у него нет ID, переписка удаляется из кэша
+     */
+    void add(String key, MessageStore.StoredMessage message) {
+        lock.lock();
+        try {
+            Conversation conversation = conversations.get(key);
+            if (conversation == null) {
+                return;
+            }
+            if (message.id() <= 0) {
+                conversations.remove(key);
+                bytes -= conversation.bytes;
+                return;
+            }
+            append(conversation, new Line(message.id(), formatter.apply(message)));
+            trim(conversation);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Добавляет строку, сохраняя порядок ID: потоки отправителей могут добавить сообщения не в порядке их ID.
+     */
+    private void append(Conversation conversation, Line line) {
+        if (conversation.lines.isEmpty() || conversation.lines.peekLast().id() < line.id()) {
+            conversation.lines.addLast(line);
+        } else {
+            List<Line> later = new ArrayList<>();
+            while (!conversation.lines.isEmpty() && conversation.lines.peekLast().id() > line.id()) {
+                later.add(conversation.lines.pollLast());
+            }
+            conversation.lines.addLast(line);
+            for (int i = later.size() - 1; i >= 0; i--) {
+                conversation.lines.addLast(later.get(i));
+            }
+        }
+        long size = size(line);
+        conversation.bytes += size;
+        bytes += size;
+    }
+
+    private void trim(Conversation conversation) {
+        while (conversation.lines.size() > capacity) {
+            long size = size(conversation.lines.pollFirst());
+            conversation.bytes -= size;
+            bytes -= size;
+            conversation.complete = false;
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Conversation>> iterator = conversations.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Conversation conversation = iterator.next().getValue();
+            iterator.remove();
+            bytes -= conversation.bytes;
+            evictionCount.increment();
+        }
+    }
+
+    private static List<Line> tail(Conversation conversation, int limit) {
+        int skip = Math.max(0, conversation.lines.size() - limit);
+        List<Line> page = new ArrayList<>(Math.min(limit, conversation.lines.size()));
+        for (Line line : conversation.lines) {
+            if (skip > 0) {
+                skip--;
+            } else {
+                page.add(line);
+            }
+        }
+        return page;
+    }
+
+    private static long size(Line line) {
+        return LINE_OVERHEAD + 2L * line.text().length();
+    }
+
+    /** @return сколько первых страниц отдано из кэша */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** @return сколько первых страниц пришлось читать из хранилища */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /** @return сколько переписок вытеснено из кэша */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /** @return приблизительный объём кэша в байтах */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** @return количество переписок в кэше */
+    public int getConversationCount() {
+        lock.lock();
+        try {
+            return conversations.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
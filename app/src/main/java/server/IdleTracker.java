@@ -0,0 +1,212 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Отслеживание простаивающих соединений на колесе таймеров.
+ * <p>
+ * Один поток раз в секунду продвигает колесо и проверяет только соединения, срок которых наступил.
+ * Обработчик при каждой входящей команде лишь записывает номер текущего тика в {@link Entry#lastActive},
+ * а колесо не трогает: при проверке соединение с недавней активностью просто переносится на новый срок.
+ * <p>
+ * Если клиент молчит {@code messenger.idle.pingMs}, ему отправляется {@code /ping}
+ * (кадр {@link protocol.FrameCodec#PING} в двоичном протоколе). Если он молчит и дальше
+ * и не отвечает до {@code messenger.idle.timeoutMs}, соединение закрывается.
+ * Соединение, не вошедшее в систему за {@code messenger.idle.loginTimeoutMs}, закрывается независимо от активности.
+ */
+public class IdleTracker {
+
+    private static final Logger logger = LogManager.getLogger(IdleTracker.class);
+
+    private static final long TICK_MS = 1000;
+    private static final int WHEEL_SIZE = 512;
+
+    private static final Entry[] wheel = new Entry[WHEEL_SIZE];
+    private static final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    private static final LongAdder pingCount = new LongAdder();
+    private static final LongAdder idleClosedCount = new LongAdder();
+    private static final LongAdder loginTimeoutCount = new LongAdder();
+    private static volatile boolean running;
+    private static volatile long tick;
+    private static volatile int trackedCount;
+
+    /**
+     * Запускает поток колеса, если {@code messenger.idle.timeoutMs} больше нуля.
+     */
+    public static void start(){
+        if (ServerConfig.IDLE_TIMEOUT_MS <= 0) {
+            return;
+        }
+        running = true;
+        Thread.ofPlatform().name("idle-tracker").daemon(true).start(IdleTracker::run);
+        logger.info("Idle tracker started: ping after {} ms, close after {} ms, login within {} ms",
+                ServerConfig.IDLE_PING_MS, ServerConfig.IDLE_TIMEOUT_MS, ServerConfig.LOGIN_TIMEOUT_MS);
+    }
+
+    /**
+     * Начинает отслеживать соединение.
+     * @param handler обработчик нового соединения
+     * @return запись, в которой обработчик отмечает свою активность
+     */
+    static Entry track(ClientHandler handler){
+        Entry entry = new Entry(handler, tick);
+        if (running) {
+            incoming.add(entry);
+        }
+        return entry;
+    }
+
+    private static void run(){
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MS);
+        long next = System.nanoTime();
+        while (true) {
+            next += tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < next) {
+                LockSupport.parkNanos(next - now);
+            }
+            tick++;
+            try {
+                advance();
+            } catch (RuntimeException e) {
+                logger.error("Idle tracker error: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Раскладывает новые соединения по колесу и проверяет соединения текущей ячейки.
+     * Выполняется только в потоке колеса.
+     */
+    private static void advance(){
+        Entry entry;
+        while ((entry = incoming.poll()) != null) {
+            trackedCount++;
+            schedule(entry);
+        }
+        int slot = (int) (tick % WHEEL_SIZE);
+        Entry list = wheel[slot];
+        wheel[slot] = null;
+        while (list != null) {
+            entry = list;
+            list = entry.next;
+            entry.next = null;
+            if (entry.deadline > tick) {
+                // Срок на следующем обороте колеса.
+                place(entry);
+            } else {
+                check(entry);
+            }
+        }
+    }
+
+    private static void check(Entry entry){
+        ClientHandler handler = entry.handler;
+        if (handler.isClosed()) {
+            trackedCount--;
+            return;
+        }
+        long idle = tick - entry.lastActive;
+        if (!handler.isAuthenticated() && tick - entry.opened >= ticks(ServerConfig.LOGIN_TIMEOUT_MS)) {
+            loginTimeoutCount.increment();
+            trackedCount--;
+            handler.reclaim("Login timeout");
+            return;
+        }
+        if (idle >= ticks(ServerConfig.IDLE_TIMEOUT_MS)) {
+            idleClosedCount.increment();
+            trackedCount--;
+            handler.reclaim("Idle timeout");
+            return;
+        }
+        if (idle >= ticks(ServerConfig.IDLE_PING_MS) && entry.pingedFor != entry.lastActive) {
+            pingCount.increment();
+            entry.pingedFor = entry.lastActive;
+            handler.ping();
+        }
+        schedule(entry);
+    }
+
+    /**
+     * Ставит соединение на ближайший срок: отправку ping, закрытие или окончание времени на вход.
+     */
+    private static void schedule(Entry entry){
+        long lastActive = entry.lastActive;
+        long deadline = entry.pingedFor == lastActive
+                ? lastActive + ticks(ServerConfig.IDLE_TIMEOUT_MS)
+                : lastActive + ticks(ServerConfig.IDLE_PING_MS);
+        if (!entry.handler.isAuthenticated()) {
+            deadline = Math.min(deadline, entry.opened + ticks(ServerConfig.LOGIN_TIMEOUT_MS));
+        }
+        entry.deadline = Math.max(deadline, tick + 1);
+        place(entry);
+    }
+
+    private static void place(Entry entry){
+        int slot = (int) (entry.deadline % WHEEL_SIZE);
+        entry.next = wheel[slot];
+        wheel[slot] = entry;
+    }
+
+    private static long ticks(long millis){
+        return (millis + TICK_MS - 1) / TICK_MS;
+    }
+
+    /** @return сколько раз клиентам отправлен ping */
+    public static long getPingCount(){
+        return pingCount.sum();
+    }
+
+    /** @return сколько соединений закрыто из-за простоя */
+    public static long getIdleClosedCount(){
+        return idleClosedCount.sum();
+    }
+
+    /** @return сколько соединений закрыто, потому что клиент не вошёл вовремя */
+    public static long getLoginTimeoutCount(){
+        return loginTimeoutCount.sum();
+    }
+
+    /** @return количество отслеживаемых соединений */
+    public static int getTrackedCount(){
+        return trackedCount;
+    }
+
+    /**
+     * Состояние одного отслеживаемого соединения.
+     * Поля, кроме {@link #lastActive}, меняет только поток колеса.
+     * {@link #pingedFor} — значение {@link #lastActive}, при котором уже отправлен ping:
+     * за один период тишины ping отправляется один раз.
+     */
+    static final class Entry {
+
+        private final ClientHandler handler;
+        private final long opened;
+        private volatile long lastActive;
+        private long deadline;
+        private long pingedFor = -1;
+        private Entry next;
+
+        private Entry(ClientHandler handler, long opened) {
+            this.handler = handler;
+            this.opened = opened;
+            this.lastActive = opened;
+        }
+
+        /**
+         * Отмечает входящую команду или ответ на ping.
+         */
+        void touch() {
+            long now = tick;
+            if (lastActive != now) {
+                lastActive = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей с фиксированными границами корзин в секундах.
+ * <p>
+ * Каждая корзина — отдельный {@link LongAdder}, поэтому запись из многих потоков
+ * не создаёт конкуренции за одну ячейку памяти. Метрика выводится в формате Prometheus
+ * как {@code histogram}, см. {@link Metrics}.
+ */
+public final class LatencyTimer {
+
+    /** Верхние границы корзин в секундах, от 100 мкс до 10 с. */
+    static final double[] BOUNDS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+        }
+    }
+
+    final String name;
+    final String labels;
+    final String help;
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyTimer(String name, String labels, String help) {
+        this.name = name;
+        this.labels = labels;
+        this.help = help;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Записывает время, прошедшее с момента {@code startNanos}.
+     * @param startNanos значение {@link System#nanoTime()} в начале операции
+     */
+    public void record(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Записывает длительность.
+     * @param nanos длительность в наносекундах
+     */
+    public void recordNanos(long nanos) {
+        int i = 0;
+        while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @param bucket номер корзины; корзина {@code BOUNDS.length} — всё, что больше последней границы
+     * @return количество значений в корзине
+     */
+    long bucket(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    /** @return количество значений */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** @return сумма значений в секундах */
+    public double getSumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+}
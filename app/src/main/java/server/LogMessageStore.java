@@ -0,0 +1,663 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Хранилище сообщений в журнале только для дописывания.
+ * <p>
+ * Журнал разбит на сегменты фиксированного размера ({@code messenger.store.log.segmentMb}),
+ * каждый сегмент отображён в память, и запись сообщения — это копирование байтов в конец
+ * активного сегмента без обращения к диску. Отображение сбрасывается на диск фоновым потоком
+ * раз в {@code messenger.store.log.flushMs} миллисекунд и при переходе к следующему сегменту.
+ * <p>
+ * Запись журнала: длина тела, CRC32 тела и тело. Тело начинается с типа:
+ * <ul>
+ *     <li>сообщение — ID, признак доставки, отправитель, получатель, время и текст;</li>
+ *     <li>отметка доставки — диапазон ID и получатель; сами сообщения не переписываются.</li>
+ * </ul>
+ * Индексы хранятся в памяти: для каждого получателя — позиции его недоставленных сообщений,
+ * для каждой переписки — позиции всех её сообщений. При запуске они восстанавливаются чтением журнала;
+ * чтение останавливается на первой записи с неверной длиной или контрольной суммой.
+ * <p>
+ * Фоновое уплотнение переписывает сегменты, закрытые после прошлого уплотнения:
+ * признак доставки переносится в сами сообщения, а отметки доставки этих сообщений убираются.
+ * После уплотнения состояние доставки восстанавливается из одних сообщений, а сегменты заполнены без пропусков.
+ * <p>
+ * Журнал принадлежит одному процессу, поэтому это хранилище не подходит для кластера из нескольких узлов.
+ */
+public class LogMessageStore implements MessageStore {
+
+    private static final Logger logger = LogManager.getLogger(LogMessageStore.class);
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_DELIVERED = 2;
+    /** Длина и контрольная сумма перед телом записи. */
+    private static final int HEADER = 8;
+    /** Смещение признака доставки в теле сообщения: тип и ID. */
+    private static final int DELIVERED_OFFSET = 9;
+
+    /**
+     * Новая позиция сообщения после уплотнения.
+     */
+    private record Relocation(long id, String conversation, String recipient, long position) {
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    /** Недоставленные сообщения: получатель — (ID — позиция записи). */
+    private final Map<String, ConcurrentSkipListMap<Long, Long>> offline = new ConcurrentHashMap<>();
+    /** История: ключ переписки — (ID — позиция записи). */
+    private final Map<String, ConcurrentSkipListMap<Long, Long>> conversations = new ConcurrentHashMap<>();
+    /** Порядок записей в журнале; под ней же обновляются индексы. */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    /** Чтение записей по позициям из индекса; уплотнение меняет позиции под блокировкой записи. */
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService background = Executors.newScheduledThreadPool(2,
+            Thread.ofPlatform().name("message-log-", 0).daemon(true).factory());
+    private volatile Segment active;
+    private long nextId = 1;
+    /** Последний сегмент, уже прошедший уплотнение; при запуске уплотняются все закрытые сегменты. */
+    private long compactedThrough;
+
+    private final LongAdder appendedCount = new LongAdder();
+    private final LongAdder compactionCount = new LongAdder();
+    private final LongAdder compactedBytes = new LongAdder();
+
+    /**
+     * Открывает журнал в каталоге, восстанавливает индексы и запускает фоновый сброс и уплотнение.
+     *
+     * @param directory каталог сегментов; создаётся, если его нет
+     * @param segmentSize размер сегмента в байтах
+     * @param flushMs период сброса активного сегмента на диск
+     * @param compactIntervalMs период проверки, нужно ли уплотнение
+     * @throws IOException если не удалось открыть сегменты
+     */
+    public LogMessageStore(Path directory, int segmentSize, long flushMs, long compactIntervalMs) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(COMPACT_SUFFIX)) {
+                    // Незавершённое уплотнение: исходные сегменты ещё на месте.
+                    Files.delete(file);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    sequences.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(sequences);
+        for (long seq : sequences) {
+            Segment segment = Segment.open(segmentPath(seq), seq, segmentSize);
+            recover(segment);
+            segments.put(seq, segment);
+        }
+        if (segments.isEmpty()) {
+            segments.put(1L, Segment.open(segmentPath(1), 1, segmentSize));
+        }
+        active = segments.lastEntry().getValue();
+        background.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+        background.scheduleWithFixedDelay(this::compact, compactIntervalMs, compactIntervalMs, TimeUnit.MILLISECONDS);
+        logger.info("Message log opened: {} segments, next ID {}", segments.size(), nextId);
+    }
+
+    @Override
+    public StoredMessage save(String sender, String recipient, String message, boolean delivered) {
+        String time = LocalDateTime.now(ZoneOffset.UTC).format(TIME_FORMAT);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] timeBytes = time.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(DELIVERED_OFFSET + 1 + 16
+                + senderBytes.length + recipientBytes.length + timeBytes.length + messageBytes.length);
+        body.put(TYPE_MESSAGE).putLong(0).put((byte) (delivered ? 1 : 0));
+        putString(body, senderBytes);
+        putString(body, recipientBytes);
+        putString(body, timeBytes);
+        putString(body, messageBytes);
+        appendLock.lock();
+        try {
+            long id = nextId;
+            body.putLong(1, id);
+            long position = append(body.array());
+            nextId++;
+            conversations.computeIfAbsent(DataBase.conversationKey(sender, recipient), key -> new ConcurrentSkipListMap<>()).put(id, position);
+            if (!delivered) {
+                offline.computeIfAbsent(recipient, key -> new ConcurrentSkipListMap<>()).put(id, position);
+            }
+            appendedCount.increment();
+            return new StoredMessage(id, sender, recipient, message, time);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.error("Save message Error: {}, message from {} is lost", e.getMessage(), sender);
+            return new StoredMessage(0, sender, recipient, message, time);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public int fetchOffline(String recipient, long afterId, int limit, Predicate<StoredMessage> visitor) {
+        ConcurrentSkipListMap<Long, Long> index = offline.get(recipient);
+        if (index == null) {
+            return 0;
+        }
+        List<StoredMessage> chunk = new ArrayList<>(Math.min(limit, index.size()));
+        swapLock.readLock().lock();
+        try {
+            for (long position : index.tailMap(afterId, false).values()) {
+                if (chunk.size() >= limit) {
+                    break;
+                }
+                chunk.add(read(position));
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        int count = 0;
+        for (StoredMessage message : chunk) {
+            if (!visitor.test(message)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void markDelivered(String recipient, long fromId, long toId) {
+        ConcurrentSkipListMap<Long, Long> index = offline.get(recipient);
+        if (index == null) {
+            return;
+        }
+        byte[] recipientBytes = recipient.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 16 + 4 + recipientBytes.length);
+        body.put(TYPE_DELIVERED).putLong(fromId).putLong(toId);
+        putString(body, recipientBytes);
+        appendLock.lock();
+        try {
+            NavigableMap<Long, Long> range = index.subMap(fromId, true, toId, true);
+            if (range.isEmpty()) {
+                return;
+            }
+            append(body.array());
+            active.markerBytes += HEADER + body.capacity();
+            range.clear();
+        } catch (IOException e) {
+            logger.error("Mark delivered messages error: {}", e.getMessage());
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public long history(String user1, String user2, int limit, long beforeId, Predicate<StoredMessage> visitor) {
+        ConcurrentSkipListMap<Long, Long> index = conversations.get(DataBase.conversationKey(user1, user2));
+        if (index == null) {
+            return 0;
+        }
+        List<StoredMessage> page = new ArrayList<>(limit);
+        swapLock.readLock().lock();
+        try {
+            for (long position : index.headMap(beforeId, false).descendingMap().values()) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                page.add(read(position));
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (page.isEmpty()) {
+            return 0;
+        }
+        Collections.reverse(page);
+        for (StoredMessage message : page) {
+            if (!visitor.test(message)) {
+                break;
+            }
+        }
+        return page.get(0).id();
+    }
+
+    /**
+     * Полнотекстового индекса у журнала нет: просматриваются все переписки пользователя
+     * (или одна переписка с {@code user}) от новых сообщений к старым, слова ищутся без учёта регистра
+     * как подстроки, и результаты упорядочены по новизне, а не по релевантности.
+     * Время поиска растёт с числом сообщений пользователя; для поиска по большой истории нужно хранилище {@code sqlite}.
+     */
+    @Override
+    public int search(String login, List<String> terms, String user, int limit, int offset, Predicate<StoredMessage> visitor) {
+        List<String> words = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            words.add((term.endsWith("*") ? term.substring(0, term.length() - 1) : term).toLowerCase(Locale.ROOT));
+        }
+        List<ConcurrentSkipListMap<Long, Long>> indexes = new ArrayList<>();
+        if (user != null) {
+            ConcurrentSkipListMap<Long, Long> index = conversations.get(DataBase.conversationKey(login, user));
+            if (index != null) {
+                indexes.add(index);
+            }
+        } else {
+            String first = login + " ";
+            String second = " " + login;
+            conversations.forEach((key, index) -> {
+                if (key.startsWith(first) || key.endsWith(second)) {
+                    indexes.add(index);
+                }
+            });
+        }
+        List<StoredMessage> page = new ArrayList<>(limit);
+        int skipped = 0;
+        // Под блокировкой чтения уплотнение не меняет позиции, поэтому их можно собрать заранее.
+        swapLock.readLock().lock();
+        try {
+            NavigableMap<Long, Long> positions = new TreeMap<>(Collections.reverseOrder());
+            for (ConcurrentSkipListMap<Long, Long> index : indexes) {
+                positions.putAll(index);
+            }
+            for (long position : positions.values()) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                StoredMessage message = read(position);
+                String text = message.message().toLowerCase(Locale.ROOT);
+                if (words.stream().allMatch(text::contains) && skipped++ >= offset) {
+                    page.add(message);
+                }
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        int count = 0;
+        for (StoredMessage message : page) {
+            if (!visitor.test(message)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Останавливает фоновые задачи и ждёт, пока закончатся начатые сброс и уплотнение:
+     * они работают с отображениями сегментов, которые закрываются следом.
+     */
+    @Override
+    public void close() {
+        background.shutdownNow();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        appendLock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.close();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        logger.info("Message log closed");
+    }
+
+    /**
+     * Дописывает запись в активный сегмент, при необходимости открывая следующий.
+     * Вызывается под {@link #appendLock}.
+     *
+     * @return позиция записи
+     */
+    private long append(byte[] body) throws IOException {
+        if (HEADER + body.length > segmentSize) {
+            throw new IllegalArgumentException("record of " + body.length + " bytes does not fit in a segment");
+        }
+        Segment segment = active;
+        if (segment.size + HEADER + body.length > segment.capacity()) {
+            segment.buffer.force();
+            segment = Segment.open(segmentPath(segment.seq + 1), segment.seq + 1, segmentSize);
+            segments.put(segment.seq, segment);
+            active = segment;
+        }
+        return segment.write(body);
+    }
+
+    private StoredMessage read(long position) {
+        Segment segment = segments.get(position >>> 32);
+        int offset = (int) position;
+        byte[] body = new byte[segment.buffer.getInt(offset)];
+        segment.buffer.get(offset + HEADER, body);
+        ByteBuffer buffer = ByteBuffer.wrap(body, DELIVERED_OFFSET + 1, body.length - DELIVERED_OFFSET - 1);
+        long id = ByteBuffer.wrap(body).getLong(1);
+        String sender = getString(buffer);
+        String recipient = getString(buffer);
+        String time = getString(buffer);
+        return new StoredMessage(id, sender, recipient, getString(buffer), time);
+    }
+
+    /**
+     * Читает сегмент при запуске и применяет его записи к индексам.
+     */
+    private void recover(Segment segment) {
+        int offset = 0;
+        while (offset + HEADER <= segment.capacity()) {
+            int length = segment.buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER + length > segment.capacity()) {
+                break;
+            }
+            byte[] body = new byte[length];
+            segment.buffer.get(offset + HEADER, body);
+            if (segment.buffer.getInt(offset + 4) != checksum(body)) {
+                logger.error("Corrupted record in segment {} at offset {}, the rest of the segment is ignored", segment.seq, offset);
+                break;
+            }
+            long position = segment.seq << 32 | offset;
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            if (buffer.get() == TYPE_MESSAGE) {
+                long id = buffer.getLong();
+                boolean delivered = buffer.get() != 0;
+                String sender = getString(buffer);
+                String recipient = getString(buffer);
+                nextId = Math.max(nextId, id + 1);
+                conversations.computeIfAbsent(DataBase.conversationKey(sender, recipient), key -> new ConcurrentSkipListMap<>()).put(id, position);
+                if (!delivered) {
+                    offline.computeIfAbsent(recipient, key -> new ConcurrentSkipListMap<>()).put(id, position);
+                } else {
+                    // Копия сообщения, уже уплотнённая в предыдущий сегмент до сбоя.
+                    ConcurrentSkipListMap<Long, Long> index = offline.get(recipient);
+                    if (index != null) {
+                        index.remove(id);
+                    }
+                }
+            } else {
+                long fromId = buffer.getLong();
+                long toId = buffer.getLong();
+                ConcurrentSkipListMap<Long, Long> index = offline.get(getString(buffer));
+                if (index != null) {
+                    index.subMap(fromId, true, toId, true).clear();
+                }
+                segment.markerBytes += HEADER + length;
+            }
+            offset += HEADER + length;
+        }
+        segment.size = offset;
+    }
+
+    private void flush() {
+        try {
+            active.buffer.force();
+        } catch (RuntimeException e) {
+            logger.error("Message log flush error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Переписывает сегменты, закрытые после прошлого уплотнения.
+     * <p>
+     * Отметка доставки убирается, только если весь её диапазон ID лежит в переписываемых сегментах:
+     * признак доставки этих сообщений переносится в них самих. Отметки, относящиеся к более старым
+     * сегментам, копируются как есть. Отметки, записанные во время уплотнения, находятся в активном сегменте.
+     * <p>
+     * Новые сегменты получают номера старых по порядку и заменяют их по одному.
+     * Сообщение переносится только в сегмент с тем же или меньшим номером, поэтому
+     * при сбое посреди замены на диске остаются лишь лишние копии сообщений с теми же ID,
+     * а не потерянные сообщения.
+     * <p>
+     * Вызывается фоновой задачей раз в {@code compactIntervalMs}; одновременно может выполняться только один вызов.
+     */
+    final void compact() {
+        List<Segment> sealed;
+        appendLock.lock();
+        try {
+            sealed = new ArrayList<>(segments.subMap(compactedThrough, false, active.seq, false).values());
+        } finally {
+            appendLock.unlock();
+        }
+        if (sealed.isEmpty()) {
+            return;
+        }
+        long garbage = 0;
+        for (Segment segment : sealed) {
+            garbage += segment.markerBytes;
+        }
+        if (garbage == 0) {
+            compactedThrough = sealed.get(sealed.size() - 1).seq;
+            return;
+        }
+        long start = System.nanoTime();
+        List<Segment> output = new ArrayList<>();
+        List<Relocation> relocations = new ArrayList<>();
+        try {
+            Segment out = Segment.open(compactPath(sealed.get(0).seq), sealed.get(0).seq, segmentSize);
+            output.add(out);
+            long firstId = 0;
+            for (Segment segment : sealed) {
+                int offset = 0;
+                while (offset < segment.size) {
+                    int length = segment.buffer.getInt(offset);
+                    byte[] body = new byte[length];
+                    segment.buffer.get(offset + HEADER, body);
+                    offset += HEADER + length;
+                    ByteBuffer buffer = ByteBuffer.wrap(body);
+                    boolean message = body[0] == TYPE_MESSAGE;
+                    if (!message && firstId != 0 && buffer.getLong(1) >= firstId) {
+                        continue;
+                    }
+                    if (out.size + HEADER + length > out.capacity()) {
+                        if (output.size() >= sealed.size()) {
+                            throw new IOException("compacted data does not fit in " + sealed.size() + " segments");
+                        }
+                        long seq = sealed.get(output.size()).seq;
+                        out = Segment.open(compactPath(seq), seq, segmentSize);
+                        output.add(out);
+                    }
+                    if (!message) {
+                        out.write(body);
+                        out.markerBytes += HEADER + length;
+                        continue;
+                    }
+                    long id = buffer.getLong(1);
+                    if (firstId == 0) {
+                        firstId = id;
+                    }
+                    buffer.position(DELIVERED_OFFSET + 1);
+                    String sender = getString(buffer);
+                    String recipient = getString(buffer);
+                    ConcurrentSkipListMap<Long, Long> index = offline.get(recipient);
+                    body[DELIVERED_OFFSET] = (byte) (index != null && index.containsKey(id) ? 0 : 1);
+                    long position = out.write(body);
+                    relocations.add(new Relocation(id, DataBase.conversationKey(sender, recipient), recipient, position));
+                }
+            }
+            for (Segment segment : output) {
+                segment.buffer.force();
+            }
+        } catch (IOException e) {
+            logger.error("Message log compaction error: {}", e.getMessage());
+            for (Segment segment : output) {
+                segment.close();
+                try {
+                    Files.deleteIfExists(compactPath(segment.seq));
+                } catch (IOException ignored) {
+                }
+            }
+            return;
+        }
+        swapLock.writeLock().lock();
+        try {
+            for (Segment segment : output) {
+                Files.move(compactPath(segment.seq), segmentPath(segment.seq), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            for (int i = output.size(); i < sealed.size(); i++) {
+                Files.delete(segmentPath(sealed.get(i).seq));
+            }
+            for (Segment segment : sealed) {
+                segments.remove(segment.seq);
+                segment.close();
+            }
+            for (Segment segment : output) {
+                segments.put(segment.seq, segment);
+            }
+            for (Relocation relocation : relocations) {
+                conversations.get(relocation.conversation()).replace(relocation.id(), relocation.position());
+                ConcurrentSkipListMap<Long, Long> index = offline.get(relocation.recipient());
+                if (index != null) {
+                    index.replace(relocation.id(), relocation.position());
+                }
+            }
+        } catch (IOException e) {
+            // Индексы по-прежнему указывают на старые отображения, которые остаются в памяти.
+            logger.error("Message log compaction swap error: {}", e.getMessage());
+            return;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        compactedThrough = sealed.get(sealed.size() - 1).seq;
+        long reclaimed = 0;
+        for (Segment segment : sealed) {
+            reclaimed += segment.size;
+        }
+        for (Segment segment : output) {
+            reclaimed -= segment.size;
+        }
+        compactionCount.increment();
+        compactedBytes.add(reclaimed);
+        logger.info("Message log compacted {} segments into {}, reclaimed {} bytes in {} ms",
+                sealed.size(), output.size(), reclaimed, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private Path segmentPath(long seq) {
+        return directory.resolve(String.format("%020d", seq) + SEGMENT_SUFFIX);
+    }
+
+    private Path compactPath(long seq) {
+        return directory.resolve(String.format("%020d", seq) + SEGMENT_SUFFIX + COMPACT_SUFFIX);
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /** @return количество сегментов журнала */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** @return количество записанных сообщений */
+    public long getAppendedCount() {
+        return appendedCount.sum();
+    }
+
+    /** @return количество выполненных уплотнений */
+    public long getCompactionCount() {
+        return compactionCount.sum();
+    }
+
+    /** @return сколько байтов освободило уплотнение */
+    public long getCompactedBytes() {
+        return compactedBytes.sum();
+    }
+
+    /**
+     * Сегмент журнала, отображённый в память.
+     */
+    private static final class Segment {
+
+        final long seq;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        /** Количество записанных байтов; дальше сегмент заполнен нулями. */
+        volatile int size;
+        /** Сколько байтов занимают отметки доставки. */
+        volatile long markerBytes;
+
+        private Segment(long seq, FileChannel channel, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(Path path, long seq, int segmentSize) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long capacity = Math.max(segmentSize, channel.size());
+            return new Segment(seq, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        /**
+         * Записывает тело с заголовком в конец сегмента. Длина пишется последней,
+         * поэтому запись без длины при восстановлении считается концом сегмента.
+         *
+         * @return позиция записи
+         */
+        long write(byte[] body) {
+            int offset = size;
+            buffer.putInt(offset + 4, checksum(body));
+            buffer.put(offset + HEADER, body);
+            buffer.putInt(offset, body.length);
+            size = offset + HEADER + body.length;
+            return seq << 32 | offset;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Close segment {} error: {}", seq, e.getMessage());
+            }
+        }
+    }
+}
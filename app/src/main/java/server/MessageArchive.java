@@ -0,0 +1,441 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Архив старых личных сообщений по месяцам.
+ * <p>
+ * Фоновая задача раз в {@code messenger.archive.intervalMs} переносит доставленные сообщения старше
+ * {@code messenger.archive.afterDays} дней из таблицы Messages в базы {@code messages-YYYY-MM.db}
+ * каталога {@code messenger.archive.path}. Таблица просматривается по возрастанию ID пачками по
+ * {@code messenger.archive.batch} строк; каждая пачка занимает соединение-писатель ненадолго,
+ * а между пачками {@link MessageWriter} успевает записать новые сообщения.
+ * <p>
+ * Пачка сначала копируется в архив ({@code INSERT OR IGNORE}, фиксируется в файле архива),
+ * и только потом удаляется из Messages. Если сервер упал между этими шагами,
+ * следующий запуск скопирует те же строки без дублей и удалит их.
+ * Недоставленные сообщения остаются в Messages, пока получатель их не заберёт.
+ * <p>
+ * После переноса свободные страницы возвращаются файловой системе через {@code PRAGMA incremental_vacuum}
+ * частями по {@code messenger.archive.vacuumPages} страниц. Это работает только для базы,
+ * созданной с {@code auto_vacuum=INCREMENTAL}; в старой базе освобождённые страницы переиспользуются
+ * новыми сообщениями, но файл не уменьшается, пока его не пересоздаст {@code VACUUM}.
+ * <p>
+ * Архив также читает историю: {@link SqliteMessageStore#history} продолжает страницу в архивах,
+ * когда в Messages не хватает сообщений.
+ */
+public class MessageArchive {
+
+    private static final Logger logger = LogManager.getLogger(MessageArchive.class);
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Pattern FILE_NAME = Pattern.compile("messages-(\\d{4}-\\d{2})\\.db");
+    private static final Pattern MONTH = Pattern.compile("\\d{4}-\\d{2}");
+
+    private final ConnectionPool writer;
+    private final Path directory;
+    /** Открытые архивы для чтения: месяц — пул из одного соединения. */
+    private final ConcurrentSkipListMap<String, ConnectionPool> months = new ConcurrentSkipListMap<>();
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("message-archive").daemon(true).factory());
+    /** Наибольший ID в архивах: сообщения Messages с меньшим ID могут перемежаться с архивными. */
+    private volatile long maxArchivedId;
+    private volatile boolean running;
+
+    private final LongAdder runCount = new LongAdder();
+    private final LongAdder archivedCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder vacuumedPages = new LongAdder();
+    private final LongAdder historyReads = new LongAdder();
+    private final LatencyTimer batchTimer = Metrics.timer("messenger_archive_batch_seconds", "",
+            "Time the archive job holds the writer connection per batch");
+
+    /**
+     * Открывает архивы, уже лежащие в каталоге.
+     *
+     * @param writer пул соединения-писателя основной базы
+     * @param directory каталог архивов; создаётся при первом переносе
+     */
+    public MessageArchive(ConnectionPool writer, Path directory) {
+        this.writer = writer;
+        this.directory = directory;
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                    if (matcher.matches()) {
+                        ConnectionPool pool = open(matcher.group(1));
+                        if (pool != null) {
+                            maxArchivedId = Math.max(maxArchivedId, maxId(pool));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Message archive open error: {}", e.getMessage());
+            }
+        }
+        logger.info("Message archive: {} months in {}", months.size(), directory);
+    }
+
+    /**
+     * Запускает периодический перенос, если {@code messenger.archive.afterDays} больше нуля.
+     */
+    public void start() {
+        if (ServerConfig.ARCHIVE_AFTER_DAYS <= 0) {
+            return;
+        }
+        checkAutoVacuum();
+        background.scheduleWithFixedDelay(this::run, ServerConfig.ARCHIVE_INTERVAL_MS, ServerConfig.ARCHIVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        logger.info("Message archive job started: messages older than {} days, every {} ms",
+                ServerConfig.ARCHIVE_AFTER_DAYS, ServerConfig.ARCHIVE_INTERVAL_MS);
+    }
+
+    private void checkAutoVacuum() {
+        try (ConnectionPool.PooledConnection connection = writer.acquire();
+             Statement statement = connection.getConnection().createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA auto_vacuum")) {
+            if (resultSet.next() && resultSet.getInt(1) != 2) {
+                logger.warn("Database was created without auto_vacuum=INCREMENTAL: archived space is reused but the file does not shrink. "
+                        + "Run once while the server is stopped: PRAGMA auto_vacuum=INCREMENTAL; VACUUM;");
+            }
+        } catch (SQLException e) {
+            logger.error("Check auto_vacuum error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Один проход задачи: перенос всех подходящих сообщений и возврат свободного места.
+     */
+    private void run() {
+        running = true;
+        long start = System.nanoTime();
+        String cutoff = LocalDateTime.now(ZoneOffset.UTC).minusDays(ServerConfig.ARCHIVE_AFTER_DAYS).format(TIME_FORMAT);
+        long archived = 0;
+        try {
+            long afterId = 0;
+            while (true) {
+                long[] batch = archiveBatch(afterId, cutoff);
+                if (batch == null) {
+                    break;
+                }
+                archived += batch[1];
+                afterId = batch[0];
+                pause();
+            }
+            long pages = vacuum();
+            runCount.increment();
+            if (archived > 0 || pages > 0) {
+                logger.info("Archived {} messages older than {}, freed {} pages in {} ms",
+                        archived, cutoff, pages, (System.nanoTime() - start) / 1_000_000);
+            }
+        } catch (SQLException | IOException | RuntimeException e) {
+            logger.error("Message archive error after {} messages: {}", archived, e.getMessage());
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Переносит одну пачку строк с ID больше {@code afterId}.
+     * Вся пачка выполняется на одном соединении-писателе, поэтому {@link MessageStore#markDelivered}
+     * не может отметить строку между копированием и удалением.
+     *
+     * @return {@code {последний просмотренный ID, перенесено строк}} или {@code null}, если старых строк больше нет
+     */
+    private long[] archiveBatch(long afterId, String cutoff) throws SQLException, IOException {
+        long start = System.nanoTime();
+        try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+            long lastId = afterId;
+            TreeSet<String> batchMonths = new TreeSet<>();
+            PreparedStatement select = connection.prepare(
+                    "SELECT ID, time, delivered FROM Messages WHERE ID > ? ORDER BY ID LIMIT ?");
+            select.setLong(1, afterId);
+            select.setInt(2, ServerConfig.ARCHIVE_BATCH);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    String time = rs.getString("time");
+                    // ID растут вместе со временем: первая новая строка завершает проход.
+                    if (time != null && time.compareTo(cutoff) >= 0) {
+                        break;
+                    }
+                    lastId = rs.getLong("ID");
+                    if (time != null && time.length() >= 7 && rs.getInt("delivered") == 1) {
+                        batchMonths.add(time.substring(0, 7));
+                    }
+                }
+            }
+            if (lastId == afterId) {
+                return null;
+            }
+            long moved = 0;
+            for (String month : batchMonths) {
+                if (MONTH.matcher(month).matches()) {
+                    moved += move(connection, month, afterId, lastId, cutoff);
+                }
+            }
+            archivedCount.add(moved);
+            batchCount.increment();
+            return new long[]{lastId, moved};
+        } finally {
+            batchTimer.record(start);
+        }
+    }
+
+    /**
+     * Переносит строки одного месяца из диапазона ID в архив этого месяца:
+     * копия фиксируется в архиве до удаления из Messages.
+     *
+     * @return сколько строк удалено из Messages
+     */
+    private int move(ConnectionPool.PooledConnection connection, String month, long afterId, long lastId, String cutoff)
+            throws SQLException, IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve("messages-" + month + ".db");
+        long maxId;
+        try (Statement statement = connection.getConnection().createStatement()) {
+            try (PreparedStatement attach = connection.getConnection().prepareStatement("ATTACH DATABASE ? AS archive")) {
+                attach.setString(1, file.toString());
+                attach.execute();
+            }
+            // Архив отсоединяется и при ошибке: иначе соединение-писатель вернётся в пул с подключённым
+            // файлом, и следующий ATTACH под тем же именем не пройдёт.
+            try {
+                statement.execute("PRAGMA archive.journal_mode=WAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS archive.Messages(ID INTEGER PRIMARY KEY, sender TEXT, recipient TEXT, "
+                        + "message TEXT, time DATETIME, conversation TEXT)");
+                statement.execute("CREATE INDEX IF NOT EXISTS archive.idx_messages_conversation ON Messages(conversation)");
+                try (PreparedStatement insert = connection.getConnection().prepareStatement("INSERT OR IGNORE INTO archive.Messages "
+                        + "SELECT ID, sender, recipient, message, time, conversation FROM main.Messages "
+                        + "WHERE ID > ? AND ID <= ? AND delivered = 1 AND time < ? AND substr(time, 1, 7) = ?")) {
+                    insert.setLong(1, afterId);
+                    insert.setLong(2, lastId);
+                    insert.setString(3, cutoff);
+                    insert.setString(4, month);
+                    insert.executeUpdate();
+                }
+                try (ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(ID), 0) FROM archive.Messages")) {
+                    maxId = resultSet.next() ? resultSet.getLong(1) : 0;
+                }
+            } finally {
+                statement.execute("DETACH DATABASE archive");
+            }
+        }
+        maxArchivedId = Math.max(maxArchivedId, maxId);
+        if (!months.containsKey(month)) {
+            open(month);
+        }
+        PreparedStatement delete = connection.prepare("DELETE FROM Messages "
+                + "WHERE ID > ? AND ID <= ? AND delivered = 1 AND time < ? AND substr(time, 1, 7) = ?");
+        delete.setLong(1, afterId);
+        delete.setLong(2, lastId);
+        delete.setString(3, cutoff);
+        delete.setString(4, month);
+        return delete.executeUpdate();
+    }
+
+    /**
+     * Возвращает свободные страницы основной базы файловой системе частями,
+     * отпуская соединение-писатель между частями.
+     *
+     * @return сколько страниц освобождено
+     */
+    private long vacuum() throws SQLException {
+        long total = 0;
+        while (true) {
+            long before;
+            long after;
+            try (ConnectionPool.PooledConnection connection = writer.acquire();
+                 Statement statement = connection.getConnection().createStatement()) {
+                before = freePages(statement);
+                if (before == 0 || !incrementalVacuum(statement)) {
+                    return total;
+                }
+                // Каждый шаг PRAGMA incremental_vacuum освобождает одну страницу, поэтому шаги идут в одной транзакции.
+                int pages = (int) Math.min(before, ServerConfig.ARCHIVE_VACUUM_PAGES);
+                connection.getConnection().setAutoCommit(false);
+                try {
+                    for (int i = 0; i < pages; i++) {
+                        statement.execute("PRAGMA incremental_vacuum(1)");
+                    }
+                    connection.getConnection().commit();
+                } catch (SQLException e) {
+                    connection.getConnection().rollback();
+                    throw e;
+                } finally {
+                    connection.getConnection().setAutoCommit(true);
+                }
+                after = freePages(statement);
+            }
+            vacuumedPages.add(before - after);
+            total += before - after;
+            if (after == 0 || after >= before) {
+                return total;
+            }
+            pause();
+        }
+    }
+
+    private static boolean incrementalVacuum(Statement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery("PRAGMA auto_vacuum")) {
+            return resultSet.next() && resultSet.getInt(1) == 2;
+        }
+    }
+
+    private static long freePages(Statement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery("PRAGMA freelist_count")) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(ServerConfig.ARCHIVE_PAUSE_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Message archive interrupted");
+        }
+    }
+
+    private ConnectionPool open(String month) {
+        String url = "jdbc:sqlite:" + directory.resolve("messages-" + month + ".db");
+        try {
+            ConnectionPool pool = new ConnectionPool("archive-" + month, url, 1, ServerConfig.DB_ACQUIRE_TIMEOUT_MS,
+                    "PRAGMA busy_timeout=5000", "PRAGMA query_only=1");
+            ConnectionPool previous = months.putIfAbsent(month, pool);
+            if (previous != null) {
+                pool.close();
+                return previous;
+            }
+            return pool;
+        } catch (SQLException e) {
+            logger.error("Open archive {} error: {}", month, e.getMessage());
+            return null;
+        }
+    }
+
+    private static long maxId(ConnectionPool pool) {
+        try (ConnectionPool.PooledConnection connection = pool.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare("SELECT COALESCE(MAX(ID), 0) FROM Messages");
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            logger.error("Archive {} read error: {}", pool.getName(), e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return наибольший ID перенесённого сообщения или 0, если архив пуст
+     */
+    public long getMaxArchivedId() {
+        return maxArchivedId;
+    }
+
+    /**
+     * Добавляет в {@code out} до {@code limit} последних архивных сообщений переписки с ID меньше {@code beforeId}.
+     * Архивы читаются от нового месяца к старому, пока не наберётся {@code limit} сообщений.
+     *
+     * @param conversation ключ переписки, см. {@link DataBase#conversationKey}
+     * @param limit сколько сообщений нужно
+     * @param beforeId верхняя граница ID, не включительно
+     * @param out список, в который добавляются сообщения в порядке убывания ID
+     */
+    public void history(String conversation, int limit, long beforeId, List<MessageStore.StoredMessage> out) {
+        int found = 0;
+        for (Map.Entry<String, ConnectionPool> month : months.descendingMap().entrySet()) {
+            try (ConnectionPool.PooledConnection connection = month.getValue().acquire()) {
+                PreparedStatement preparedStatement = connection.prepare("SELECT ID, sender, recipient, message, time FROM Messages "
+                        + "WHERE conversation = ? AND ID < ? ORDER BY ID DESC LIMIT ?");
+                preparedStatement.setString(1, conversation);
+                preparedStatement.setLong(2, beforeId);
+                preparedStatement.setInt(3, limit - found);
+                try (ResultSet rs = preparedStatement.executeQuery()) {
+                    while (rs.next()) {
+                        out.add(new MessageStore.StoredMessage(rs.getLong("ID"), rs.getString("sender"), rs.getString("recipient"),
+                                rs.getString("message"), rs.getString("time")));
+                        found++;
+                    }
+                }
+            } catch (SQLException e) {
+                logger.error("Archive {} history error: {}", month.getKey(), e.getMessage());
+            }
+            if (found >= limit) {
+                break;
+            }
+        }
+        historyReads.increment();
+    }
+
+    /**
+     * Останавливает задачу переноса и закрывает соединения с архивами.
+     */
+    public void close() {
+        background.shutdownNow();
+        try {
+            background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ConnectionPool pool : months.values()) {
+            pool.close();
+        }
+    }
+
+    /** @return количество месяцев в архиве */
+    public int getMonthCount() {
+        return months.size();
+    }
+
+    /** @return 1, пока идёт перенос, иначе 0 */
+    public int getRunning() {
+        return running ? 1 : 0;
+    }
+
+    /** @return количество завершённых проходов задачи */
+    public long getRunCount() {
+        return runCount.sum();
+    }
+
+    /** @return сколько сообщений перенесено в архив */
+    public long getArchivedCount() {
+        return archivedCount.sum();
+    }
+
+    /** @return сколько пачек перенесено */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /** @return сколько страниц основной базы возвращено файловой системе */
+    public long getVacuumedPages() {
+        return vacuumedPages.sum();
+    }
+
+    /** @return сколько раз история читалась из архива */
+    public long getHistoryReads() {
+        return historyReads.sum();
+    }
+}
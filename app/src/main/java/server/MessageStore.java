@@ -0,0 +1,135 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Хранилище личных сообщений.
+ * <p>
+ * Содержит только примитивы хранения: запись, чтение оффлайн-сообщений, отметку доставки, историю и поиск.
+ * Форматирование строк для клиента и доставка частями выполняются в {@link DataBase}.
+ * Реализация выбирается свойством {@code messenger.store}: {@link SqliteMessageStore}
+ * (таблица Messages) или {@link LogMessageStore} (сегментированный журнал на диске).
+ */
+public interface MessageStore {
+
+    /**
+     * Сохранённое сообщение.
+     *
+     * @param id идентификатор, возрастающий в порядке записи
+     * @param sender отправитель
+     * @param recipient получатель
+     * @param message текст сообщения
+     * @param time время записи в UTC в формате {@code yyyy-MM-dd HH:mm:ss}
+     */
+    record StoredMessage(long id, String sender, String recipient, String message, String time) {
+    }
+
+    /**
+     * Сохраняет сообщение.
+     *
+     * @param sender отправитель
+     * @param recipient получатель
+     * @param message текст сообщения
+     * @param delivered true, если сообщение доставлено, false если оффлайн
+     * @return сохранённое сообщение с ID и временем; ID равен 0, если хранилище не смогло его назначить
+     */
+    StoredMessage save(String sender, String recipient, String message, boolean delivered);
+
+    /**
+     * Сохраняет сообщение вместе с ID, который ему присвоил клиент.
+     * По умолчанию ID клиента не сохраняется, и повторные отправки отсеиваются только в памяти соединения.
+     *
+     * @param sender отправитель
+     * @param recipient получатель
+     * @param message текст сообщения
+     * @param delivered true, если сообщение доставлено, false если оффлайн
+     * @param clientId ID сообщения, присвоенный клиентом, или 0
+     * @return сохранённое сообщение с ID и временем; ID равен 0, если хранилище не смогло его назначить
+     */
+    default StoredMessage save(String sender, String recipient, String message, boolean delivered, long clientId) {
+        return save(sender, recipient, message, delivered);
+    }
+
+    /**
+     * Последние ID клиента, с которыми отправитель сохранял сообщения.
+     *
+     * @param sender отправитель
+     * @param limit максимальное количество
+     * @return ID клиента и ID сохранённого сообщения
+     */
+    default Map<Long, Long> recentClientIds(String sender, int limit) {
+        return Map.of();
+    }
+
+    /**
+     * Передаёт недоставленные сообщения пользователя с ID больше {@code afterId} по возрастанию ID.
+     *
+     * @param recipient получатель
+     * @param afterId передавать только сообщения с большим ID
+     * @param limit максимальное количество сообщений
+     * @param visitor получатель сообщений; если он вернул false, передача прекращается
+     * @return количество сообщений, принятых {@code visitor}
+     */
+    int fetchOffline(String recipient, long afterId, int limit, Predicate<StoredMessage> visitor);
+
+    /**
+     * Отмечает недоставленные сообщения пользователя с ID в заданном диапазоне как доставленные.
+     *
+     * @param recipient получатель
+     * @param fromId первый ID диапазона
+     * @param toId последний ID диапазона
+     */
+    void markDelivered(String recipient, long fromId, long toId);
+
+    /**
+     * Отмечает доставленным сообщение, получение которого подтвердил клиент.
+     * Подтверждения приходят по одному на сообщение, поэтому хранилище может откладывать
+     * и объединять их записи. По умолчанию — {@link #markDelivered} для одного ID.
+     *
+     * @param recipient получатель; сообщения других пользователей не отмечаются
+     * @param id ID сообщения
+     */
+    default void acknowledge(String recipient, long id) {
+        markDelivered(recipient, id, id);
+    }
+
+    /**
+     * Передаёт {@code limit} последних сообщений переписки с ID меньше {@code beforeId}
+     * в хронологическом порядке.
+     *
+     * @param user1 первый пользователь
+     * @param user2 второй пользователь
+     * @param limit максимальное количество сообщений
+     * @param beforeId передавать только сообщения с меньшим ID
+     * @param visitor получатель сообщений; если он вернул false, передача прекращается
+     * @return ID самого старого сообщения страницы, или 0, если сообщений нет
+     */
+    long history(String user1, String user2, int limit, long beforeId, Predicate<StoredMessage> visitor);
+
+    /**
+     * Передаёт страницу сообщений пользователя, содержащих все слова запроса, начиная с самых подходящих.
+     *
+     * @param login пользователь, среди отправленных и полученных сообщений которого идёт поиск
+     * @param terms слова запроса; слово, оканчивающееся на {@code *}, ищется как префикс
+     * @param user второй участник переписки или {@code null} — все переписки пользователя
+     * @param limit размер страницы
+     * @param offset сколько первых результатов пропустить
+     * @param visitor получатель сообщений; если он вернул false, передача прекращается
+     * @return количество сообщений, принятых {@code visitor}
+     */
+    int search(String login, List<String> terms, String user, int limit, int offset, Predicate<StoredMessage> visitor);
+
+    /**
+     * Готовит хранилище к первым запросам до того, как сервер начнёт принимать клиентов.
+     * По умолчанию ничего не делает.
+     */
+    default void warmUp() {
+    }
+
+    /**
+     * Дописывает незаписанные данные и освобождает ресурсы хранилища.
+     */
+    void close();
+}
@@ -0,0 +1,571 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Асинхронная запись сообщений в базу пачками (write-behind).
+ * <p>
+ * {@link #save} только ставит сообщение в ограниченную очередь, поэтому отправитель не ждёт диск.
+ * Фоновый поток собирает до {@code maxBatch} сообщений, ожидая новые не дольше {@code lingerMs},
+ * и вставляет их одной транзакцией — один fsync на пачку вместо одного на сообщение.
+ * Если очередь заполнена, {@link #save} блокируется, пока писатель не освободит место.
+ * Сообщения каналов ({@link #saveChannel}) идут через ту же очередь и те же транзакции.
+ * <p>
+ * ID личного сообщения назначается при постановке в очередь, а не базой при вставке:
+ * вызывающий сразу знает ID и время сообщения (например, для кэша истории {@link HistoryCache}).
+ * Сообщения пишет только этот поток и в порядке очереди, поэтому ID остаются возрастающими.
+ * Первый ID продолжает {@code sqlite_sequence}, так что ID удалённых строк не повторяются.
+ * Это верно, только пока в базу пишет один процесс. Если файл базы делят узлы кластера, ID назначает
+ * база ({@code INSERT ... RETURNING ID}), а {@link #save} ждёт записи своей пачки — транзакции
+ * по-прежнему общие для всех сообщений, поставленных в очередь за это время.
+ * <p>
+ * Подтверждения доставки ({@link #acknowledge}) тоже идут через очередь: подтверждение не может
+ * обогнать вставку своего сообщения, а отметки многих сообщений записываются одной транзакцией
+ * вместе с новыми сообщениями.
+ */
+public class MessageWriter implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(MessageWriter.class);
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    // OR IGNORE: повторная отправка с тем же ID клиента, которую не отсеяло соединение, не записывается.
+    private static final String INSERT_SQL = "INSERT OR IGNORE INTO Messages (ID, sender, recipient, message, time, delivered, client_id) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_RETURNING_SQL = INSERT_SQL + " RETURNING ID";
+    private static final String CLIENT_ID_SQL = "SELECT ID FROM Messages WHERE sender = ? AND client_id = ?";
+    private static final String ACK_SQL = "UPDATE Messages SET delivered = 1 WHERE ID = ? AND recipient = ? AND delivered = 0";
+    private static final String INSERT_CHANNEL_SQL = "INSERT INTO ChannelMessages (channel, sender, message, time) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_CHANNEL_RETURNING_SQL = INSERT_CHANNEL_SQL + " RETURNING ID";
+    private static final String CHANNEL_HIGH_WATER_SQL = "SELECT COALESCE(MAX(ID), 0) FROM ChannelMessages";
+
+    /**
+     * Сообщение в очереди. Для сообщения канала {@code channel} не null, {@code recipient} не используется,
+     * а {@code id} равен 0 — ID назначает база. У подтверждения доставки нет текста ({@code message} равен null):
+     * {@code id} — подтверждённое сообщение, {@code recipient} — подтвердивший получатель.
+     * Отметка {@link #channelBarrier} ничего не пишет (у неё нет ни текста, ни получателя): {@code result} получает
+     * ID последнего сообщения канала, записанного до неё. У личного сообщения, ID которого назначает база,
+     * и у сообщения канала, ID которого запрошен, {@code result} получает этот ID; у остальных записей {@code result} равен null.
+     */
+    private record PendingMessage(long seq, long id, long clientId, String sender, String recipient, String channel, String message, String time, boolean delivered,
+                                  CompletableFuture<Long> result) {
+
+        boolean isBarrier() {
+            return message == null && recipient == null;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final BlockingQueue<PendingMessage> queue;
+    private final int maxBatch;
+    private final long lingerMs;
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Object flushMonitor = new Object();
+    private long enqueuedSeq;
+    /** Последний назначенный ID личного сообщения; -1 — ещё не прочитан из базы. */
+    private long lastMessageId = -1;
+    /**
+     * true — ID назначает этот процесс при постановке в очередь; false — база при вставке, а {@link #save}
+     * ждёт записи. Выключено, если базу делят узлы кластера или если последний ID не удалось прочитать.
+     */
+    private boolean assignIds;
+    private long committedSeq;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    private final LongAdder writtenCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder backpressureCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder acknowledgedCount = new LongAdder();
+
+    /**
+     * Создаёт писателя.
+     *
+     * @param pool пул соединения-писателя
+     * @param capacity максимальное число сообщений в очереди
+     * @param maxBatch максимальное число сообщений в одной транзакции
+     * @param lingerMs сколько ждать новые сообщения, прежде чем записать неполную пачку
+     */
+    public MessageWriter(ConnectionPool pool, int capacity, int maxBatch, long lingerMs) {
+        this(pool, capacity, maxBatch, lingerMs, true);
+    }
+
+    /**
+     * Создаёт писателя, который может оставить назначение ID базе.
+     *
+     * @param pool пул соединения-писателя
+     * @param capacity максимальное число сообщений в очереди
+     * @param maxBatch максимальное число сообщений в одной транзакции
+     * @param lingerMs сколько ждать новые сообщения, прежде чем записать неполную пачку
+     * @param assignIds false, если в ту же базу пишут другие процессы (узлы кластера)
+     */
+    public MessageWriter(ConnectionPool pool, int capacity, int maxBatch, long lingerMs, boolean assignIds) {
+        this.pool = pool;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.lingerMs = lingerMs;
+        this.assignIds = assignIds;
+    }
+
+    /**
+     * Запускает фоновый поток записи.
+     */
+    public void start() {
+        thread = Thread.ofPlatform().name("message-writer").start(this);
+    }
+
+    /**
+     * Ставит сообщение в очередь на запись.
+     * Время сообщения фиксируется в момент вызова. Если ID назначает база, метод ждёт записи пачки;
+     * для повторной отправки, которую отсеял уникальный индекс, возвращается ID уже сохранённого сообщения.
+     *
+     * @param sender отправитель
+     * @param recipient получатель
+     * @param message текст сообщения
+     * @param delivered true, если сообщение доставлено
+     * @param clientId ID сообщения, присвоенный клиентом, или 0
+     * @return сообщение с назначенными ID и временем; ID 0, если сообщение не удалось записать
+     */
+    public MessageStore.StoredMessage save(String sender, String recipient, String message, boolean delivered, long clientId) {
+        PendingMessage pending = enqueue(sender, recipient, null, message, delivered, clientId, false);
+        long id = pending.result() != null ? await(pending.result(), 0) : pending.id();
+        return new MessageStore.StoredMessage(id, sender, recipient, message, pending.time());
+    }
+
+    /**
+     * Ставит в очередь отметку о доставке сообщения, получение которого подтвердил клиент.
+     *
+     * @param recipient получатель
+     * @param id ID сообщения
+     */
+    public void acknowledge(String recipient, long id) {
+        putLock.lock();
+        try {
+            put(new PendingMessage(enqueuedSeq + 1, id, 0, null, recipient, null, null, null, true, null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Acknowledge interrupted, message {} will be delivered again", id);
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Ставит сообщение канала в очередь на запись.
+     * Канал хранит одну строку на сообщение, независимо от числа участников.
+     * Сообщения каналов вставляются пачкой без ID; сообщение с запрошенным ID вставляется отдельно
+     * ({@code RETURNING ID}), поэтому ID запрашивается, только когда он нужен.
+     *
+     * @param sender отправитель
+     * @param channel канал
+     * @param message текст сообщения
+     * @param returnId true, если нужен ID сообщения
+     * @return ID, который становится известен, когда записана пачка (см. {@link #awaitId}), или null, если он не запрошен
+     */
+    public CompletableFuture<Long> saveChannel(String sender, String channel, String message, boolean returnId) {
+        CompletableFuture<Long> result = enqueue(sender, null, channel, message, false, 0, returnId).result();
+        return result != null || !returnId ? result : CompletableFuture.completedFuture(0L);
+    }
+
+    /**
+     * Ставит в очередь отметку, которая узнаёт ID последнего сообщения канала, поставленного в очередь раньше неё.
+     * Сообщения каналов получают ID только при вставке, поэтому так вход пользователя отделяет сообщения,
+     * которые он получит из истории канала, от сообщений, доставленных ему напрямую после входа.
+     *
+     * @return ID, который становится известен, когда записана пачка с отметкой; см. {@link #awaitChannelBarrier}
+     */
+    public CompletableFuture<Long> channelBarrier() {
+        CompletableFuture<Long> barrier = new CompletableFuture<>();
+        putLock.lock();
+        try {
+            put(new PendingMessage(enqueuedSeq + 1, 0, 0, null, null, null, null, null, false, barrier));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            barrier.complete(Long.MAX_VALUE);
+        } finally {
+            putLock.unlock();
+        }
+        return barrier;
+    }
+
+    /**
+     * Ждёт ID отметки {@link #channelBarrier}. Если поток записи остановлен или пачка не записалась,
+     * возвращает {@link Long#MAX_VALUE} — без верхней границы.
+     *
+     * @param barrier отметка
+     * @return ID последнего сообщения канала перед отметкой
+     */
+    public long awaitChannelBarrier(CompletableFuture<Long> barrier) {
+        return await(barrier, Long.MAX_VALUE);
+    }
+
+    /**
+     * Ждёт ID сообщения канала, запрошенный в {@link #saveChannel}.
+     *
+     * @param id будущий ID
+     * @return ID сообщения или 0, если его не удалось записать
+     */
+    public long awaitId(CompletableFuture<Long> id) {
+        return await(id, 0);
+    }
+
+    /**
+     * Ждёт результата записи, пока поток записи жив.
+     */
+    private long await(CompletableFuture<Long> result, long fallback) {
+        while (true) {
+            try {
+                return result.get(100, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (thread == null || !thread.isAlive()) {
+                    return result.getNow(fallback);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return fallback;
+            } catch (ExecutionException e) {
+                return fallback;
+            }
+        }
+    }
+
+    private PendingMessage enqueue(String sender, String recipient, String channel, String message, boolean delivered, long clientId,
+                                   boolean returnChannelId) {
+        String time = LocalDateTime.now(ZoneOffset.UTC).format(TIME_FORMAT);
+        putLock.lock();
+        try {
+            long id = 0;
+            if (channel == null && assignIds) {
+                if (lastMessageId < 0) {
+                    lastMessageId = loadLastMessageId();
+                }
+                id = lastMessageId < 0 ? 0 : ++lastMessageId;
+            }
+            CompletableFuture<Long> result = (channel == null ? id == 0 : returnChannelId) ? new CompletableFuture<>() : null;
+            return put(new PendingMessage(enqueuedSeq + 1, id, clientId, sender, recipient, channel, message, time, delivered, result));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Save message interrupted, message from {} is lost", sender);
+            return new PendingMessage(0, 0, clientId, sender, recipient, channel, message, time, delivered, null);
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Ставит запись в очередь, дожидаясь места. Вызывается под {@code putLock}.
+     */
+    private PendingMessage put(PendingMessage pending) throws InterruptedException {
+        if (!queue.offer(pending)) {
+            backpressureCount.increment();
+            queue.put(pending);
+        }
+        enqueuedSeq = pending.seq();
+        return pending;
+    }
+
+    /**
+     * Читает наибольший ID, когда-либо выданный таблице Messages.
+     * Вызывается под {@code putLock} один раз, при первом сообщении.
+     *
+     * @return последний ID или -1, если его не удалось прочитать
+     */
+    private long loadLastMessageId() {
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            PreparedStatement preparedStatement = pooled.prepare("SELECT MAX(COALESCE((SELECT seq FROM sqlite_sequence WHERE name = 'Messages'), 0), "
+                    + "COALESCE((SELECT MAX(ID) FROM Messages), 0))");
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            assignIds = false;
+            logger.error("Read last message ID error: {}, IDs will be assigned by the database", e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Ждёт, пока все сообщения, поставленные в очередь до вызова, будут записаны в базу.
+     * Вызывается перед чтением, которое должно видеть только что отправленные сообщения.
+     */
+    public void awaitFlushed() {
+        long target;
+        putLock.lock();
+        try {
+            target = enqueuedSeq;
+        } finally {
+            putLock.unlock();
+        }
+        synchronized (flushMonitor) {
+            while (committedSeq < target && thread != null && thread.isAlive()) {
+                try {
+                    flushMonitor.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Заранее готовит запросы записи на соединении-писателе.
+     *
+     * @throws SQLException если запрос не удалось подготовить
+     */
+    public void warmUp() throws SQLException {
+        pool.warmUp(INSERT_SQL, ACK_SQL, INSERT_CHANNEL_SQL, CHANNEL_HIGH_WATER_SQL);
+        if (!assignIds) {
+            pool.warmUp(INSERT_RETURNING_SQL, CLIENT_ID_SQL);
+        }
+    }
+
+    /**
+     * Останавливает приём и дописывает всё, что осталось в очереди.
+     */
+    public void shutdown() {
+        running = false;
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Message writer stopped, {} messages left in queue", queue.size());
+    }
+
+    @Override
+    public void run() {
+        List<PendingMessage> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || remaining <= 0 || !running) {
+                        break;
+                    }
+                    PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                synchronized (flushMonitor) {
+                    committedSeq = batch.get(batch.size() - 1).seq();
+                    flushMonitor.notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<PendingMessage> batch) {
+        Map<CompletableFuture<Long>, Long> results = new HashMap<>();
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            Connection connection = pooled.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement preparedStatement = pooled.prepare(INSERT_SQL);
+                PreparedStatement channelStatement = null;
+                PreparedStatement ackStatement = null;
+                int acks = 0;
+                int barriers = 0;
+                for (PendingMessage pending : batch) {
+                    if (pending.isBarrier()) {
+                        // Вставить сообщения каналов, стоящие перед отметкой, и запомнить последний ID.
+                        if (channelStatement != null) {
+                            channelStatement.executeBatch();
+                        }
+                        try (ResultSet resultSet = pooled.prepare(CHANNEL_HIGH_WATER_SQL).executeQuery()) {
+                            results.put(pending.result(), resultSet.next() ? resultSet.getLong(1) : 0);
+                        }
+                        barriers++;
+                        continue;
+                    }
+                    if (pending.message() == null) {
+                        if (ackStatement == null) {
+                            ackStatement = pooled.prepare(ACK_SQL);
+                        }
+                        ackStatement.setLong(1, pending.id());
+                        ackStatement.setString(2, pending.recipient());
+                        ackStatement.addBatch();
+                        acks++;
+                        continue;
+                    }
+                    if (pending.channel() != null) {
+                        if (pending.result() != null) {
+                            // Сообщения каналов перед ним вставляются первыми, чтобы ID шли в порядке очереди.
+                            if (channelStatement != null) {
+                                channelStatement.executeBatch();
+                            }
+                            results.put(pending.result(), insertChannelReturningId(pooled, pending));
+                            continue;
+                        }
+                        if (channelStatement == null) {
+                            channelStatement = pooled.prepare(INSERT_CHANNEL_SQL);
+                        }
+                        channelStatement.setString(1, pending.channel());
+                        channelStatement.setString(2, pending.sender());
+                        channelStatement.setString(3, pending.message());
+                        channelStatement.setString(4, pending.time());
+                        channelStatement.addBatch();
+                        continue;
+                    }
+                    if (pending.result() != null) {
+                        results.put(pending.result(), insertReturningId(pooled, pending));
+                        continue;
+                    }
+                    bindInsert(preparedStatement, pending);
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                if (channelStatement != null) {
+                    channelStatement.executeBatch();
+                }
+                // Подтверждения после вставок: сообщение могло попасть в эту же пачку.
+                if (ackStatement != null) {
+                    ackStatement.executeBatch();
+                }
+                connection.commit();
+                results.forEach(CompletableFuture::complete);
+                writtenCount.add(batch.size() - acks - barriers);
+                acknowledgedCount.add(acks);
+                batchCount.increment();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            failedCount.add(batch.size());
+            logger.error("Save message Error: {}, {} messages lost", e.getMessage(), batch.size());
+        } finally {
+            // Отметки из незаписанной пачки не ограничивают чтение, а потерянные сообщения получают ID 0.
+            for (PendingMessage pending : batch) {
+                if (pending.result() != null) {
+                    pending.result().complete(pending.isBarrier() ? Long.MAX_VALUE : 0L);
+                }
+            }
+        }
+    }
+
+    private static void bindInsert(PreparedStatement preparedStatement, PendingMessage pending) throws SQLException {
+        if (pending.id() > 0) {
+            preparedStatement.setLong(1, pending.id());
+        } else {
+            preparedStatement.setNull(1, Types.INTEGER);
+        }
+        preparedStatement.setString(2, pending.sender());
+        preparedStatement.setString(3, pending.recipient());
+        preparedStatement.setString(4, pending.message());
+        preparedStatement.setString(5, pending.time());
+        preparedStatement.setInt(6, pending.delivered() ? 1 : 0);
+        if (pending.clientId() > 0) {
+            preparedStatement.setLong(7, pending.clientId());
+        } else {
+            preparedStatement.setNull(7, Types.INTEGER);
+        }
+    }
+
+    /**
+     * Вставляет сообщение канала и возвращает его ID.
+     */
+    private static long insertChannelReturningId(ConnectionPool.PooledConnection pooled, PendingMessage pending) throws SQLException {
+        PreparedStatement insert = pooled.prepare(INSERT_CHANNEL_RETURNING_SQL);
+        insert.setString(1, pending.channel());
+        insert.setString(2, pending.sender());
+        insert.setString(3, pending.message());
+        insert.setString(4, pending.time());
+        try (ResultSet resultSet = insert.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Вставляет сообщение, ID которого назначает база, и возвращает этот ID.
+     * Если уникальный индекс отсеял повторную отправку, возвращает ID сохранённого ранее сообщения.
+     */
+    private static long insertReturningId(ConnectionPool.PooledConnection pooled, PendingMessage pending) throws SQLException {
+        PreparedStatement insert = pooled.prepare(INSERT_RETURNING_SQL);
+        bindInsert(insert, pending);
+        try (ResultSet resultSet = insert.executeQuery()) {
+            if (resultSet.next()) {
+                return resultSet.getLong(1);
+            }
+        }
+        if (pending.clientId() == 0) {
+            return 0;
+        }
+        PreparedStatement select = pooled.prepare(CLIENT_ID_SQL);
+        select.setString(1, pending.sender());
+        select.setLong(2, pending.clientId());
+        try (ResultSet resultSet = select.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /** @return количество сообщений в очереди */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /** @return количество записанных сообщений */
+    public long getWrittenCount() {
+        return writtenCount.sum();
+    }
+
+    /** @return количество записанных транзакций */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /** @return сколько раз отправитель ждал места в заполненной очереди */
+    public long getBackpressureCount() {
+        return backpressureCount.sum();
+    }
+
+    /** @return количество записанных подтверждений доставки */
+    public long getAcknowledgedCount() {
+        return acknowledgedCount.sum();
+    }
+
+    /** @return количество сообщений, которые не удалось записать */
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+}
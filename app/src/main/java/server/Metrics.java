@@ -0,0 +1,455 @@
+package server;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Реестр метрик сервера.
+ * <p>
+ * Счётчики остаются там, где они считаются (в основном {@link java.util.concurrent.atomic.LongAdder}
+ * в самих классах), а реестр хранит только функции чтения, поэтому на горячем пути нет ни
+ * блокировок, ни обращений к реестру. Длительности пишутся в {@link LatencyTimer}.
+ * <p>
+ * Метрики доступны через JMX (MBean {@code messenger:type=Metrics}) и по HTTP на
+ * {@code http://<messenger.metrics.host>:<messenger.metrics.port>/metrics} в текстовом формате Prometheus.
+ */
+public final class Metrics {
+
+    private static final Logger logger = LogManager.getLogger(Metrics.class);
+
+    private static final Pattern LABEL_VALUE = Pattern.compile("\"([^\"]*)\"");
+    private static final String[] BOUND_LABELS = new String[LatencyTimer.BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUND_LABELS.length; i++) {
+            BOUND_LABELS[i] = new BigDecimal(Double.toString(LatencyTimer.BOUNDS[i])).toPlainString();
+        }
+    }
+
+    /**
+     * Значение, читаемое при каждом запросе метрик.
+     *
+     * @param type {@code counter} или {@code gauge}
+     */
+    private record Sample(String name, String labels, String help, String type, DoubleSupplier value) {
+    }
+
+    private static final List<Sample> samples = new CopyOnWriteArrayList<>();
+    private static final List<LatencyTimer> timers = new CopyOnWriteArrayList<>();
+    private static final Path PROC_STATUS = Path.of("/proc/self/status");
+    /** Занятая куча сразу после последней сборки мусора; 0, пока сборок не было. */
+    private static volatile long heapAfterGc;
+
+    private Metrics() {
+    }
+
+    /**
+     * Регистрирует монотонно растущий счётчик.
+     * @param name имя метрики, по соглашению Prometheus оканчивается на {@code _total}
+     * @param help описание
+     * @param value функция чтения
+     */
+    public static void counter(String name, String help, LongSupplier value) {
+        counter(name, "", help, value);
+    }
+
+    /**
+     * Регистрирует монотонно растущий счётчик с метками.
+     * @param name имя метрики
+     * @param labels метки в формате Prometheus, например {@code pool="writer"}
+     * @param help описание
+     * @param value функция чтения
+     */
+    public static void counter(String name, String labels, String help, LongSupplier value) {
+        samples.add(new Sample(name, labels, help, "counter", value::getAsLong));
+    }
+
+    /**
+     * Регистрирует счётчик времени, который хранится в наносекундах, а выводится в секундах.
+     * @param name имя метрики, по соглашению оканчивается на {@code _seconds_total}
+     * @param labels метки в формате Prometheus или пустая строка
+     * @param help описание
+     * @param nanos функция чтения в наносекундах
+     */
+    public static void nanosCounter(String name, String labels, String help, LongSupplier nanos) {
+        samples.add(new Sample(name, labels, help, "counter", () -> nanos.getAsLong() / 1e9));
+    }
+
+    /**
+     * Регистрирует текущее значение.
+     * @param name имя метрики
+     * @param help описание
+     * @param value функция чтения
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        gauge(name, "", help, value);
+    }
+
+    /**
+     * Регистрирует текущее значение с метками.
+     * @param name имя метрики
+     * @param labels метки в формате Prometheus
+     * @param help описание
+     * @param value функция чтения
+     */
+    public static void gauge(String name, String labels, String help, DoubleSupplier value) {
+        samples.add(new Sample(name, labels, help, "gauge", value));
+    }
+
+    /**
+     * Создаёт и регистрирует гистограмму длительностей.
+     * @param name имя метрики, по соглашению оканчивается на {@code _seconds}
+     * @param labels метки в формате Prometheus или пустая строка
+     * @param help описание
+     * @return гистограмма для записи
+     */
+    public static LatencyTimer timer(String name, String labels, String help) {
+        LatencyTimer timer = new LatencyTimer(name, labels, help);
+        timers.add(timer);
+        return timer;
+    }
+
+    /**
+     * Регистрирует метрики компонентов сервера и JVM, MBean и HTTP-эндпоинт.
+     * Вызывается после открытия базы данных.
+     */
+    public static void start() {
+        registerDefaults();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("messenger:type=Metrics"));
+        } catch (JMException e) {
+            logger.error("Metrics MBean registration error: {}", e.getMessage());
+        }
+        if (ServerConfig.METRICS_PORT <= 0) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(ServerConfig.METRICS_HOST, ServerConfig.METRICS_PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            logger.info("Metrics endpoint on http://{}:{}/metrics", ServerConfig.METRICS_HOST, ServerConfig.METRICS_PORT);
+        } catch (IOException e) {
+            logger.error("Metrics endpoint error: {}", e.getMessage());
+        }
+    }
+
+    private static void registerDefaults() {
+        gauge("messenger_startup_seconds", "Time from JVM start until the server accepted clients", () -> ServerMain.getStartupMillis() / 1e3);
+        gauge("messenger_users_active", "Users logged in to this server", Users::getActiveCount);
+        counter("messenger_messages_total", "Direct messages sent", ClientHandler::getMessageCount);
+        counter("messenger_messages_duplicate_total", "Retried direct messages recognised by client message ID", ClientHandler::getDuplicateCount);
+        counter("messenger_channel_messages_total", "Channel messages sent", ClientHandler::getGroupMessageCount);
+        gauge("messenger_outbound_queue_depth", "Messages waiting in client outbound queues", Users::getOutboundDepth);
+        counter("messenger_outbound_dropped_total", "Live deliveries dropped because the client queue was full", ClientHandler::getDroppedCount);
+        counter("messenger_outbound_spilled_total", "Live deliveries stored offline because the client queue was full", ClientHandler::getSpilledCount);
+        counter("messenger_outbound_disconnected_total", "Slow clients disconnected", ClientHandler::getDisconnectedCount);
+        counter("messenger_compressed_connections_total", "Binary connections that negotiated deflate", ClientHandler::getCompressedConnectionCount);
+        counter("messenger_compression_input_bytes_total", "Frame bytes before deflate", ClientHandler::getCompressionInputBytes);
+        counter("messenger_compression_output_bytes_total", "Bytes written after deflate, frame headers included", ClientHandler::getCompressionOutputBytes);
+        gauge("messenger_idle_tracked", "Connections watched by the idle tracker", IdleTracker::getTrackedCount);
+        counter("messenger_idle_pings_total", "Pings sent to silent clients", IdleTracker::getPingCount);
+        counter("messenger_idle_closed_total", "Connections closed after the idle timeout", IdleTracker::getIdleClosedCount);
+        counter("messenger_login_timeout_closed_total", "Connections closed because the client did not log in in time", IdleTracker::getLoginTimeoutCount);
+        counter("messenger_sessions_evicted_total", "Sessions closed by a new login of the same user", Users::getEvictedCount);
+
+        for (RateLimiter limiter : RateLimiter.getAll()) {
+            String labels = "budget=\"" + limiter.getBudget() + "\",scope=\"" + limiter.getScope() + "\"";
+            counter("messenger_rate_limited_total", labels, "Commands rejected by the rate limit", limiter::getRejectedCount);
+            gauge("messenger_rate_limit_keys", labels, "Logins or addresses with rate limit state", limiter::getTrackedCount);
+        }
+        counter("messenger_rate_flood_closed_total", "Connections closed for repeatedly exceeding the rate limit", ClientHandler::getFloodClosedCount);
+        counter("messenger_auth_submitted_total", "Registrations and logins accepted by the auth pool", AuthExecutor::getSubmittedCount);
+        counter("messenger_auth_rejected_total", "Registrations and logins rejected because the auth queue was full", AuthExecutor::getRejectedCount);
+        nanosCounter("messenger_auth_queue_wait_seconds_total", "", "Time auth requests spent in the queue", AuthExecutor::getQueueWaitNanos);
+        gauge("messenger_auth_queue", "Auth requests waiting for a thread", AuthExecutor::getQueueSize);
+        gauge("messenger_auth_active", "Auth threads busy hashing", AuthExecutor::getActiveCount);
+
+        for (ConnectionPool pool : new ConnectionPool[]{DataBase.getWriterPool(), DataBase.getReaderPool()}) {
+            if (pool == null) {
+                continue;
+            }
+            String labels = "pool=\"" + pool.getName() + "\"";
+            counter("messenger_db_pool_acquires_total", labels, "Connections taken from the pool", pool::getAcquireCount);
+            nanosCounter("messenger_db_pool_wait_seconds_total", labels, "Time spent waiting for a free connection", pool::getTotalWaitNanos);
+            gauge("messenger_db_pool_max_wait_seconds", labels, "Longest wait for a free connection", () -> pool.getMaxWaitNanos() / 1e9);
+            counter("messenger_db_pool_timeouts_total", labels, "Connection requests that timed out", pool::getTimeoutCount);
+            gauge("messenger_db_pool_idle", labels, "Idle connections", pool::getIdleCount);
+        }
+        MessageWriter writer = DataBase.getMessageWriter();
+        if (writer != null) {
+            gauge("messenger_db_write_queue", "Messages waiting to be written", writer::getQueueSize);
+            counter("messenger_db_written_total", "Messages written to the database", writer::getWrittenCount);
+            counter("messenger_db_write_batches_total", "Write transactions", writer::getBatchCount);
+            counter("messenger_db_write_backpressure_total", "Senders that waited for space in the write queue", writer::getBackpressureCount);
+            counter("messenger_db_acks_total", "Delivery acknowledgements written to the database", writer::getAcknowledgedCount);
+            counter("messenger_db_write_failed_total", "Messages that could not be written", writer::getFailedCount);
+        }
+        if (DataBase.getMessageStore() instanceof LogMessageStore store) {
+            gauge("messenger_log_segments", "Segments of the message log", store::getSegmentCount);
+            counter("messenger_log_appended_total", "Messages appended to the message log", store::getAppendedCount);
+            counter("messenger_log_compactions_total", "Message log compactions", store::getCompactionCount);
+            counter("messenger_log_compacted_bytes_total", "Bytes reclaimed by message log compaction", store::getCompactedBytes);
+        }
+        MessageArchive archive = DataBase.getMessageArchive();
+        if (archive != null) {
+            gauge("messenger_archive_months", "Monthly archive databases", archive::getMonthCount);
+            gauge("messenger_archive_running", "1 while the archive job is moving messages", archive::getRunning);
+            counter("messenger_archive_runs_total", "Completed archive job runs", archive::getRunCount);
+            counter("messenger_archive_messages_total", "Messages moved to the archive", archive::getArchivedCount);
+            counter("messenger_archive_batches_total", "Archive batches", archive::getBatchCount);
+            counter("messenger_archive_vacuumed_pages_total", "Database pages returned to the file system", archive::getVacuumedPages);
+            counter("messenger_archive_history_reads_total", "History pages continued in the archive", archive::getHistoryReads);
+        }
+        HistoryCache historyCache = DataBase.getHistoryCache();
+        if (historyCache != null) {
+            counter("messenger_history_cache_hits_total", "First history pages served from the cache", historyCache::getHitCount);
+            counter("messenger_history_cache_misses_total", "First history pages read from the message store", historyCache::getMissCount);
+            counter("messenger_history_cache_evictions_total", "Conversations evicted from the history cache", historyCache::getEvictionCount);
+            gauge("messenger_history_cache_bytes", "Approximate size of the history cache", historyCache::getBytes);
+            gauge("messenger_history_cache_conversations", "Conversations in the history cache", historyCache::getConversationCount);
+        }
+        counter("messenger_offline_delivered_total", "Offline messages delivered on login", DataBase::getOfflineDeliveredCount);
+        nanosCounter("messenger_offline_drain_seconds_total", "", "Time spent delivering offline messages", DataBase::getOfflineDrainNanos);
+        counter("messenger_user_directory_hits_total", "Recipient checks answered from memory", UserDirectory::getHitCount);
+        counter("messenger_user_directory_misses_total", "Recipient checks that read the database", UserDirectory::getMissCount);
+        counter("messenger_cluster_forwarded_total", "Messages forwarded to other nodes", ClusterNode::getForwardedCount);
+        counter("messenger_cluster_received_total", "Messages received from other nodes", ClusterNode::getReceivedCount);
+        counter("messenger_cluster_forward_failed_total", "Messages that could not be forwarded", ClusterNode::getForwardFailedCount);
+        gauge("messenger_cluster_remote_users", "Users connected to other nodes", ClusterNode::getRemoteUserCount);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        gauge("jvm_heap_used_bytes", "Used heap", () -> memory.getHeapMemoryUsage().getUsed());
+        gauge("jvm_heap_committed_bytes", "Committed heap", () -> memory.getHeapMemoryUsage().getCommitted());
+        gauge("jvm_heap_max_bytes", "Maximum heap", () -> memory.getHeapMemoryUsage().getMax());
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String labels = "gc=\"" + gc.getName() + "\"";
+            counter("jvm_gc_collections_total", labels, "Garbage collections", gc::getCollectionCount);
+            nanosCounter("jvm_gc_seconds_total", labels, "Time spent in garbage collection", () -> gc.getCollectionTime() * 1_000_000);
+        }
+        Set<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter emitter) {
+                emitter.addNotificationListener((notification, handback) -> recordHeapAfterGc(notification, heapPools), null, null);
+            }
+        }
+        gauge("jvm_heap_after_gc_bytes", "Used heap right after the last garbage collection", () -> heapAfterGc);
+        if (Files.isReadable(PROC_STATUS)) {
+            gauge("process_resident_memory_bytes", "Resident set size of the server process", Metrics::residentBytes);
+        }
+        gauge("jvm_threads", "Live platform threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("process_uptime_seconds", "Time since the JVM started", () -> ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+    }
+
+    /**
+     * Формирует все метрики в текстовом формате Prometheus.
+     * @return текст ответа эндпоинта {@code /metrics}
+     */
+    static String scrape() {
+        Map<String, List<Sample>> families = new LinkedHashMap<>();
+        for (Sample sample : samples) {
+            families.computeIfAbsent(sample.name(), key -> new ArrayList<>()).add(sample);
+        }
+        StringBuilder out = new StringBuilder(8192);
+        for (List<Sample> family : families.values()) {
+            Sample first = family.get(0);
+            out.append("# HELP ").append(first.name()).append(' ').append(first.help()).append('\n');
+            out.append("# TYPE ").append(first.name()).append(' ').append(first.type()).append('\n');
+            for (Sample sample : family) {
+                out.append(sample.name());
+                if (!sample.labels().isEmpty()) {
+                    out.append('{').append(sample.labels()).append('}');
+                }
+                out.append(' ').append(format(sample.value().getAsDouble())).append('\n');
+            }
+        }
+        String lastName = null;
+        for (LatencyTimer timer : timers) {
+            if (!timer.name.equals(lastName)) {
+                out.append("# HELP ").append(timer.name).append(' ').append(timer.help).append('\n');
+                out.append("# TYPE ").append(timer.name).append(" histogram\n");
+                lastName = timer.name;
+            }
+            String prefix = timer.labels.isEmpty() ? "" : timer.labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < LatencyTimer.BOUNDS.length; i++) {
+                cumulative += timer.bucket(i);
+                out.append(timer.name).append("_bucket{").append(prefix).append("le=\"").append(BOUND_LABELS[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += timer.bucket(LatencyTimer.BOUNDS.length);
+            out.append(timer.name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            String labels = timer.labels.isEmpty() ? "" : "{" + timer.labels + "}";
+            out.append(timer.name).append("_sum").append(labels).append(' ').append(format(timer.getSumSeconds())).append('\n');
+            out.append(timer.name).append("_count").append(labels).append(' ').append(timer.getCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Запоминает занятую кучу после сборки. В отличие от {@code jvm_heap_used_bytes} в ней нет
+     * мусора, накопившегося с прошлой сборки, поэтому по разнице двух значений видно, сколько памяти
+     * держат живые объекты, например открытые соединения.
+     */
+    private static void recordHeapAfterGc(Notification notification, Set<String> heapPools) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+            if (heapPools.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        heapAfterGc = used;
+    }
+
+    /**
+     * Размер резидентной памяти процесса из {@code /proc/self/status} (только Linux):
+     * куча, стеки потоков, буферы сокетов и прочая нативная память.
+     */
+    private static double residentBytes() {
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            logger.debug("Resident memory read error: {}", e.getMessage());
+        }
+        return 0;
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * Имя атрибута JMX: имя метрики и значения меток через точку.
+     */
+    private static String attributeName(String name, String labels) {
+        StringBuilder builder = new StringBuilder(name);
+        Matcher matcher = LABEL_VALUE.matcher(labels);
+        while (matcher.find()) {
+            builder.append('.').append(matcher.group(1));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Те же метрики в виде атрибутов MBean только для чтения.
+     * Для гистограмм публикуются количество и сумма в секундах.
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+
+        private Map<String, DoubleSupplier> attributes() {
+            Map<String, DoubleSupplier> attributes = new LinkedHashMap<>();
+            for (Sample sample : samples) {
+                attributes.put(attributeName(sample.name(), sample.labels()), sample.value());
+            }
+            for (LatencyTimer timer : timers) {
+                String name = attributeName(timer.name, timer.labels);
+                attributes.put(name + "_count", timer::getCount);
+                attributes.put(name + "_sum", timer::getSumSeconds);
+            }
+            return attributes;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            DoubleSupplier value = attributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value.getAsDouble();
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, DoubleSupplier> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                DoubleSupplier value = attributes.get(name);
+                if (value != null) {
+                    list.add(new Attribute(name, value.getAsDouble()));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (String name : attributes().keySet()) {
+                infos.add(new MBeanAttributeInfo(name, "double", name, true, false, false));
+            }
+            return new MBeanInfo(MetricsMBean.class.getName(), "Messenger server metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
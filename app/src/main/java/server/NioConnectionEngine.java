@@ -0,0 +1,326 @@
+package server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Неблокирующий движок на {@link Selector} и {@link SocketChannel}.
+ * <p>
+ * Принятые соединения распределяются по кругу между небольшим пулом event loop потоков.
+ * Каждый loop читает байты, режет их на строки и передаёт строки в {@link ClientHandler},
+ * а ответы клиента складывает в очередь буферов и дописывает в канал, когда сокет готов к записи.
+ * Очередь буферов ограничена {@code messenger.nio.pendingBytes}: сверх предела исходящие сообщения
+ * остаются в ограниченной очереди {@link ClientHandler}, а чтение команд клиента приостанавливается
+ * до тех пор, пока {@code OP_WRITE} не допишет накопленное.
+ * Команды выполняются прямо в потоке loop, поэтому долгие обращения к базе задерживают
+ * остальные соединения этого loop.
+ */
+public class NioConnectionEngine implements ConnectionEngine {
+
+    private static final Logger logger = LogManager.getLogger(NioConnectionEngine.class);
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 65536;
+
+    private final EventLoop[] loops;
+    private volatile ServerSocketChannel serverChannel;
+
+    /**
+     * Создаёт движок с заданным количеством event loop потоков.
+     *
+     * @param loopCount количество event loop потоков
+     */
+    public NioConnectionEngine(int loopCount) {
+        this.loops = new EventLoop[loopCount];
+    }
+
+    @Override
+    public void serve(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread.ofPlatform().name("event-loop-" + i).daemon(true).start(loops[i]);
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port));
+            logger.info("Waiting for a client");
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (AsynchronousCloseException e) {
+                    logger.info("Stopped accepting clients");
+                    return;
+                }
+                channel.configureBlocking(false);
+                EventLoop loop = loops[next++ % loops.length];
+                loop.execute(() -> loop.register(channel));
+            }
+        }
+    }
+
+    /**
+     * Закрывает серверный канал. Event loop потоки продолжают работать,
+     * чтобы подключённые клиенты получили ответы, оставшиеся в очередях.
+     */
+    @Override
+    public void stop() {
+        ServerSocketChannel channel = serverChannel;
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Server channel closing error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Поток, обслуживающий свой {@link Selector} и все зарегистрированные в нём соединения.
+     */
+    private static final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private Thread thread;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                NioConnection connection = new NioConnection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                logger.error("Channel registration error: {}", e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.writePending();
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("Event loop error: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Состояние одного неблокирующего соединения.
+     */
+    private static final class NioConnection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final ClientHandler handler;
+        private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+        /** Сколько байт из {@code pending} ещё не записано в канал. */
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private SelectionKey key;
+
+        NioConnection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.handler = new ClientHandler(channel, new ChannelWriter(this), this::writable);
+            handler.open();
+        }
+
+        void read() {
+            int count;
+            try {
+                count = channel.read(readBuffer);
+            } catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                handler.close();
+                return;
+            }
+            readBuffer.flip();
+            int start = readBuffer.position();
+            for (int i = start; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) != '\n') {
+                    continue;
+                }
+                int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                String line = new String(readBuffer.array(), start, end - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                if (!handler.handleCommand(line)) {
+                    handler.close();
+                    return;
+                }
+            }
+            readBuffer.position(start);
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+                    logger.error("Line is too long, closing connection");
+                    handler.close();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        }
+
+        /**
+         * @return true, если в очереди записи меньше {@code messenger.nio.pendingBytes} байт
+         */
+        boolean writable() {
+            return pendingBytes.get() < ServerConfig.NIO_PENDING_BYTES;
+        }
+
+        void enqueue(ByteBuffer buffer) {
+            pendingBytes.addAndGet(buffer.remaining());
+            pending.add(buffer);
+            if (loop.inLoop()) {
+                writePending();
+            } else {
+                loop.execute(this::writePending);
+            }
+        }
+
+        /**
+         * Дописывает очередь в канал, пока сокет принимает данные.
+         * Если после записи очередь опустилась ниже предела, клиенту снова разрешается разбирать исходящие сообщения.
+         */
+        void writePending() {
+            long written = 0;
+            boolean blocked = false;
+            try {
+                ByteBuffer buffer;
+                while ((buffer = pending.peek()) != null) {
+                    written += channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        blocked = true;
+                        break;
+                    }
+                    pending.poll();
+                }
+            } catch (IOException e) {
+                pending.clear();
+                pendingBytes.set(0);
+                closeNow();
+                return;
+            }
+            boolean writable = pendingBytes.addAndGet(-written) < ServerConfig.NIO_PENDING_BYTES;
+            if (key != null && key.isValid()) {
+                key.interestOps((writable ? SelectionKey.OP_READ : 0) | (blocked ? SelectionKey.OP_WRITE : 0));
+            }
+            if (written > 0 && writable) {
+                handler.resumeOutbound();
+            }
+        }
+
+        void closeChannel() {
+            if (!loop.inLoop()) {
+                loop.execute(this::closeChannel);
+                return;
+            }
+            if (channel.isOpen()) {
+                writePending();
+                closeNow();
+            }
+        }
+
+        private void closeNow() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Channel closing error: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * {@link Writer}, который при каждом {@code flush} кодирует накопленный текст в UTF-8
+     * и ставит его в очередь записи соединения, не блокируя вызывающий поток.
+     */
+    private static final class ChannelWriter extends Writer {
+
+        private final NioConnection connection;
+        private final StringBuilder buffer = new StringBuilder();
+
+        ChannelWriter(NioConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(char[] chars, int off, int len) {
+            buffer.append(chars, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            buffer.append(str, off, off + len);
+        }
+
+        @Override
+        public void flush() {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+            buffer.setLength(0);
+            connection.enqueue(ByteBuffer.wrap(bytes));
+        }
+
+        @Override
+        public void close() {
+            flush();
+            connection.closeChannel();
+        }
+    }
+}
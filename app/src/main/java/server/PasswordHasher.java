@@ -0,0 +1,116 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Хэширование паролей.
+ * <p>
+ * Новые пароли хэшируются алгоритмом {@code PBKDF2WithHmacSHA256} с числом итераций из настроек.
+ * Алгоритм и число итераций хранятся у каждого пользователя, поэтому старые хэши
+ * (многократный SHA-256) продолжают проверяться и пересчитываются при следующем входе.
+ */
+public final class PasswordHasher {
+
+    private static final Logger logger = LogManager.getLogger(PasswordHasher.class);
+
+    /** Текущий алгоритм хэширования. */
+    public static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    /** Алгоритм, которым хэшировались пароли до появления PBKDF2. */
+    public static final String LEGACY_ALGORITHM = "SHA-256";
+
+    /** Число итераций старого алгоритма. */
+    public static final int LEGACY_ITERATIONS = 100000;
+
+    private static final int KEY_LENGTH = 256;
+    private static final SecureRandom random = new SecureRandom();
+
+    private PasswordHasher() {
+    }
+
+    /**
+     * Генерирует случайную соль для пароля.
+     *
+     * @return 16 случайных байт в формате Base64
+     */
+    public static String generateSalt() {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        return Base64.getEncoder().encodeToString(salt);
+    }
+
+    /**
+     * Хэширует пароль текущим алгоритмом с числом итераций из настроек.
+     *
+     * @param password пароль пользователя
+     * @param salt соль в формате Base64
+     * @return хэш пароля в формате Base64, или null в случае ошибки
+     */
+    public static String hash(String password, String salt) {
+        return hash(ALGORITHM, ServerConfig.AUTH_ITERATIONS, password, salt);
+    }
+
+    /**
+     * Хэширует пароль заданным алгоритмом.
+     *
+     * @param algorithm {@link #ALGORITHM} или {@link #LEGACY_ALGORITHM}
+     * @param iterations число итераций
+     * @param password пароль пользователя
+     * @param salt соль в формате Base64
+     * @return хэш пароля в формате Base64, или null в случае ошибки
+     */
+    public static String hash(String algorithm, int iterations, String password, String salt) {
+        try {
+            byte[] hash;
+            if (LEGACY_ALGORITHM.equals(algorithm)) {
+                MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+                hash = (salt + password).getBytes();
+                for (int i = 0; i < iterations; i++) {
+                    messageDigest.reset();
+                    hash = messageDigest.digest(hash);
+                }
+            } else {
+                PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), Base64.getDecoder().decode(salt), iterations, KEY_LENGTH);
+                hash = SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+                spec.clearPassword();
+            }
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            logger.error("Hash error: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Сравнивает хэши за время, не зависящее от места первого расхождения.
+     *
+     * @param storedHash сохранённый хэш
+     * @param hashAttempt вычисленный хэш
+     * @return true, если хэши совпадают
+     */
+    public static boolean matches(String storedHash, String hashAttempt) {
+        if (storedHash == null || hashAttempt == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(storedHash.getBytes(StandardCharsets.US_ASCII), hashAttempt.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Проверяет, нужно ли пересчитать хэш текущими параметрами.
+     *
+     * @param algorithm алгоритм сохранённого хэша
+     * @param iterations число итераций сохранённого хэша
+     * @return true, если алгоритм устарел или итераций меньше, чем в настройках
+     */
+    public static boolean needsRehash(String algorithm, int iterations) {
+        return !ALGORITHM.equals(algorithm) || iterations < ServerConfig.AUTH_ITERATIONS;
+    }
+}
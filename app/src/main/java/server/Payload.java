@@ -0,0 +1,42 @@
+package server;
+
+import protocol.FrameCodec;
+
+/**
+ * Исходящее сообщение.
+ * <p>
+ * Один объект ставится в очереди всех получателей: текст форматируется один раз,
+ * а кадр двоичного протокола кодируется при первой отправке и переиспользуется остальными получателями.
+ */
+final class Payload {
+
+    final String text;
+    private volatile byte[] frame;
+
+    Payload(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Создаёт служебное сообщение, у которого в двоичном протоколе свой кадр, а не {@link FrameCodec#TEXT}.
+     *
+     * @param text строка для текстового протокола
+     * @param frame кадр для двоичного протокола
+     */
+    Payload(String text, byte[] frame) {
+        this.text = text;
+        this.frame = frame;
+    }
+
+    /**
+     * @return кадр {@link FrameCodec#TEXT} с текстом сообщения
+     */
+    byte[] frame() {
+        byte[] encoded = frame;
+        if (encoded == null) {
+            encoded = FrameCodec.encodeText(text);
+            frame = encoded;
+        }
+        return encoded;
+    }
+}
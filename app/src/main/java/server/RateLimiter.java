@@ -0,0 +1,134 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Ограничение частоты команд по ключу (логину или IP-адресу) алгоритмом GCRA.
+ * <p>
+ * GCRA — это token bucket, у которого вместо счётчика жетонов хранится одно число:
+ * теоретическое время прихода следующего запроса (TAT). Каждый разрешённый запрос сдвигает TAT
+ * на интервал {@code 60 / perMinute} секунд; запрос отклоняется, если TAT ушло вперёд больше чем
+ * на {@code burst} интервалов. Состояние ключа — один {@link AtomicLong}, обновляемый через CAS,
+ * поэтому проверка не берёт блокировок и не ждёт другие потоки.
+ * <p>
+ * Для каждой группы команд есть два ограничителя: по логину и по адресу клиента.
+ * Адреса из {@code messenger.rate.exempt} (по умолчанию локальные, откуда работает генератор нагрузки)
+ * ограничениям по адресу не подчиняются. Ключи, у которых TAT уже в прошлом, раз в минуту удаляются:
+ * для них новое состояние ничем не отличается от старого.
+ */
+public final class RateLimiter {
+
+    private static final long ORIGIN = System.nanoTime();
+    private static final Set<String> exempt = Set.of(ServerConfig.RATE_EXEMPT.split(","));
+
+    /** Вход и регистрация под одним логином: защита от перебора паролей. */
+    static final RateLimiter AUTH_LOGIN = new RateLimiter("auth", "login", ServerConfig.RATE_AUTH_PER_MINUTE, ServerConfig.RATE_AUTH_BURST);
+    /** Вход и регистрация с одного адреса. */
+    static final RateLimiter AUTH_IP = new RateLimiter("auth", "ip", ServerConfig.RATE_AUTH_IP_PER_MINUTE, ServerConfig.RATE_AUTH_IP_BURST);
+    /** Личные сообщения и сообщения каналов одного пользователя. */
+    static final RateLimiter MESSAGE_LOGIN = new RateLimiter("message", "login", ServerConfig.RATE_MESSAGE_PER_MINUTE, ServerConfig.RATE_MESSAGE_BURST);
+    /** Сообщения со всех соединений одного адреса. */
+    static final RateLimiter MESSAGE_IP = new RateLimiter("message", "ip", ServerConfig.RATE_MESSAGE_IP_PER_MINUTE, ServerConfig.RATE_MESSAGE_IP_BURST);
+    /** Запросы истории и поиска одного пользователя. */
+    static final RateLimiter HISTORY_LOGIN = new RateLimiter("history", "login", ServerConfig.RATE_HISTORY_PER_MINUTE, ServerConfig.RATE_HISTORY_BURST);
+    /** Запросы истории и поиска с одного адреса. */
+    static final RateLimiter HISTORY_IP = new RateLimiter("history", "ip", ServerConfig.RATE_HISTORY_IP_PER_MINUTE, ServerConfig.RATE_HISTORY_IP_BURST);
+
+    private static final List<RateLimiter> all = List.of(AUTH_LOGIN, AUTH_IP, MESSAGE_LOGIN, MESSAGE_IP, HISTORY_LOGIN, HISTORY_IP);
+
+    static {
+        Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("rate-limiter").daemon(true).factory())
+                .scheduleWithFixedDelay(RateLimiter::evictIdle, 1, 1, TimeUnit.MINUTES);
+    }
+
+    private final String budget;
+    private final String scope;
+    private final long interval;
+    private final long tolerance;
+    private final Map<String, AtomicLong> state = new ConcurrentHashMap<>();
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * @param budget группа команд для метрик
+     * @param scope {@code login} или {@code ip}
+     * @param perMinute средняя разрешённая частота; 0 — без ограничения
+     * @param burst сколько запросов подряд разрешено сверх средней частоты
+     */
+    private RateLimiter(String budget, String scope, int perMinute, int burst) {
+        this.budget = budget;
+        this.scope = scope;
+        this.interval = perMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / perMinute : 0;
+        this.tolerance = interval * Math.max(burst, 1);
+    }
+
+    /**
+     * Проверяет и учитывает один запрос.
+     *
+     * @param key логин или адрес клиента; {@code null} не ограничивается
+     * @return true, если запрос укладывается в ограничение
+     */
+    boolean tryAcquire(String key) {
+        if (interval == 0 || key == null || (scope.equals("ip") && exempt.contains(key))) {
+            return true;
+        }
+        AtomicLong tat = state.get(key);
+        if (tat == null) {
+            tat = state.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        long now = System.nanoTime() - ORIGIN;
+        while (true) {
+            long current = tat.get();
+            long next = Math.max(current, now) + interval;
+            if (next - now > tolerance) {
+                rejectedCount.increment();
+                return false;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Удаляет ключи, чьё состояние совпадает с начальным. Если ключ удалён одновременно с запросом,
+     * этот запрос учитывается в удалённом состоянии — клиент получает не больше одного лишнего запроса.
+     */
+    private static void evictIdle() {
+        long now = System.nanoTime() - ORIGIN;
+        for (RateLimiter limiter : all) {
+            limiter.state.values().removeIf(tat -> tat.get() <= now);
+        }
+    }
+
+    /** @return все ограничители, для метрик */
+    static List<RateLimiter> getAll() {
+        return all;
+    }
+
+    /** @return группа команд */
+    public String getBudget() {
+        return budget;
+    }
+
+    /** @return {@code login} или {@code ip} */
+    public String getScope() {
+        return scope;
+    }
+
+    /** @return сколько запросов отклонено */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /** @return количество ключей с ненулевым состоянием */
+    public int getTrackedCount() {
+        return state.size();
+    }
+}
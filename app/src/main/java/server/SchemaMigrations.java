@@ -0,0 +1,152 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Версионированные миграции схемы базы данных.
+ * <p>
+ * Номер применённой версии хранится в таблице {@code schema_version}.
+ * При старте сервера применяются по порядку все миграции с большим номером,
+ * каждая в своей транзакции. Новые изменения схемы добавляются в конец списка {@link #MIGRATIONS},
+ * уже выпущенные миграции не меняются.
+ */
+final class SchemaMigrations {
+
+    private static final Logger logger = LogManager.getLogger(SchemaMigrations.class);
+
+    /**
+     * Шаг миграции, выполняемый внутри транзакции.
+     */
+    @FunctionalInterface
+    interface Step {
+        void apply(Statement statement) throws SQLException;
+    }
+
+    /**
+     * Миграция схемы.
+     *
+     * @param version номер версии, которую получает схема после миграции
+     * @param description краткое описание изменения
+     * @param step действия миграции
+     */
+    record Migration(int version, String description, Step step) {
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "Create Users and Messages tables", statement -> {
+                statement.execute("CREATE TABLE IF NOT EXISTS Users(ID INTEGER PRIMARY KEY AUTOINCREMENT, Login TEXT UNIQUE, salt TEXT, password TEXT)");
+                statement.execute("CREATE TABLE IF NOT EXISTS Messages(ID INTEGER PRIMARY KEY AUTOINCREMENT, sender TEXT, recipient TEXT, message TEXT, time DATETIME DEFAULT CURRENT_TIMESTAMP, delivered INTEGER DEFAULT 0)");
+            }),
+            new Migration(2, "Store password hash algorithm and iterations", statement -> {
+                if (!hasColumn(statement, "Users", "algorithm")) {
+                    statement.execute("ALTER TABLE Users ADD COLUMN algorithm TEXT");
+                    statement.execute("ALTER TABLE Users ADD COLUMN iterations INTEGER");
+                }
+            }),
+            new Migration(3, "Index offline messages and conversations", statement -> {
+                // Ключ переписки не зависит от направления сообщения: меньший логин, пробел, больший логин.
+                // Логины не содержат пробелов, поэтому ключ однозначен.
+                statement.execute("ALTER TABLE Messages ADD COLUMN conversation TEXT GENERATED ALWAYS AS ("
+                        + "CASE WHEN sender < recipient THEN sender || ' ' || recipient ELSE recipient || ' ' || sender END) VIRTUAL");
+                // ID — это rowid, он неявно завершает каждый индекс, поэтому строки внутри ключа идут в порядке ID.
+                statement.execute("CREATE INDEX IF NOT EXISTS idx_messages_offline ON Messages(recipient, delivered)");
+                statement.execute("CREATE INDEX IF NOT EXISTS idx_messages_conversation ON Messages(conversation)");
+            }),
+            new Migration(4, "Create channel tables", statement -> {
+                // last_read_id — курсор участника: всё, что в канале с большим ID, он ещё не получил.
+                statement.execute("CREATE TABLE IF NOT EXISTS ChannelMembers(channel TEXT, login TEXT, last_read_id INTEGER DEFAULT 0, PRIMARY KEY(channel, login))");
+                statement.execute("CREATE INDEX IF NOT EXISTS idx_channel_members_login ON ChannelMembers(login)");
+                statement.execute("CREATE TABLE IF NOT EXISTS ChannelMessages(ID INTEGER PRIMARY KEY AUTOINCREMENT, channel TEXT, sender TEXT, message TEXT, time DATETIME DEFAULT CURRENT_TIMESTAMP)");
+                statement.execute("CREATE INDEX IF NOT EXISTS idx_channel_messages_channel ON ChannelMessages(channel)");
+            }),
+            new Migration(5, "Full-text index of messages", statement -> {
+                // Индекс без своей копии текста: строки читаются из Messages по rowid = ID.
+                // Столбец conversation индексируется, чтобы поиск по сообщениям одного пользователя
+                // сужался индексом, а не проверкой каждой найденной строки.
+                statement.execute("CREATE VIRTUAL TABLE IF NOT EXISTS MessagesFts USING fts5(message, conversation, "
+                        + "content='Messages', content_rowid='ID', tokenize='unicode61 remove_diacritics 2')");
+                statement.execute("CREATE TRIGGER IF NOT EXISTS messages_fts_insert AFTER INSERT ON Messages BEGIN "
+                        + "INSERT INTO MessagesFts(rowid, message, conversation) VALUES (new.ID, new.message, new.conversation); END");
+                statement.execute("CREATE TRIGGER IF NOT EXISTS messages_fts_delete AFTER DELETE ON Messages BEGIN "
+                        + "INSERT INTO MessagesFts(MessagesFts, rowid, message, conversation) VALUES ('delete', old.ID, old.message, old.conversation); END");
+                statement.execute("CREATE TRIGGER IF NOT EXISTS messages_fts_update AFTER UPDATE OF message, sender, recipient ON Messages BEGIN "
+                        + "INSERT INTO MessagesFts(MessagesFts, rowid, message, conversation) VALUES ('delete', old.ID, old.message, old.conversation); "
+                        + "INSERT INTO MessagesFts(rowid, message, conversation) VALUES (new.ID, new.message, new.conversation); END");
+                // Сообщения, записанные до миграции.
+                statement.execute("INSERT INTO MessagesFts(MessagesFts) VALUES ('rebuild')");
+            }),
+            new Migration(6, "Client message IDs", statement -> {
+                // ID, который сообщению присвоил клиент; повторная отправка с тем же ID не создаёт второе сообщение.
+                // Частичный индекс: у сообщений текстового протокола и старых строк ID клиента нет.
+                if (!hasColumn(statement, "Messages", "client_id")) {
+                    statement.execute("ALTER TABLE Messages ADD COLUMN client_id INTEGER");
+                }
+                statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_messages_client_id ON Messages(sender, client_id) WHERE client_id IS NOT NULL");
+            })
+    );
+
+    private SchemaMigrations() {
+    }
+
+    /**
+     * Применяет все ещё не применённые миграции.
+     *
+     * @param connection соединение-писатель
+     * @throws SQLException если миграция не удалась; её транзакция откатывается
+     */
+    static void migrate(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS schema_version(version INTEGER PRIMARY KEY, description TEXT, applied_at DATETIME DEFAULT CURRENT_TIMESTAMP)");
+            int current = currentVersion(statement);
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version() <= current) {
+                    continue;
+                }
+                connection.setAutoCommit(false);
+                try {
+                    migration.step().apply(statement);
+                    statement.execute("INSERT INTO schema_version(version, description) VALUES ("
+                            + migration.version() + ", '" + migration.description().replace("'", "''") + "')");
+                    connection.commit();
+                    logger.info("Schema migrated to version {}: {}", migration.version(), migration.description());
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw new SQLException("Migration " + migration.version() + " failed: " + e.getMessage(), e);
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+        }
+    }
+
+    private static int currentVersion(Statement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Проверяет, есть ли в таблице столбец с заданным именем.
+     * @param statement открытый запрос
+     * @param table имя таблицы
+     * @param column имя столбца
+     * @return true, если столбец существует
+     * @throws SQLException при ошибке чтения схемы
+     */
+    static boolean hasColumn(Statement statement, String table, String column) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery("PRAGMA table_xinfo(" + table + ")")) {
+            while (resultSet.next()) {
+                if (column.equalsIgnoreCase(resultSet.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
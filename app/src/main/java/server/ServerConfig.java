@@ -0,0 +1,226 @@
+package server;
+
+/**
+ * Настройки сервера.
+ * <p>
+ * Все значения читаются из системных свойств JVM ({@code -Dmessenger.*}),
+ * если свойство не задано — используется значение по умолчанию.
+ */
+public final class ServerConfig {
+
+    /** Порт, на котором сервер принимает клиентов. */
+    public static final int PORT = Integer.getInteger("messenger.port", 9806);
+
+    /**
+     * Движок обработки соединений: {@code virtual} (виртуальный поток на соединение),
+     * {@code platform} (платформенный поток на соединение) или {@code nio} (Selector и пул event loop).
+     */
+    public static final String ENGINE = System.getProperty("messenger.engine", "virtual");
+
+    /** Количество event loop потоков для движка {@code nio}. */
+    public static final int EVENT_LOOPS = Integer.getInteger("messenger.eventLoops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Сколько байт ответов может ждать записи в канал одного клиента движка {@code nio}.
+     * Сверх этого сообщения остаются в исходящей очереди клиента, а чтение его команд приостанавливается.
+     */
+    public static final int NIO_PENDING_BYTES = Integer.getInteger("messenger.nio.pendingBytes", 1 << 20);
+
+    /** Через сколько миллисекунд тишины от клиента сервер отправляет ему {@code /ping}. */
+    public static final long IDLE_PING_MS = Long.getLong("messenger.idle.pingMs", 60000);
+
+    /** Через сколько миллисекунд тишины соединение закрывается; 0 отключает отслеживание простоя. */
+    public static final long IDLE_TIMEOUT_MS = Long.getLong("messenger.idle.timeoutMs", 90000);
+
+    /** Сколько миллисекунд после подключения даётся на регистрацию или вход. */
+    public static final long LOGIN_TIMEOUT_MS = Long.getLong("messenger.idle.loginTimeoutMs", 30000);
+
+    /** Путь к файлу базы данных SQLite. */
+    public static final String DB_PATH = System.getProperty("messenger.db.path", "database.db");
+
+    /** Количество соединений для чтения в пуле базы данных. */
+    public static final int DB_READERS = Integer.getInteger("messenger.db.readers", 4);
+
+    /** Сколько миллисекунд ждать свободное соединение с базой данных. */
+    public static final long DB_ACQUIRE_TIMEOUT_MS = Long.getLong("messenger.db.acquireTimeoutMs", 5000);
+
+    /** Максимальное число сообщений, ожидающих записи в базу. */
+    public static final int DB_WRITE_QUEUE = Integer.getInteger("messenger.db.writeQueue", 10000);
+
+    /** Максимальное число сообщений в одной транзакции записи. */
+    public static final int DB_WRITE_BATCH = Integer.getInteger("messenger.db.writeBatch", 500);
+
+    /** Сколько миллисекунд писатель ждёт новые сообщения, прежде чем записать неполную пачку. */
+    public static final long DB_WRITE_LINGER_MS = Long.getLong("messenger.db.writeLingerMs", 5);
+
+    /** Число итераций PBKDF2 для новых и пересчитанных хэшей паролей. */
+    public static final int AUTH_ITERATIONS = Integer.getInteger("messenger.auth.iterations", 310000);
+
+    /** Количество потоков, выполняющих регистрацию и вход. */
+    public static final int AUTH_THREADS = Integer.getInteger("messenger.auth.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /** Максимальное число заявок на вход, ожидающих свободный поток. */
+    public static final int AUTH_QUEUE = Integer.getInteger("messenger.auth.queue", 256);
+
+    /** Количество сообщений на странице {@code /history}, если размер не указан. */
+    public static final int HISTORY_PAGE_SIZE = Integer.getInteger("messenger.history.pageSize", 50);
+
+    /** Максимальное количество сообщений на одной странице {@code /history}. */
+    public static final int HISTORY_MAX_PAGE_SIZE = Integer.getInteger("messenger.history.maxPageSize", 500);
+
+    /** Сколько последних сообщений переписки хранит кэш первой страницы истории. */
+    public static final int HISTORY_CACHE_MESSAGES = Integer.getInteger("messenger.history.cacheMessages", HISTORY_PAGE_SIZE);
+
+    /** Приблизительный предел объёма кэша истории в мегабайтах; 0 — кэш выключен. В кластере кэш не используется. */
+    public static final int HISTORY_CACHE_MB = Integer.getInteger("messenger.history.cacheMb", 32);
+
+    /** Количество результатов на одной странице {@code /search}. */
+    public static final int SEARCH_PAGE_SIZE = Integer.getInteger("messenger.search.pageSize", 20);
+
+    /** Сколько самых новых совпадений ранжирует {@code /search}; более старые не попадают в результаты. */
+    public static final int SEARCH_MAX_CANDIDATES = Integer.getInteger("messenger.search.maxCandidates", 10000);
+
+    /** Через сколько дней доставленные сообщения переносятся из Messages в архив; 0 — не переносить. */
+    public static final int ARCHIVE_AFTER_DAYS = Integer.getInteger("messenger.archive.afterDays", 0);
+
+    /** Каталог помесячных архивов сообщений. */
+    public static final String ARCHIVE_PATH = System.getProperty("messenger.archive.path", "archive");
+
+    /** Период задачи переноса в архив. */
+    public static final long ARCHIVE_INTERVAL_MS = Long.getLong("messenger.archive.intervalMs", 3600000);
+
+    /** Сколько строк Messages просматривает одна пачка переноса. */
+    public static final int ARCHIVE_BATCH = Integer.getInteger("messenger.archive.batch", 1000);
+
+    /** Пауза между пачками переноса, чтобы писатель сообщений успевал занять соединение. */
+    public static final long ARCHIVE_PAUSE_MS = Long.getLong("messenger.archive.pauseMs", 20);
+
+    /** Сколько свободных страниц базы возвращается файловой системе за один шаг. */
+    public static final int ARCHIVE_VACUUM_PAGES = Integer.getInteger("messenger.archive.vacuumPages", 1000);
+
+    /** Попыток входа и регистрации в минуту под одним логином; 0 — без ограничения. */
+    public static final int RATE_AUTH_PER_MINUTE = Integer.getInteger("messenger.rate.auth.perMinute", 10);
+
+    /** Сколько попыток входа под одним логином разрешено подряд. */
+    public static final int RATE_AUTH_BURST = Integer.getInteger("messenger.rate.auth.burst", 5);
+
+    /** Попыток входа и регистрации в минуту с одного адреса. */
+    public static final int RATE_AUTH_IP_PER_MINUTE = Integer.getInteger("messenger.rate.auth.ipPerMinute", 60);
+
+    /** Сколько попыток входа с одного адреса разрешено подряд. */
+    public static final int RATE_AUTH_IP_BURST = Integer.getInteger("messenger.rate.auth.ipBurst", 20);
+
+    /** Сообщений в минуту от одного пользователя (личных и в каналы). */
+    public static final int RATE_MESSAGE_PER_MINUTE = Integer.getInteger("messenger.rate.message.perMinute", 1200);
+
+    /** Сколько сообщений пользователя разрешено подряд. */
+    public static final int RATE_MESSAGE_BURST = Integer.getInteger("messenger.rate.message.burst", 50);
+
+    /** Сообщений в минуту с одного адреса. */
+    public static final int RATE_MESSAGE_IP_PER_MINUTE = Integer.getInteger("messenger.rate.message.ipPerMinute", 12000);
+
+    /** Сколько сообщений с одного адреса разрешено подряд. */
+    public static final int RATE_MESSAGE_IP_BURST = Integer.getInteger("messenger.rate.message.ipBurst", 500);
+
+    /** Запросов {@code /history} и {@code /search} в минуту от одного пользователя. */
+    public static final int RATE_HISTORY_PER_MINUTE = Integer.getInteger("messenger.rate.history.perMinute", 300);
+
+    /** Сколько запросов истории пользователя разрешено подряд. */
+    public static final int RATE_HISTORY_BURST = Integer.getInteger("messenger.rate.history.burst", 20);
+
+    /** Запросов истории и поиска в минуту с одного адреса. */
+    public static final int RATE_HISTORY_IP_PER_MINUTE = Integer.getInteger("messenger.rate.history.ipPerMinute", 3000);
+
+    /** Сколько запросов истории с одного адреса разрешено подряд. */
+    public static final int RATE_HISTORY_IP_BURST = Integer.getInteger("messenger.rate.history.ipBurst", 100);
+
+    /** Адреса через запятую, на которые не действуют ограничения по адресу. */
+    public static final String RATE_EXEMPT = System.getProperty("messenger.rate.exempt", "127.0.0.1,0:0:0:0:0:0:0:1");
+
+    /** После стольких отклонённых подряд команд соединение закрывается; 0 — не закрывать. */
+    public static final int RATE_FLOOD_DISCONNECT = Integer.getInteger("messenger.rate.floodDisconnect", 50);
+
+    /** Сколько последних ID сообщений клиента помнит соединение, чтобы отсеять повторную отправку. */
+    public static final int ACK_DEDUP_WINDOW = Integer.getInteger("messenger.ack.dedupWindow", 256);
+
+    /** Количество оффлайн-сообщений, отправляемых и отмечаемых доставленными за один шаг. */
+    public static final int OFFLINE_CHUNK_SIZE = Integer.getInteger("messenger.offline.chunkSize", 200);
+
+    /** Максимальное число сообщений в исходящей очереди одного соединения. */
+    public static final int OUTBOUND_QUEUE = Integer.getInteger("messenger.outbound.queue", 1024);
+
+    /** Максимальное число сообщений, отправляемых клиенту за одну запись в сокет. */
+    public static final int OUTBOUND_BATCH = Integer.getInteger("messenger.outbound.batch", 64);
+
+    /**
+     * Что делать, если исходящая очередь получателя заполнена:
+     * {@code spill} — сохранить сообщение как оффлайн, {@code drop} — не доставлять его сейчас
+     * (оно остаётся в истории), {@code disconnect} — отключить медленного получателя и сохранить сообщение как оффлайн.
+     */
+    public static final String SLOW_CONSUMER_POLICY = System.getProperty("messenger.outbound.policy", "spill");
+
+    /** Разрешено ли клиентам двоичного протокола запрашивать сжатие кадров ({@code /binary deflate}). */
+    public static final boolean COMPRESSION_ENABLED = Boolean.parseBoolean(System.getProperty("messenger.compression.enabled", "true"));
+
+    /** Пачки ответов короче этого числа байт отправляются без сжатия. */
+    public static final int COMPRESSION_MIN_BYTES = Integer.getInteger("messenger.compression.minBytes", 512);
+
+    /** Уровень сжатия deflate от 1 (быстрее) до 9 (плотнее). */
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("messenger.compression.level", 1);
+
+    /** Хранилище личных сообщений: {@code sqlite} (таблица Messages) или {@code log} (сегментированный журнал). */
+    public static final String MESSAGE_STORE = System.getProperty("messenger.store", "sqlite");
+
+    /** Каталог сегментов хранилища {@code log}. */
+    public static final String STORE_LOG_PATH = System.getProperty("messenger.store.log.path", "messages-log");
+
+    /** Размер одного сегмента хранилища {@code log} в мегабайтах. */
+    public static final int STORE_LOG_SEGMENT_MB = Integer.getInteger("messenger.store.log.segmentMb", 64);
+
+    /** Как часто сбрасывать активный сегмент хранилища {@code log} на диск, в миллисекундах. */
+    public static final long STORE_LOG_FLUSH_MS = Long.getLong("messenger.store.log.flushMs", 1000);
+
+    /** Как часто проверять, нужно ли уплотнять сегменты хранилища {@code log}, в миллисекундах. */
+    public static final long STORE_LOG_COMPACT_INTERVAL_MS = Long.getLong("messenger.store.log.compactIntervalMs", 60000);
+
+    /** Имя узла в кластере; должно быть уникальным среди узлов. */
+    public static final String CLUSTER_NODE_ID = System.getProperty("messenger.cluster.nodeId", "node-" + PORT);
+
+    /** Порт, на котором узел принимает соединения от других узлов кластера. */
+    public static final int CLUSTER_PORT = Integer.getInteger("messenger.cluster.port", 9906);
+
+    /**
+     * Соседние узлы кластера через запятую в виде {@code node@host:port}.
+     * Если список пуст, сервер работает один.
+     */
+    public static final String CLUSTER_PEERS = System.getProperty("messenger.cluster.peers", "");
+
+    /** Максимальное число строк, ожидающих отправки одному соседнему узлу. */
+    public static final int CLUSTER_QUEUE = Integer.getInteger("messenger.cluster.queue", 10000);
+
+    /** Порт HTTP-эндпоинта метрик {@code /metrics}; 0 отключает эндпоинт. */
+    public static final int METRICS_PORT = Integer.getInteger("messenger.metrics.port", 9100);
+
+    /** Адрес, на котором слушает эндпоинт метрик; по умолчанию только локальные запросы. */
+    public static final String METRICS_HOST = System.getProperty("messenger.metrics.host", "127.0.0.1");
+
+    /**
+     * Сколько миллисекунд при остановке сервера ждать, пока клиенты получат оставшиеся сообщения
+     * и уведомление о переподключении, прежде чем закрыть базу данных.
+     */
+    public static final long SHUTDOWN_DRAIN_MS = Long.getLong("messenger.shutdown.drainMs", 5000);
+
+    /** Готовить частые запросы на всех соединениях с базой при запуске, до приёма клиентов. */
+    public static final boolean DB_WARM_UP = Boolean.parseBoolean(System.getProperty("messenger.db.warmUp", "true"));
+
+    /**
+     * Учебный запуск для записи AOT-кэша: сервер стартует, сам подключается к себе,
+     * выполняет несколько команд и завершается штатной остановкой.
+     */
+    public static final boolean TRAINING_RUN = Boolean.getBoolean("messenger.trainingRun");
+
+    private ServerConfig() {
+    }
+}
@@ -1,37 +1,106 @@
 package server;
 
-import java.io.*;
-import java.net.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Главный класс сервера мессенджера.
- * Создаёт ServerSocket, принимает клиентов и запускает обработку подключений.
+ * Готовит базу данных и запускает движок, который принимает клиентов и обрабатывает подключения.
+ * <p>
+ * Остановка (SIGTERM, Ctrl+C, {@code System.exit}) идёт через shutdown hook: сервер перестаёт принимать
+ * клиентов, отправляет подключённым уведомление о переподключении и дописывает их исходящие очереди,
+ * затем дописывает в базу очередь отложенной записи и закрывает соединения.
  */
 public class ServerMain {
 
     private static final Logger logger = LogManager.getLogger(ServerMain.class);
 
+    /** Уведомление, с которым сервер закрывает соединения при остановке. */
+    static final String SHUTDOWN_NOTICE = "Server is shutting down, please reconnect";
+
+    private static volatile long startupMillis;
+
 
     /**
      * Точка входа сервера.
-     * Инициализирует базу данных, создаёт таблицы и ждёт подключения клиентов.
+     * Инициализирует базу данных, создаёт таблицы и запускает движок соединений,
+     * выбранный свойством {@code messenger.engine}.
      * @param args аргументы командной строки (не используются)
      */
     public static void main(String[] args){
+        long start = System.nanoTime();
         DataBase.setConnection();
         DataBase.createTables();
+        long database = System.nanoTime();
+        if (ServerConfig.DB_WARM_UP) {
+            DataBase.warmUp();
+        }
+        long warmUp = System.nanoTime();
+        DataBase.startArchive();
+        Channels.load();
+        UserDirectory.load();
+        long caches = System.nanoTime();
+        Metrics.start();
+        IdleTracker.start();
+        ConnectionEngine engine = ConnectionEngine.create(ServerConfig.ENGINE);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(engine), "shutdown"));
         try {
-            logger.info("Waiting for a client");
-            ServerSocket serverSocket = new ServerSocket(9806);
-            while (true) {
-                Socket soc = serverSocket.accept();
-                soc.setSoTimeout(300000);
-                ClientHandler clientHandler = new ClientHandler(soc);
-                clientHandler.start();
+            ClusterNode.start();
+            logger.info("Starting {} connection engine on port {}", ServerConfig.ENGINE, ServerConfig.PORT);
+            startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+            logger.info("Server ready in {} ms since JVM start: database {} ms, warm-up {} ms, caches {} ms",
+                    startupMillis, millis(database - start), millis(warmUp - database), millis(caches - warmUp));
+            if (ServerConfig.TRAINING_RUN) {
+                TrainingRun.start(ServerConfig.PORT);
             }
-        } catch (IOException e){logger.error("Server error: " + e.getMessage());}
+            engine.serve(ServerConfig.PORT);
+        } catch (IOException e){logger.error("Server error: {}", e.getMessage());}
+
+    }
+
+    /**
+     * @return сколько миллисекунд прошло от запуска JVM до приёма клиентов, или 0, пока сервер запускается
+     */
+    public static long getStartupMillis() {
+        return startupMillis;
+    }
+
+    /**
+     * Штатная остановка из shutdown hook.
+     * Порядок важен: сначала закрывается приём, чтобы новые клиенты не появлялись во время остановки;
+     * затем клиенты получают уведомление, и сервер ждёт не дольше {@code messenger.shutdown.drainMs},
+     * пока их соединения закроются — закрытие ещё пишет курсоры каналов; последней закрывается база,
+     * которая дописывает очередь {@link MessageWriter}.
+     * Логи сбрасываются в самом конце, поэтому собственный shutdown hook log4j отключён.
+     */
+    private static void shutdown(ConnectionEngine engine) {
+        long start = System.nanoTime();
+        int clients = Users.getActiveCount();
+        logger.info("Shutting down, {} clients connected", clients);
+        engine.stop();
+        Users.disconnectAll(SHUTDOWN_NOTICE);
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(ServerConfig.SHUTDOWN_DRAIN_MS);
+        while (Users.getActiveCount() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (Users.getActiveCount() > 0) {
+            logger.warn("{} clients did not disconnect in {} ms", Users.getActiveCount(), ServerConfig.SHUTDOWN_DRAIN_MS);
+        }
+        AuthExecutor.shutdown();
+        DataBase.close();
+        logger.info("Shutdown complete in {} ms, {} clients notified", millis(System.nanoTime() - start), clients);
+        LogManager.shutdown();
+    }
 
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
     }
 }
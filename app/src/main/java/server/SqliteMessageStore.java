@@ -0,0 +1,284 @@
+package server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Хранилище сообщений в таблице Messages базы SQLite.
+ * <p>
+ * Запись идёт через очередь отложенной записи {@link MessageWriter}, поэтому перед каждым
+ * чтением хранилище дожидается записи уже поставленных в очередь сообщений.
+ * <p>
+ * Поиск идёт по полнотекстовому индексу FTS5 {@code MessagesFts}, который триггеры обновляют
+ * при каждой вставке и удалении сообщения (см. {@link SchemaMigrations}). Результаты упорядочены по bm25
+ * среди {@code messenger.search.maxCandidates} самых новых совпадений.
+ * <p>
+ * Старые сообщения переносит в помесячные архивы {@link MessageArchive}; история продолжается в них,
+ * а поиск и оффлайн-доставка работают только с таблицей Messages.
+ */
+public class SqliteMessageStore implements MessageStore {
+
+    private static final Logger logger = LogManager.getLogger(SqliteMessageStore.class);
+
+    private static final String RECENT_CLIENT_IDS_SQL =
+            "SELECT client_id, ID FROM Messages WHERE sender = ? AND client_id IS NOT NULL ORDER BY client_id DESC LIMIT ?";
+    private static final String OFFLINE_SQL =
+            "SELECT ID, sender, message, time FROM Messages WHERE recipient = ? AND delivered = 0 AND ID > ? ORDER BY ID LIMIT ?";
+    private static final String MARK_DELIVERED_SQL =
+            "UPDATE Messages SET delivered = 1 WHERE recipient = ? AND delivered = 0 AND ID BETWEEN ? AND ?";
+    private static final String HISTORY_SQL = "SELECT ID, sender, recipient, message, time FROM "
+            + "(SELECT ID, sender, recipient, message, time FROM Messages WHERE conversation = ? AND ID < ? ORDER BY ID DESC LIMIT ?) ORDER BY ID";
+    // Ранжируются только самые новые совпадения: время запроса не растёт вместе с историей пользователя.
+    // Вес столбца conversation — 0: он только сужает выборку и не влияет на ранжирование.
+    private static final String SEARCH_SQL = "SELECT m.ID, m.sender, m.recipient, m.message, m.time "
+            + "FROM (SELECT rowid, bm25(MessagesFts, 1.0, 0.0) AS score FROM MessagesFts WHERE MessagesFts MATCH ? "
+            + "ORDER BY rowid DESC LIMIT ?) f JOIN Messages m ON m.ID = f.rowid "
+            + "WHERE (m.sender = ? OR m.recipient = ?) AND (? IS NULL OR m.conversation = ?) "
+            + "ORDER BY f.score, m.ID DESC LIMIT ? OFFSET ?";
+
+    private final ConnectionPool writer;
+    private final ConnectionPool readers;
+    private final MessageWriter messageWriter;
+    private final MessageArchive archive;
+
+    /**
+     * Создаёт хранилище поверх пулов соединений {@link DataBase}.
+     *
+     * @param writer пул соединения-писателя
+     * @param readers пул соединений-читателей
+     * @param messageWriter очередь отложенной записи
+     */
+    public SqliteMessageStore(ConnectionPool writer, ConnectionPool readers, MessageWriter messageWriter) {
+        this(writer, readers, messageWriter, null);
+    }
+
+    /**
+     * Создаёт хранилище, история которого продолжается в архиве.
+     *
+     * @param writer пул соединения-писателя
+     * @param readers пул соединений-читателей
+     * @param messageWriter очередь отложенной записи
+     * @param archive архив старых сообщений или {@code null}
+     */
+    public SqliteMessageStore(ConnectionPool writer, ConnectionPool readers, MessageWriter messageWriter, MessageArchive archive) {
+        this.writer = writer;
+        this.readers = readers;
+        this.messageWriter = messageWriter;
+        this.archive = archive;
+    }
+
+    @Override
+    public StoredMessage save(String sender, String recipient, String message, boolean delivered) {
+        return messageWriter.save(sender, recipient, message, delivered, 0);
+    }
+
+    @Override
+    public StoredMessage save(String sender, String recipient, String message, boolean delivered, long clientId) {
+        return messageWriter.save(sender, recipient, message, delivered, clientId);
+    }
+
+    /**
+     * Клиент назначает ID по возрастанию, поэтому последние ID — наибольшие,
+     * и запрос читает только конец уникального индекса {@code (sender, client_id)}.
+     */
+    @Override
+    public Map<Long, Long> recentClientIds(String sender, int limit) {
+        messageWriter.awaitFlushed();
+        Map<Long, Long> ids = new HashMap<>();
+        try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare(RECENT_CLIENT_IDS_SQL);
+            preparedStatement.setString(1, sender);
+            preparedStatement.setInt(2, limit);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    ids.put(rs.getLong(1), rs.getLong(2));
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Read client message IDs error: {}", e.getMessage());
+        }
+        return ids;
+    }
+
+    @Override
+    public int fetchOffline(String recipient, long afterId, int limit, Predicate<StoredMessage> visitor) {
+        messageWriter.awaitFlushed();
+        int count = 0;
+        try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare(OFFLINE_SQL);
+            preparedStatement.setString(1, recipient);
+            preparedStatement.setLong(2, afterId);
+            preparedStatement.setInt(3, limit);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    StoredMessage message = new StoredMessage(rs.getLong("ID"), rs.getString("sender"), recipient,
+                            rs.getString("message"), rs.getString("time"));
+                    if (!visitor.test(message)) {
+                        break;
+                    }
+                    count++;
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Get offline messages error: {}", e.getMessage());
+        }
+        return count;
+    }
+
+    @Override
+    public void markDelivered(String recipient, long fromId, long toId) {
+        try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare(MARK_DELIVERED_SQL);
+            preparedStatement.setString(1, recipient);
+            preparedStatement.setLong(2, fromId);
+            preparedStatement.setLong(3, toId);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Mark delivered messages error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Подтверждение ставится в очередь {@link MessageWriter} после вставки самого сообщения
+     * и записывается в той же транзакции, что и соседние сообщения, а не отдельной записью.
+     */
+    @Override
+    public void acknowledge(String recipient, long id) {
+        messageWriter.acknowledge(recipient, id);
+    }
+
+    @Override
+    public long history(String user1, String user2, int limit, long beforeId, Predicate<StoredMessage> visitor) {
+        if (archive == null || archive.getMaxArchivedId() == 0) {
+            return hotHistory(user1, user2, limit, beforeId, visitor);
+        }
+        List<StoredMessage> page = new ArrayList<>(limit);
+        hotHistory(user1, user2, limit, beforeId, page::add);
+        // Архив нужен, если в Messages не хватило строк или среди них есть недоставленные старше архивных.
+        if (page.size() < limit || page.get(0).id() < archive.getMaxArchivedId()) {
+            archive.history(DataBase.conversationKey(user1, user2), limit, beforeId, page);
+            page.sort(Comparator.comparingLong(StoredMessage::id));
+            if (page.size() > limit) {
+                page = page.subList(page.size() - limit, page.size());
+            }
+        }
+        for (StoredMessage message : page) {
+            if (!visitor.test(message)) {
+                break;
+            }
+        }
+        return page.isEmpty() ? 0 : page.get(0).id();
+    }
+
+    private long hotHistory(String user1, String user2, int limit, long beforeId, Predicate<StoredMessage> visitor) {
+        messageWriter.awaitFlushed();
+        long oldestId = 0;
+        try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare(HISTORY_SQL);
+            preparedStatement.setString(1, DataBase.conversationKey(user1, user2));
+            preparedStatement.setLong(2, beforeId);
+            preparedStatement.setInt(3, limit);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    StoredMessage message = new StoredMessage(rs.getLong("ID"), rs.getString("sender"), rs.getString("recipient"),
+                            rs.getString("message"), rs.getString("time"));
+                    if (oldestId == 0) {
+                        oldestId = message.id();
+                    }
+                    if (!visitor.test(message)) {
+                        break;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Message history error: {}", e.getMessage());
+        }
+        return oldestId;
+    }
+
+    @Override
+    public int search(String login, List<String> terms, String user, int limit, int offset, Predicate<StoredMessage> visitor) {
+        messageWriter.awaitFlushed();
+        int count = 0;
+        try (ConnectionPool.PooledConnection connection = readers.acquire()) {
+            PreparedStatement preparedStatement = connection.prepare(SEARCH_SQL);
+            String conversation = user == null ? null : DataBase.conversationKey(login, user);
+            preparedStatement.setString(1, matchExpression(login, terms, user));
+            preparedStatement.setInt(2, ServerConfig.SEARCH_MAX_CANDIDATES);
+            preparedStatement.setString(3, login);
+            preparedStatement.setString(4, login);
+            preparedStatement.setString(5, conversation);
+            preparedStatement.setString(6, conversation);
+            preparedStatement.setInt(7, limit);
+            preparedStatement.setInt(8, offset);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    StoredMessage message = new StoredMessage(rs.getLong("ID"), rs.getString("sender"), rs.getString("recipient"),
+                            rs.getString("message"), rs.getString("time"));
+                    if (!visitor.test(message)) {
+                        break;
+                    }
+                    count++;
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Message search error: {}", e.getMessage());
+        }
+        return count;
+    }
+
+    /**
+     * Составляет запрос FTS5: все слова в столбце message и участники в столбце conversation.
+     * Каждое слово берётся в кавычки, поэтому символы синтаксиса FTS5 в запросе пользователя ничего не значат.
+     * Точная проверка участников выполняется в SQL, индекс только сужает выборку.
+     *
+     * @param login пользователь, который ищет
+     * @param terms слова запроса; {@code *} в конце слова — поиск по префиксу
+     * @param user второй участник переписки или {@code null}
+     * @return выражение для {@code MATCH}
+     */
+    static String matchExpression(String login, List<String> terms, String user) {
+        StringBuilder expression = new StringBuilder("message : (");
+        for (String term : terms) {
+            boolean prefix = term.endsWith("*");
+            String word = prefix ? term.substring(0, term.length() - 1) : term;
+            expression.append(quote(word)).append(prefix ? "* " : " ");
+        }
+        expression.setCharAt(expression.length() - 1, ')');
+        expression.append(" AND conversation : ").append(quote(login));
+        if (user != null) {
+            expression.append(" AND conversation : ").append(quote(user));
+        }
+        return expression.toString();
+    }
+
+    private static String quote(String word) {
+        return '"' + word.replace("\"", "\"\"") + '"';
+    }
+
+    @Override
+    public void warmUp() {
+        try {
+            readers.warmUp(RECENT_CLIENT_IDS_SQL, OFFLINE_SQL, HISTORY_SQL, SEARCH_SQL);
+            writer.warmUp(MARK_DELIVERED_SQL);
+        } catch (SQLException e) {
+            logger.error("Message store warm-up error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Пулы соединений и очередь записи принадлежат {@link DataBase} и закрываются им.
+     */
+    @Override
+    public void close() {
+    }
+}
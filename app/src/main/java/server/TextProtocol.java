@@ -0,0 +1,195 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import protocol.FrameCodec;
+
+/**
+ * Разбор строк текстового протокола.
+ * <p>
+ * Каждая строка — одна команда, аргументы разделены пробелами.
+ */
+final class TextProtocol {
+
+    private TextProtocol() {
+    }
+
+    /**
+     * Разбирает строку и вызывает соответствующий метод обработчика.
+     * <p>
+     * Поддерживаемые команды:
+     * <ul>
+     *     <li>/register login password — регистрация нового пользователя</li>
+     *     <li>/login login password — вход в систему</li>
+     *     <li>/msg target message — отправка сообщения другому пользователю</li>
+     *     <li>/history user [limit] [before-id] — вывод страницы истории переписки с другим пользователем</li>
+     *     <li>/search words [user|*] [page] — поиск по своим сообщениям; слова соединяются через {@code +},
+     *     {@code *} в конце слова — поиск по префиксу, {@code *} вместо пользователя — все переписки</li>
+     *     <li>/join channel, /leave channel — вступление в канал и выход из него</li>
+     *     <li>/gmsg channel message — отправка сообщения всем участникам канала</li>
+     *     <li>/binary [ack] [deflate] — переход на двоичный протокол с подтверждением доставки и сжатием ответов сервера</li>
+     *     <li>/ping — проверка соединения, сервер отвечает /pong; /pong — ответ клиента на ping сервера</li>
+     *     <li>/exit — завершение соединения</li>
+     * </ul>
+     *
+     * @param string строка от клиента или {@code null}, если клиент отключился
+     * @param handler обработчик команд
+     * @return {@code false}, если соединение нужно закрыть
+     */
+    static boolean dispatch(String string, CommandHandler handler) {
+
+        if (string == null || string.equals("/exit")){
+            return false;
+        }
+
+        if (string.equals(FrameCodec.HANDSHAKE) || string.startsWith(FrameCodec.HANDSHAKE + " ")) {
+            handler.binary(Set.copyOf(Arrays.asList(string.substring(FrameCodec.HANDSHAKE.length()).trim().split(" +"))));
+        }
+
+        else if (string.equals(FrameCodec.PING_TEXT)) {
+            handler.pong();
+        }
+
+        else if (string.equals(FrameCodec.PONG_TEXT)) {
+            // Активность уже отмечена, ответ на ping ничего не делает.
+        }
+
+        else if (!handler.isAuthenticated()){
+
+            if (string.startsWith("/register")) {
+                String[] comands = string.split(" ", 3);
+                if (comands.length < 3){
+                    handler.reply("Please enter your login and password correctly.");
+                    return true;
+                }
+                handler.register(comands[1], comands[2]);
+            }
+
+            else if (string.startsWith("/login")) {
+                String[] comands = string.split(" ", 3);
+                if (comands.length < 3) {
+                    handler.reply("Please enter your login and password correctly.");
+                    return true;
+                }
+                handler.login(comands[1], comands[2]);
+            }
+
+            else if(string.startsWith("/msg")) {
+                handler.reply("Please register or log in first.");
+            }
+
+            else if(string.startsWith("/history") || string.startsWith("/search")) {
+                handler.reply("Please register or log in first.");
+            }
+
+            else if(string.startsWith("/join") || string.startsWith("/leave") || string.startsWith("/gmsg")) {
+                handler.reply("Please register or log in first.");
+            }
+
+            else {
+                handler.reply("Enter the correct command");
+            }
+        }
+
+        else {
+
+            if (string.startsWith("/msg")) {
+                String[] commands = string.split(" ", 3);
+                if (commands.length < 3){
+                    handler.reply("Please enter the recipient and message correctly.");
+                    return true;
+                }
+                handler.message(0, commands[1], commands[2]);
+            }
+
+            else if (string.startsWith("/register") || string.startsWith("/login")) {
+                handler.reply("You are already logged in");
+            }
+
+            else if (string.startsWith("/history")){
+                String[] commands = string.split(" ", 4);
+                if (commands.length < 2){
+                    handler.reply("Please enter the command correctly to see message history");
+                    return true;
+                }
+                int limit;
+                long beforeId;
+                try {
+                    limit = commands.length > 2 ? Integer.parseInt(commands[2]) : 0;
+                    beforeId = commands.length > 3 ? Long.parseLong(commands[3]) : 0;
+                } catch (NumberFormatException e) {
+                    handler.reply("Please enter the command correctly to see message history");
+                    return true;
+                }
+                handler.history(commands[1], limit, beforeId);
+            }
+
+            else if (string.startsWith("/search")){
+                String[] commands = string.split(" ", 4);
+                List<String> terms = commands.length > 1 ? searchTerms(commands[1]) : List.of();
+                if (terms.isEmpty()){
+                    handler.reply("Please enter the search words correctly.");
+                    return true;
+                }
+                int page;
+                try {
+                    page = commands.length > 3 ? Integer.parseInt(commands[3]) : 1;
+                } catch (NumberFormatException e) {
+                    page = 0;
+                }
+                if (page < 1) {
+                    handler.reply("Please enter the page number correctly.");
+                    return true;
+                }
+                String user = commands.length > 2 && !commands[2].equals("*") ? commands[2] : null;
+                handler.search(terms, user, page);
+            }
+
+            else if (string.startsWith("/join") || string.startsWith("/leave")){
+                String[] commands = string.split(" ", 2);
+                if (commands.length < 2){
+                    handler.reply("Please enter the channel name correctly.");
+                    return true;
+                }
+                if (commands[0].equals("/join")) {
+                    handler.join(commands[1]);
+                } else {
+                    handler.leave(commands[1]);
+                }
+            }
+
+            else if (string.startsWith("/gmsg")){
+                String[] commands = string.split(" ", 3);
+                if (commands.length < 3){
+                    handler.reply("Please enter the channel and message correctly.");
+                    return true;
+                }
+                handler.groupMessage(commands[1], commands[2]);
+            }
+
+            else {
+                handler.reply("Enter the correct command");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Разбивает запрос {@code /search} на слова по {@code +}.
+     * Слова без букв и цифр отбрасываются: в полнотекстовом индексе им ничего не соответствует.
+     *
+     * @param query запрос
+     * @return слова запроса
+     */
+    static List<String> searchTerms(String query) {
+        List<String> terms = new ArrayList<>();
+        for (String term : query.split("\\+")) {
+            if (term.codePoints().anyMatch(Character::isLetterOrDigit)) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,66 @@
+package server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Блокирующий движок «поток на соединение».
+ * <p>
+ * В режиме виртуальных потоков каждое соединение обслуживает виртуальный поток,
+ * стек которого хранится в куче и растёт по мере необходимости,
+ * поэтому тысячи простаивающих клиентов не занимают платформенные потоки.
+ */
+public class ThreadConnectionEngine implements ConnectionEngine {
+
+    private static final Logger logger = LogManager.getLogger(ThreadConnectionEngine.class);
+
+    private final Thread.Builder builder;
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * Создаёт движок.
+     *
+     * @param virtual {@code true} — виртуальные потоки, {@code false} — платформенные
+     */
+    public ThreadConnectionEngine(boolean virtual) {
+        this.builder = virtual ? Thread.ofVirtual().name("client-", 0) : Thread.ofPlatform().name("client-", 0);
+    }
+
+    @Override
+    public void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            this.serverSocket = serverSocket;
+            logger.info("Waiting for a client");
+            while (true) {
+                Socket soc;
+                try {
+                    soc = serverSocket.accept();
+                } catch (SocketException e) {
+                    if (serverSocket.isClosed()) {
+                        logger.info("Stopped accepting clients");
+                        return;
+                    }
+                    throw e;
+                }
+                builder.start(new ClientHandler(soc));
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        ServerSocket socket = serverSocket;
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error("Server socket closing error: {}", e.getMessage());
+        }
+    }
+}
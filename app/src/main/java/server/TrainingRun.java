@@ -0,0 +1,88 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import protocol.FrameCodec;
+
+/**
+ * Учебный запуск сервера для записи AOT-кэша ({@code -XX:AOTCacheOutput}).
+ * <p>
+ * JVM кладёт в кэш классы, загруженные за время работы процесса, поэтому сервер должен пройти
+ * через обычные пути: регистрацию и вход, личные и оффлайн-сообщения, каналы, историю и поиск.
+ * Для этого сервер подключается сам к себе по текстовому протоколу, выполняет короткие сессии
+ * и завершается через {@code System.exit}, то есть через ту же штатную остановку, что и в работе.
+ * Пользователи создаются в базе, поэтому запуск выполняется на отдельной пустой базе (задача Gradle {@code serverAot}).
+ */
+final class TrainingRun {
+
+    private static final Logger logger = LogManager.getLogger(TrainingRun.class);
+
+    private static final int CONNECT_ATTEMPTS = 100;
+
+    private TrainingRun() {
+    }
+
+    /**
+     * Запускает сессии в отдельном потоке, который ждёт, пока движок откроет порт.
+     *
+     * @param port порт сервера
+     */
+    static void start(int port) {
+        Thread.ofPlatform().name("training-run").start(() -> {
+            int status = 0;
+            try {
+                long start = System.nanoTime();
+                session(port, List.of("/register aot-bob training-password", "/join aot", "/exit"));
+                session(port, List.of("/register aot-alice training-password", FrameCodec.PING_TEXT,
+                        "/msg aot-bob hello from the training run", "/gmsg aot hello channel",
+                        "/history aot-bob", "/search hello", "/exit"));
+                session(port, List.of("/login aot-bob training-password", "/history aot-alice 10", "/search training aot-alice", "/exit"));
+                logger.info("Training run finished in {} ms", (System.nanoTime() - start) / 1_000_000);
+            } catch (IOException | InterruptedException e) {
+                logger.error("Training run error: {}", e.getMessage());
+                status = 1;
+            }
+            System.exit(status);
+        });
+    }
+
+    /**
+     * Отправляет команды одного клиента и читает ответы, пока сервер не закроет соединение после {@code /exit}.
+     */
+    private static void session(int port, List<String> commands) throws IOException, InterruptedException {
+        try (Socket socket = connect(port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            socket.setSoTimeout(10_000);
+            for (String command : commands) {
+                out.println(command);
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                logger.debug("Training run reply: {}", line);
+            }
+        }
+    }
+
+    private static Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new Socket(InetAddress.getLoopbackAddress(), port);
+            } catch (ConnectException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Кэш логинов всех зарегистрированных пользователей.
+ * <p>
+ * Загружается при старте сервера и пополняется при регистрации, поэтому проверка
+ * получателя в {@code /msg} и {@code /history} не обращается к базе данных.
+ * Если логина нет в кэше, он проверяется в базе (его мог зарегистрировать другой экземпляр сервера)
+ * и при успехе добавляется в кэш.
+ */
+public class UserDirectory {
+
+    private static final Logger logger = LogManager.getLogger(UserDirectory.class);
+
+    private static final Set<String> logins = ConcurrentHashMap.newKeySet();
+    private static final LongAdder hitCount = new LongAdder();
+    private static final LongAdder missCount = new LongAdder();
+
+    /**
+     * Загружает логины всех пользователей из базы данных.
+     */
+    public static void load(){
+        DataBase.loadLogins(logins::add);
+        logger.info("User directory loaded: {} users", logins.size());
+    }
+
+    /**
+     * Добавляет логин в кэш после успешной регистрации.
+     * @param login логин пользователя
+     */
+    public static void add(String login){
+        logins.add(login);
+    }
+
+    /**
+     * Проверяет, существует ли пользователь.
+     * @param login логин
+     * @return true, если пользователь существует
+     */
+    public static boolean exists(String login){
+        if (logins.contains(login)) {
+            hitCount.increment();
+            return true;
+        }
+        missCount.increment();
+        if (DataBase.userCheck(login)) {
+            logins.add(login);
+            return true;
+        }
+        return false;
+    }
+
+    /** @return сколько проверок обслужено из кэша */
+    public static long getHitCount(){
+        return hitCount.sum();
+    }
+
+    /** @return сколько проверок потребовали обращения к базе данных */
+    public static long getMissCount(){
+        return missCount.sum();
+    }
+
+    /** @return количество логинов в кэше */
+    public static int size(){
+        return logins.size();
+    }
+}
@@ -2,30 +2,55 @@ package server;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Класс для хранения активных пользователей на сервере.
  * Управляет добавлением, получением и удалением клиентов.
+ * У пользователя одна сессия на сервере: новый вход закрывает предыдущее соединение.
  */
 public class Users {
 
     private static Map<String, ClientHandler> activeClients = new ConcurrentHashMap<>();
+    private static final LongAdder evictedCount = new LongAdder();
 
     /**
      * Добавляет пользователя в список активных.
+     * Если пользователь уже вошёл с другого соединения, старое соединение закрывается.
      * @param login логин пользователя
      * @param clientHandler обработчик клиента
      */
     public static void setActiveUser(String login, ClientHandler clientHandler){
-        activeClients.put(login, clientHandler);
-
+        ClientHandler previous = activeClients.put(login, clientHandler);
+        if (previous != null && previous != clientHandler) {
+            evictedCount.increment();
+            previous.evict("You have logged in from another session, disconnecting");
+        }
+        ClusterNode.userOnline(login);
     }
 
     /**
-     * Удаляет пользователя из списка активных.
+     * Удаляет пользователя из списка активных, если его сессия принадлежит этому обработчику.
+     * Закрытие вытесненной сессии не убирает из списка новую.
      * @param login логин пользователя
+     * @param clientHandler обработчик закрываемого соединения
+     */
+    public static void removeUser(String login, ClientHandler clientHandler){
+        if (activeClients.remove(login, clientHandler)) {
+            ClusterNode.userOffline(login);
+        }
+    }
+
+    /**
+     * Отправляет всем активным пользователям уведомление и закрывает их соединения,
+     * когда исходящие очереди будут дописаны. Пользователь пропадает из списка активных при закрытии.
+     * @param notice последнее сообщение клиенту
      */
-    public static void removeUser(String login){activeClients.remove(login);}
+    public static void disconnectAll(String notice){
+        for (ClientHandler clientHandler : activeClients.values()) {
+            clientHandler.evict(notice);
+        }
+    }
 
     /**
      * Возвращает обработчик активного пользователя по логину.
@@ -35,6 +60,40 @@ public class Users {
     public static ClientHandler getActiveUser(String target){
        return activeClients.get(target);
     }
-}
 
+    /**
+     * Возвращает количество пользователей, подключённых к этому серверу.
+     * @return количество активных пользователей
+     */
+    public static int getActiveCount(){
+        return activeClients.size();
+    }
+
+    /**
+     * Возвращает логины пользователей, подключённых к этому серверу.
+     * @return множество логинов, меняющееся вместе со списком активных
+     */
+    public static Set<String> getActiveLogins(){
+        return activeClients.keySet();
+    }
 
+    /**
+     * Возвращает, сколько сессий закрыто повторным входом того же пользователя.
+     * @return количество вытесненных сессий
+     */
+    public static long getEvictedCount(){
+        return evictedCount.sum();
+    }
+
+    /**
+     * Возвращает суммарную глубину исходящих очередей всех активных пользователей.
+     * @return количество сообщений, ожидающих отправки
+     */
+    public static int getOutboundDepth(){
+        int depth = 0;
+        for (ClientHandler clientHandler : activeClients.values()) {
+            depth += clientHandler.getOutboundDepth();
+        }
+        return depth;
+    }
+}
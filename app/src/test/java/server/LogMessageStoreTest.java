@@ -0,0 +1,33 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Контракт {@link MessageStore} для {@link LogMessageStore}.
+ * Сегменты маленькие, чтобы сообщения теста занимали несколько сегментов, а фоновое уплотнение
+ * не запускается само: его вызывает {@link #compact()}.
+ */
+class LogMessageStoreTest extends MessageStoreContractTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Override
+    protected MessageStore open(Path directory) throws IOException {
+        return new LogMessageStore(directory.resolve("log"), SEGMENT_SIZE, 10, TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Override
+    protected void compact() {
+        LogMessageStore log = (LogMessageStore) store;
+        int segments = log.getSegmentCount();
+        assertTrue(segments > 2, "messages must span several segments, got " + segments);
+        log.compact();
+        assertEquals(1, log.getCompactionCount());
+        assertTrue(log.getCompactedBytes() > 0);
+    }
+}
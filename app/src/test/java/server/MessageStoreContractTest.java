@@ -0,0 +1,235 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Общий контракт {@link MessageStore}: одни и те же проверки выполняются для каждого хранилища.
+ * <p>
+ * Наследник открывает хранилище в каталоге теста и умеет его закрыть, дождаться отложенной записи
+ * и запустить уплотнение. Перезапуск — закрытие и повторное открытие в том же каталоге.
+ */
+abstract class MessageStoreContractTest {
+
+    @TempDir
+    Path directory;
+
+    protected MessageStore store;
+
+    /**
+     * Открывает хранилище в каталоге; повторный вызов после {@link #close} должен увидеть те же данные.
+     */
+    protected abstract MessageStore open(Path directory) throws Exception;
+
+    /**
+     * Закрывает хранилище вместе с ресурсами, которые открыл {@link #open}.
+     */
+    protected void close(MessageStore store) {
+        store.close();
+    }
+
+    /**
+     * Ждёт, пока сохранённые сообщения и подтверждения будут записаны.
+     */
+    protected void awaitWrites() {
+    }
+
+    /**
+     * Уплотняет хранилище так, как это делает его фоновая задача.
+     */
+    protected abstract void compact() throws Exception;
+
+    @BeforeEach
+    void openStore() throws Exception {
+        store = open(directory);
+    }
+
+    @AfterEach
+    void closeStore() {
+        if (store != null) {
+            close(store);
+        }
+    }
+
+    private void restart() throws Exception {
+        close(store);
+        store = null;
+        store = open(directory);
+    }
+
+    private List<MessageStore.StoredMessage> offline(String recipient) {
+        List<MessageStore.StoredMessage> messages = new ArrayList<>();
+        store.fetchOffline(recipient, 0, Integer.MAX_VALUE, messages::add);
+        return messages;
+    }
+
+    private List<MessageStore.StoredMessage> history(String user1, String user2, int limit, long beforeId) {
+        List<MessageStore.StoredMessage> page = new ArrayList<>();
+        store.history(user1, user2, limit, beforeId, page::add);
+        return page;
+    }
+
+    private static List<Long> ids(List<MessageStore.StoredMessage> messages) {
+        return messages.stream().map(MessageStore.StoredMessage::id).toList();
+    }
+
+    @Test
+    void saveAssignsIncreasingIds() {
+        MessageStore.StoredMessage first = store.save("alice", "bob", "hello", true);
+        MessageStore.StoredMessage second = store.save("bob", "alice", "hi", false);
+        MessageStore.StoredMessage third = store.save("carol", "bob", "hey", true);
+
+        assertTrue(first.id() > 0);
+        assertTrue(second.id() > first.id());
+        assertTrue(third.id() > second.id());
+        assertEquals("bob", second.sender());
+        assertEquals("alice", second.recipient());
+        assertEquals("hi", second.message());
+        assertNotNull(second.time());
+        assertEquals(19, second.time().length());
+    }
+
+    @Test
+    void fetchOfflineReturnsOnlyUndeliveredMessagesOfRecipient() {
+        long first = store.save("alice", "bob", "one", false).id();
+        store.save("alice", "bob", "delivered", true);
+        long second = store.save("carol", "bob", "two", false).id();
+        store.save("bob", "alice", "to alice", false);
+        long third = store.save("alice", "bob", "three", false).id();
+
+        List<MessageStore.StoredMessage> messages = offline("bob");
+
+        assertEquals(List.of(first, second, third), ids(messages));
+        assertEquals(List.of("one", "two", "three"), messages.stream().map(MessageStore.StoredMessage::message).toList());
+        assertEquals("carol", messages.get(1).sender());
+        assertEquals("bob", messages.get(1).recipient());
+        assertEquals(0, store.fetchOffline("dave", 0, 10, message -> true));
+    }
+
+    @Test
+    void fetchOfflineRespectsAfterIdLimitAndVisitor() {
+        List<Long> saved = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            saved.add(store.save("alice", "bob", "message " + i, false).id());
+        }
+
+        List<MessageStore.StoredMessage> chunk = new ArrayList<>();
+        assertEquals(2, store.fetchOffline("bob", saved.get(1), 2, chunk::add));
+        assertEquals(saved.subList(2, 4), ids(chunk));
+
+        List<MessageStore.StoredMessage> accepted = new ArrayList<>();
+        int count = store.fetchOffline("bob", 0, 10, message -> accepted.size() < 3 && accepted.add(message));
+        assertEquals(3, count);
+        assertEquals(saved.subList(0, 3), ids(accepted));
+    }
+
+    @Test
+    void markDeliveredRemovesRangeOfRecipient() {
+        List<Long> saved = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            saved.add(store.save("alice", "bob", "message " + i, false).id());
+        }
+        long other = store.save("alice", "carol", "for carol", false).id();
+        awaitWrites();
+
+        store.markDelivered("bob", saved.get(1), saved.get(3));
+        store.markDelivered("carol", saved.get(0), saved.get(4));
+
+        assertEquals(List.of(saved.get(0), saved.get(4)), ids(offline("bob")));
+        assertEquals(List.of(other), ids(offline("carol")));
+    }
+
+    @Test
+    void acknowledgeMarksOnlyMessageOfRecipient() {
+        long first = store.save("alice", "bob", "one", false).id();
+        long second = store.save("alice", "bob", "two", false).id();
+
+        store.acknowledge("bob", first);
+        store.acknowledge("carol", second);
+        awaitWrites();
+
+        assertEquals(List.of(second), ids(offline("bob")));
+    }
+
+    @Test
+    void historyPagesBackwardsInChronologicalOrder() {
+        List<Long> conversation = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            conversation.add(store.save(i % 2 == 0 ? "alice" : "bob", i % 2 == 0 ? "bob" : "alice", "message " + i, i % 3 == 0).id());
+            store.save("alice", "carol", "other " + i, true);
+        }
+
+        List<MessageStore.StoredMessage> page = new ArrayList<>();
+        long oldest = store.history("bob", "alice", 10, Long.MAX_VALUE, page::add);
+        assertEquals(conversation.subList(15, 25), ids(page));
+        assertEquals((long) conversation.get(15), oldest);
+        assertEquals("message 24", page.get(9).message());
+        assertEquals("alice", page.get(9).sender());
+
+        assertEquals(conversation.subList(5, 15), ids(history("alice", "bob", 10, oldest)));
+        assertEquals(conversation.subList(0, 5), ids(history("alice", "bob", 10, conversation.get(5))));
+        assertEquals(0, store.history("alice", "bob", 10, conversation.get(0), message -> true));
+        assertEquals(0, store.history("alice", "dave", 10, Long.MAX_VALUE, message -> true));
+    }
+
+    @Test
+    void restartKeepsMessagesAndDeliveryState() throws Exception {
+        List<Long> saved = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            saved.add(store.save("alice", "bob", "message " + i, false).id());
+        }
+        awaitWrites();
+        store.markDelivered("bob", saved.get(0), saved.get(2));
+        store.acknowledge("bob", saved.get(4));
+        awaitWrites();
+
+        restart();
+
+        assertEquals(List.of(saved.get(3), saved.get(5)), ids(offline("bob")));
+        List<MessageStore.StoredMessage> page = history("alice", "bob", 10, Long.MAX_VALUE);
+        assertEquals(saved, ids(page));
+        assertEquals("message 5", page.get(5).message());
+        assertTrue(store.save("bob", "alice", "after restart", true).id() > saved.get(5));
+    }
+
+    @Test
+    void compactionKeepsMessagesAndDeliveryState() throws Exception {
+        List<Long> saved = new ArrayList<>();
+        List<Long> undelivered = new ArrayList<>();
+        for (int batch = 0; batch < 20; batch++) {
+            List<Long> ids = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                ids.add(store.save("alice", "bob", "batch " + batch + " message " + i, false).id());
+            }
+            awaitWrites();
+            store.markDelivered("bob", ids.get(0), ids.get(8));
+            saved.addAll(ids);
+            undelivered.add(ids.get(9));
+        }
+        for (int i = 0; i < 20; i++) {
+            store.save("carol", "dave", "filler " + i, true);
+        }
+        awaitWrites();
+
+        compact();
+
+        assertEquals(undelivered, ids(offline("bob")));
+        assertEquals(saved, ids(history("alice", "bob", saved.size(), Long.MAX_VALUE)));
+        assertEquals("batch 19 message 9", history("alice", "bob", 1, Long.MAX_VALUE).get(0).message());
+
+        restart();
+
+        assertEquals(undelivered, ids(offline("bob")));
+        assertEquals(saved, ids(history("alice", "bob", saved.size(), Long.MAX_VALUE)));
+        assertTrue(store.save("alice", "bob", "after compaction", false).id() > saved.get(saved.size() - 1));
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Контракт {@link MessageStore} для {@link SqliteMessageStore} поверх {@link MessageWriter}, как в сервере.
+ * Уплотнение SQLite — {@code VACUUM}, которое переписывает файл базы.
+ */
+class SqliteMessageStoreTest extends MessageStoreContractTest {
+
+    private ConnectionPool writer;
+    private ConnectionPool readers;
+    private MessageWriter messageWriter;
+
+    @Override
+    protected MessageStore open(Path directory) throws SQLException {
+        String url = "jdbc:sqlite:" + directory.resolve("messages.db");
+        writer = new ConnectionPool("writer", url, 1, 5000, "PRAGMA journal_mode=WAL", "PRAGMA busy_timeout=5000");
+        try (ConnectionPool.PooledConnection connection = writer.acquire()) {
+            SchemaMigrations.migrate(connection.getConnection());
+        }
+        readers = new ConnectionPool("readers", url, 2, 5000, "PRAGMA busy_timeout=5000", "PRAGMA query_only=1");
+        messageWriter = new MessageWriter(writer, 1000, 100, 1);
+        messageWriter.start();
+        return new SqliteMessageStore(writer, readers, messageWriter);
+    }
+
+    @Override
+    protected void close(MessageStore store) {
+        store.close();
+        messageWriter.shutdown();
+        readers.close();
+        writer.close();
+    }
+
+    @Override
+    protected void awaitWrites() {
+        messageWriter.awaitFlushed();
+    }
+
+    @Override
+    protected void compact() throws SQLException {
+        try (ConnectionPool.PooledConnection connection = writer.acquire();
+             Statement statement = connection.getConnection().createStatement()) {
+            statement.execute("VACUUM");
+        }
+    }
+}
@@ -0,0 +1,54 @@
+#!/bin/sh
+# Запускает локальный кластер из N узлов, работающих с одной базой данных.
+# Узел i принимает клиентов на порту 9806+i-1, соседей на порту 9906+i-1
+# и отдаёт метрики на http://127.0.0.1:9100+i-1/metrics.
+#
+#   ./gradlew serverJar && scripts/cluster.sh 3
+#
+# Нагрузка на все узлы сразу (сессии распределяются по адресам по очереди):
+#
+#   ./gradlew runLoad --args="--hosts=127.0.0.1:9806,127.0.0.1:9807,127.0.0.1:9808 --sessions=500 --rate=20000 --duration=20"
+#
+# Узлы пишут в один файл SQLite с одной блокировкой записи, поэтому пропускная способность
+# с числом узлов не растёт (замеры — в README, раздел Cluster mode).
+#
+# Остановка: Ctrl+C (останавливает все узлы).
+set -e
+
+NODES=${1:-3}
+JAR=${JAR:-app/build/libs/MessengerServer-1.0.jar}
+CLIENT_BASE=${CLIENT_BASE:-9806}
+CLUSTER_BASE=${CLUSTER_BASE:-9906}
+METRICS_BASE=${METRICS_BASE:-9100}
+
+if [ ! -f "$JAR" ]; then
+    echo "Server jar $JAR not found, run ./gradlew serverJar first" >&2
+    exit 1
+fi
+
+mkdir -p logs
+PIDS=""
+trap 'kill $PIDS 2>/dev/null' INT TERM EXIT
+
+i=1
+while [ "$i" -le "$NODES" ]; do
+    PEERS=""
+    j=1
+    while [ "$j" -le "$NODES" ]; do
+        if [ "$j" -ne "$i" ]; then
+            PEERS="${PEERS:+$PEERS,}node$j@localhost:$((CLUSTER_BASE + j - 1))"
+        fi
+        j=$((j + 1))
+    done
+    java -Dmessenger.port=$((CLIENT_BASE + i - 1)) \
+         -Dmessenger.cluster.nodeId=node$i \
+         -Dmessenger.cluster.port=$((CLUSTER_BASE + i - 1)) \
+         -Dmessenger.cluster.peers="$PEERS" \
+         -Dmessenger.metrics.port=$((METRICS_BASE + i - 1)) \
+         $JAVA_OPTS -jar "$JAR" > "logs/node$i.out" 2>&1 &
+    PIDS="$PIDS $!"
+    echo "node$i: clients on port $((CLIENT_BASE + i - 1)), log logs/node$i.out"
+    i=$((i + 1))
+done
+
+wait